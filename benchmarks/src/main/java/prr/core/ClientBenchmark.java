@@ -0,0 +1,34 @@
+package prr.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Construction of a client with its first terminal, name check included.
+ **/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClientBenchmark {
+    private static final int NAMES = 1024;
+
+    private final String[] names = new String[NAMES];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        for (int i = 0; i < NAMES; i++)
+            names[i] = String.valueOf(100_000_000 + 7919 * i);
+    }
+
+    @Benchmark
+    public Client newClient() {
+        int i = next;
+        next = (i + 1) & (NAMES - 1);
+        return new Client(names[i], i, new Terminal("T", null));
+    }
+}
@@ -0,0 +1,71 @@
+package prr.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Communication.computeCost over one communication for every branch of
+ * the tariff: empty, short, medium and long, for clients with few and
+ * many points and friends.
+ **/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CostBenchmark {
+    private static final int BRANCHES = 10;
+
+    private Communication[] communications;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Network network = new Network();
+        Terminal to = terminal(network, 1, 0, 0);
+        Terminal low = terminal(network, 2, 0, 0);      // 20 points
+        Terminal mid = terminal(network, 3, 60, 0);     // 80 points
+        Terminal high = terminal(network, 4, 180, 0);   // 200 points
+        Terminal social = terminal(network, 5, 60, 4);  // 80 points, 4 friends
+
+        communications = new Communication[] {
+            Communication.textCommunication(to, low, 0),
+            Communication.textCommunication(to, high, 500),
+            Communication.textCommunication(to, low, 500),
+            Communication.textCommunication(to, low, 2000),
+            voice(to, low, 60),
+            Communication.textCommunication(to, mid, 2000),
+            voice(to, mid, 60),
+            voice(to, social, 60),
+            voice(to, low, 300),
+            voice(to, high, 300),
+        };
+    }
+
+    private static Terminal terminal(Network network, int tax, int points, int friends) {
+        Client c = network.registerClient(String.valueOf(tax), tax, "T" + tax);
+        c.updatePoints(points);
+        if (friends > 0) {
+            network.addTerminal(tax, "T" + tax + "b");
+            for (int i = 0; i < friends; i++)
+                c.addFriend(network.registerClient(String.valueOf(100 * tax + i), 100 * tax + i, "F" + tax + "_" + i));
+        }
+        return network.findTerminal("T" + tax);
+    }
+
+    private static Communication voice(Terminal to, Terminal from, int seconds) {
+        Communication c = Communication.voiceCommunication(to, from);
+        c.duration(seconds);
+        return c;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BRANCHES)
+    public double computeCost() {
+        double total = 0;
+        for (Communication c : communications)
+            total += c.computeCost();
+        return total;
+    }
+}
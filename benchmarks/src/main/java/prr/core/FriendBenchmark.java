@@ -0,0 +1,67 @@
+package prr.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Client.hasFriend, for a friend and for a stranger, and a friend being
+ * removed and added again, up to the largest number of friends a client
+ * can have (42, with 9 terminals).
+ **/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FriendBenchmark {
+    private static final int STRANGERS = 64;
+
+    @Param({"2", "17", "42"})
+    int friends;
+
+    private Client client;
+    private Client[] friendList;
+    private Client[] strangers;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Network network = new Network();
+        client = network.registerClient("1", 1, "T1");
+        for (int t = 1; 5 * t - 3 < friends; t++)
+            network.addTerminal(1, "T1_" + t);
+        friendList = new Client[friends];
+        for (int i = 0; i < friends; i++) {
+            friendList[i] = network.registerClient(String.valueOf(100 + i), 100 + i, "F" + i);
+            client.addFriend(friendList[i]);
+        }
+        strangers = new Client[STRANGERS];
+        for (int i = 0; i < STRANGERS; i++)
+            strangers[i] = network.registerClient(String.valueOf(1000 + i), 1000 + i, "S" + i);
+    }
+
+    @Benchmark
+    public boolean hasFriend() {
+        Client f = friendList[next];
+        next = (next + 1) % friends;
+        return client.hasFriend(f);
+    }
+
+    @Benchmark
+    public boolean hasFriendStranger() {
+        Client s = strangers[next];
+        next = (next + 1) % STRANGERS;
+        return client.hasFriend(s);
+    }
+
+    @Benchmark
+    public void removeAndAddFriend(Blackhole bh) {
+        Client f = friendList[next];
+        next = (next + 1) % friends;
+        bh.consume(client.removeFriend(f));
+        client.addFriend(f);
+    }
+}
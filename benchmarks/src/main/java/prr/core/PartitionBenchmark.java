@@ -0,0 +1,90 @@
+package prr.core;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * SMS and voice calls over a network split into partitions, all in this
+ * process and talking over localhost sockets, to see how throughput
+ * changes as partitions are added. Terminal i sends to terminal i + 1,
+ * which usually lives on another partition once there are several.
+ **/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PartitionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Cluster {
+        @Param({"1", "2", "4"})
+        int partitions;
+
+        @Param({"10000"})
+        int terminals;
+
+        List<PartitionNode> nodes;
+        String[] ids;
+        PartitionNode[] owners;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            nodes = PartitionNode.startLocal(partitions);
+            ids = new String[terminals];
+            owners = new PartitionNode[terminals];
+            for (int i = 0; i < terminals; i++) {
+                ids[i] = "T" + i;
+                owners[i] = nodes.get(PartitionNode.partitionOf(ids[i], partitions));
+                owners[i].registerClient(String.valueOf(i + 1), i + 1, ids[i]);
+                owners[i].getNetwork().findTerminal(ids[i]).turnOn();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void teardown() throws IOException {
+            for (PartitionNode n : nodes)
+                n.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int from, to, next;
+
+        @Setup(Level.Trial)
+        public void setup(Cluster c, ThreadParams thread) {
+            // each thread uses its own pairs of terminals, so calls never collide
+            int pairs = c.terminals / 2;
+            from = (int) ((long) pairs * thread.getThreadIndex() / thread.getThreadCount());
+            to = (int) ((long) pairs * (thread.getThreadIndex() + 1) / thread.getThreadCount());
+            next = from;
+        }
+
+        int next() {
+            int i = next;
+            next = (i + 1 < to) ? i + 1 : from;
+            return 2 * i;
+        }
+    }
+
+    @Benchmark
+    public SmsOutcome sendSMS(Cluster c, Cursor cursor) {
+        int i = cursor.next();
+        return c.owners[i].sendSMS(c.ids[i], c.ids[i + 1], "Hello, this is a benchmark");
+    }
+
+    // a call set up and ended by the caller
+    @Benchmark
+    public OperationResult voiceCall(Cluster c, Cursor cursor) {
+        int i = cursor.next();
+        OperationResult r = c.owners[i].makeVoiceCall(c.ids[i], c.ids[i + 1]);
+        if (r == OperationResult.OK)
+            c.owners[i].getNetwork().findTerminal(c.ids[i]).endOngoingCommunication();
+        return r;
+    }
+}
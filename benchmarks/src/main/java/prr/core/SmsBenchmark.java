@@ -0,0 +1,99 @@
+package prr.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Terminal.sendSMS to a NORMAL terminal, to a SILENT terminal of a client
+ * that has the sender as a friend, and to a SILENT terminal of a client
+ * that has not (the SMS is refused). With limited, the network has a
+ * SmsRateLimiter that never refuses, to measure the admission check;
+ * tryAcquire measures the check alone. With monitored, a TrafficMonitor
+ * counts every SMS. With inbox, a SmsInbox keeps every SMS delivered; run
+ * it with several threads to see how appends to its one log contend.
+ **/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmsBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Population {
+        @Param({"1000", "100000"})
+        int clients;
+
+        @Param({"NORMAL", "SILENT_FRIEND", "SILENT_STRANGER"})
+        String receiver;
+
+        @Param({"false", "true"})
+        boolean limited;
+
+        @Param({"false"})
+        boolean monitored;
+
+        @Param({"false"})
+        boolean inbox;
+
+        Terminal[] terminals;
+        SmsRateLimiter limiter;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            Network network = new Network(clients);
+            terminals = new Terminal[clients];
+            for (int i = 0; i < clients; i++) {
+                network.registerClient(String.valueOf(i + 1), i + 1, "T" + i);
+                terminals[i] = network.findTerminal("T" + i);
+                terminals[i].turnOn();
+                if (!receiver.equals("NORMAL"))
+                    terminals[i].toggleOnMode();
+            }
+            if (limited) {
+                limiter = new SmsRateLimiter(1e9, 1_000_000, 1e9, 1_000_000);
+                network.setSmsLimiter(limiter);
+            }
+            if (monitored)
+                network.addListener(new TrafficMonitor(1_000, 1 << 14, 64, 1_000_000, 4, a -> { }));
+            if (inbox)
+                network.setInbox(new SmsInbox(1 << 20, 64, 0, 16));
+            // terminal i sends to terminal i + 1
+            if (receiver.equals("SILENT_FRIEND"))
+                for (int i = 0; i < clients; i++)
+                    terminals[(i + 1) % clients].getClient().addFriend(terminals[i].getClient());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int from, to, next;
+
+        @Setup(Level.Trial)
+        public void setup(Population p, ThreadParams thread) {
+            // each thread sends from its own slice of the population
+            from = (int) ((long) p.clients * thread.getThreadIndex() / thread.getThreadCount());
+            to = (int) ((long) p.clients * (thread.getThreadIndex() + 1) / thread.getThreadCount());
+            next = from;
+        }
+
+        int next() {
+            int i = next;
+            next = (i + 1 < to) ? i + 1 : from;
+            return i;
+        }
+    }
+
+    @Benchmark
+    public boolean sendSMS(Population p, Cursor c) {
+        int i = c.next();
+        return p.terminals[i].sendSMS(p.terminals[(i + 1) % p.clients], "Hello, this is a benchmark");
+    }
+
+    @Benchmark
+    public boolean tryAcquire(Population p, Cursor c) {
+        return p.limiter == null || p.limiter.tryAcquire(p.terminals[c.next()]);
+    }
+}
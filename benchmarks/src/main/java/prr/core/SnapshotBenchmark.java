@@ -0,0 +1,173 @@
+package prr.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * NetworkSnapshot against Java serialization of the same state, held in
+ * serializable mirrors of Client and Terminal (which are not Serializable).
+ * Deserializing only rebuilds the mirrors, not a Network, which favours
+ * Java serialization. File sizes are printed at setup. Serialization
+ * recurses along the friend links, hence the large thread stack.
+ **/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss512m")
+@State(Scope.Benchmark)
+public class SnapshotBenchmark {
+
+    @Param({"10000", "100000"})
+    int clients;
+
+    private Network network;
+    private Path snapshot;
+    private byte[] serialized;
+    private List<ClientData> mirror;
+
+    static final class ClientData implements Serializable {
+        private static final long serialVersionUID = 1L;
+        String name;
+        int taxNumber, points;
+        long charges, payments;
+        List<TerminalData> terminals = new ArrayList<>();
+        List<ClientData> friends = new ArrayList<>();
+    }
+
+    static final class TerminalData implements Serializable {
+        private static final long serialVersionUID = 1L;
+        String id;
+        int ordinal, callSize;
+        TerminalMode mode;
+        long balance;
+        TerminalData callee;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        network = new Network(2 * clients);
+        for (int i = 1; i <= clients; i++) {
+            network.registerClient(String.valueOf(100_000_000 + i), i, "T" + i);
+            if (i % 4 == 0)
+                network.addTerminal(i, "U" + i);
+        }
+        for (int i = 1; i <= clients; i++) {
+            Client c = network.findClient(i);
+            c.addFriend(network.findClient(i % clients + 1));
+            Terminal t = network.findTerminal("T" + i);
+            t.turnOn();
+            if (i % 3 == 0)
+                t.toggleOnMode();
+        }
+        for (int i = 1; i + 1 <= clients; i += 10) {
+            Terminal a = network.findTerminal("T" + i), b = network.findTerminal("T" + (i + 1));
+            if (b.getMode() != TerminalMode.NORMAL)
+                continue;
+            a.makeVoiceCall(b);
+            a.getOngoing().duration(60);
+            if (i % 20 != 1)
+                b.endOngoingCommunication(); // half the calls stay in progress
+        }
+
+        snapshot = Files.createTempFile("network", ".bin");
+        NetworkSnapshot.write(network, snapshot);
+        mirror = mirror(network);
+        serialized = serialize();
+        System.err.printf("%n%d clients: snapshot %d bytes, Java serialization %d bytes%n",
+                          clients, Files.size(snapshot), serialized.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        Files.deleteIfExists(snapshot);
+    }
+
+    private static List<ClientData> mirror(Network network) {
+        Map<Client, ClientData> clients = new IdentityHashMap<>();
+        Map<Terminal, TerminalData> terminals = new IdentityHashMap<>();
+        for (Client c : network.getClients()) {
+            ClientData d = new ClientData();
+            d.name = c.getName();
+            d.taxNumber = c.getTaxNumber();
+            d.points = c.getPoints();
+            d.charges = c.getCharges();
+            d.payments = c.getPayments();
+            for (Terminal t : c.getTerminals()) {
+                TerminalData td = new TerminalData();
+                td.id = t.getId();
+                td.ordinal = t.getOrdinal();
+                td.mode = t.getIdleMode();
+                td.balance = c.balanceOf(t);
+                d.terminals.add(td);
+                terminals.put(t, td);
+            }
+            clients.put(c, d);
+        }
+        for (Map.Entry<Client, ClientData> e : clients.entrySet())
+            for (Client f : e.getKey().getFriends())
+                e.getValue().friends.add(clients.get(f));
+        for (Map.Entry<Terminal, TerminalData> e : terminals.entrySet()) {
+            Communication call = e.getKey().getOngoing();
+            if (call != null && call.from() == e.getKey()) {
+                e.getValue().callee = terminals.get(call.to());
+                e.getValue().callSize = call.getSize();
+            }
+        }
+        return new ArrayList<>(clients.values());
+    }
+
+    private byte[] serialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(mirror);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public ByteBuffer writeSnapshot() {
+        return NetworkSnapshot.encode(network);
+    }
+
+    @Benchmark
+    public byte[] writeSerialized() throws IOException {
+        return serialize();
+    }
+
+    @Benchmark
+    public Network loadSnapshot() throws IOException {
+        return NetworkSnapshot.open(snapshot).toNetwork();
+    }
+
+    // opens the mapped file and reads one field of every client, without building objects
+    @Benchmark
+    public long scanSnapshot() throws IOException {
+        NetworkSnapshot s = NetworkSnapshot.open(snapshot);
+        long sum = 0;
+        for (int i = 0; i < s.numberOfClients(); i++)
+            sum += s.clientPoints(i);
+        return sum;
+    }
+
+    @Benchmark
+    public Object loadSerialized() throws Exception {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            return in.readObject();
+        }
+    }
+}
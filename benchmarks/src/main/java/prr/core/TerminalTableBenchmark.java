@@ -0,0 +1,83 @@
+package prr.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * TerminalTable against Terminal objects in a Network: heap per terminal,
+ * printed at setup, and an id lookup on each.
+ *
+ * The heap of Terminal objects is what a Network grows by when each of
+ * its clients gets three more terminals, so it includes the id String,
+ * the Ledger account and the entries of the network's and the client's
+ * indexes, but not the clients. The heap of the table is all of it.
+ **/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class TerminalTableBenchmark {
+
+    @Param({"1000000"})
+    int terminals;
+
+    private Network network;
+    private TerminalTable table;
+    private String[] ids;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int clients = terminals / 4;
+        long before = usedHeap();
+        network = new Network(terminals);
+        for (int i = 0; i < clients; i++)
+            network.registerClient(String.valueOf(i + 1), i + 1, "T" + (4 * i));
+        long clientsOnly = usedHeap();
+        for (int i = 0; i < clients; i++)
+            for (int k = 1; k < 4; k++)
+                network.addTerminal(i + 1, "T" + (4 * i + k));
+        long objectBytes = usedHeap() - clientsOnly;
+
+        long tableStart = usedHeap();
+        table = new TerminalTable();
+        for (int i = 0; i < terminals; i++)
+            table.add("T" + i, i / 4 + 1);
+        long tableBytes = usedHeap() - tableStart;
+
+        System.out.printf("%nTerminal objects: %.1f bytes per terminal (network with clients: %.1f)"
+                          + "%nTerminalTable: %.1f bytes per terminal%n",
+                          objectBytes / (3.0 * clients), (clientsOnly - before + objectBytes) / (double) terminals,
+                          tableBytes / (double) terminals);
+
+        ids = new String[terminals];
+        for (int i = 0; i < terminals; i++)
+            ids[i] = "T" + i;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private int next() {
+        int i = next;
+        next = (i + 1 < terminals) ? i + 1 : 0;
+        return i;
+    }
+
+    @Benchmark
+    public Terminal objectFind() {
+        return network.findTerminal(ids[next()]);
+    }
+
+    @Benchmark
+    public int tableFind() {
+        return table.find(ids[next()]);
+    }
+}
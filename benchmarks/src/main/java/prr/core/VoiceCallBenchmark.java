@@ -0,0 +1,86 @@
+package prr.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * A whole voice call: makeVoiceCall, setting the duration and
+ * endOngoingCommunication from the receiving side. Each thread calls
+ * between the terminals of its own slice of the population, so that
+ * calls never find a busy terminal.
+ **/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VoiceCallBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Population {
+        @Param({"1000", "100000"})
+        int clients;
+
+        // times the calls with a CallTimer, with a limit they never reach
+        @Param({"false"})
+        boolean timed;
+
+        Terminal[] terminals;
+        CallTimer timer;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            Network network = new Network(clients);
+            if (timed) {
+                timer = new CallTimer(10, 3_600_000);
+                network.setCallTimer(timer);
+            }
+            terminals = new Terminal[clients];
+            for (int i = 0; i < clients; i++) {
+                network.registerClient(String.valueOf(i + 1), i + 1, "T" + i);
+                terminals[i] = network.findTerminal("T" + i);
+                terminals[i].turnOn();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws InterruptedException {
+            if (timer != null)
+                timer.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int from, pairs, next;
+
+        @Setup(Level.Trial)
+        public void setup(Population p, ThreadParams thread) {
+            from = (int) ((long) p.clients * thread.getThreadIndex() / thread.getThreadCount());
+            int to = (int) ((long) p.clients * (thread.getThreadIndex() + 1) / thread.getThreadCount());
+            pairs = (to - from) / 2;
+            if (pairs == 0)
+                throw new IllegalStateException("Fewer than two terminals per thread");
+        }
+
+        // index of the caller of the next pair; the callee follows it
+        int next() {
+            int i = from + 2 * next;
+            next = (next + 1 < pairs) ? next + 1 : 0;
+            return i;
+        }
+    }
+
+    @Benchmark
+    public long callCycle(Population p, Cursor c) {
+        int i = c.next();
+        Terminal caller = p.terminals[i], callee = p.terminals[i + 1];
+        caller.makeVoiceCall(callee);
+        Communication call = caller.getOngoing();
+        call.duration(60); // kept when timed, so both variants cost the same
+        callee.endOngoingCommunication();
+        return (long) call.getCost();
+    }
+}
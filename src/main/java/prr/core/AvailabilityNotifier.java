@@ -0,0 +1,171 @@
+package prr.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Tells subscribers when terminals change mode, instead of them polling
+ * getMode(). Register it with Network.addListener.
+ *
+ * Subscribers are indexed by terminal, so a mode change only looks at the
+ * subscribers of its terminal, and a terminal nobody watches costs one map
+ * lookup. Changes are queued and delivered in batches by one worker
+ * thread, off the thread that changed the mode, in the order each
+ * terminal changed. The queue is not bounded: mode changes happen while
+ * the terminal is locked and must neither block nor be lost.
+ **/
+public class AvailabilityNotifier implements NetworkListener, AutoCloseable {
+    private static final Change STOP = new Change(null, null, null, null);
+    private static final Subscription[] NONE = {};
+
+    private final ConcurrentHashMap<Terminal, Subscription[]> subscribers = new ConcurrentHashMap<>();
+    private final BlockingQueue<Change> queue = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    private final int batchSize;
+    private volatile boolean closed = false;
+
+    // receives the mode changes of a terminal, on the notifier's thread
+    public interface Subscriber {
+        void modeChanged(Terminal t, TerminalMode previous, TerminalMode mode);
+    }
+
+    /** Interest of a subscriber in one terminal. **/
+    public final class Subscription {
+        private final Terminal terminal;
+        private final Subscriber subscriber;
+
+        private Subscription(Terminal terminal, Subscriber subscriber) {
+            this.terminal = terminal;
+            this.subscriber = subscriber;
+        }
+
+        // stops the notifications; some already queued may still arrive
+        public void cancel() {
+            subscribers.computeIfPresent(terminal, (t, subs) -> {
+                int i = Arrays.asList(subs).indexOf(this);
+                if (i < 0)
+                    return subs;
+                if (subs.length == 1)
+                    return null;
+                Subscription[] rest = new Subscription[subs.length - 1];
+                System.arraycopy(subs, 0, rest, 0, i);
+                System.arraycopy(subs, i + 1, rest, i, rest.length - i);
+                return rest;
+            });
+        }
+    }
+
+    private static final class Change {
+        final Terminal terminal;
+        final TerminalMode previous, mode;
+        final Subscription[] subscriptions;
+
+        Change(Terminal terminal, TerminalMode previous, TerminalMode mode, Subscription[] subscriptions) {
+            this.terminal = terminal;
+            this.previous = previous;
+            this.mode = mode;
+            this.subscriptions = subscriptions;
+        }
+    }
+
+    public AvailabilityNotifier() {
+        this(256);
+    }
+
+    // creates a notifier delivering at most batchSize changes at a time
+    public AvailabilityNotifier(int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Invalid batch size");
+        this.batchSize = batchSize;
+        worker = new Thread(this::drain, "availability-notifier");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // calls subscriber on every mode change of terminal t until cancelled
+    public Subscription subscribe(Terminal t, Subscriber subscriber) {
+        if (t == null || subscriber == null)
+            throw new IllegalArgumentException("Invalid subscription");
+        return register(new Subscription(t, subscriber));
+    }
+
+    // completes with t once it is NORMAL, at once if it already is
+    public CompletableFuture<Terminal> whenAvailable(Terminal t) {
+        if (t == null)
+            throw new IllegalArgumentException("Invalid subscription");
+        CompletableFuture<Terminal> free = new CompletableFuture<>();
+        Subscription s = new Subscription(t, (terminal, previous, mode) -> {
+            if (mode == TerminalMode.NORMAL)
+                free.complete(terminal);
+        });
+        free.thenRun(s::cancel);
+        register(s);
+        if (t.getMode() == TerminalMode.NORMAL) // registered first, so no change is missed
+            free.complete(t);
+        return free;
+    }
+
+    private Subscription register(Subscription s) {
+        subscribers.merge(s.terminal, new Subscription[] {s}, (subs, one) -> {
+            Subscription[] more = Arrays.copyOf(subs, subs.length + 1);
+            more[subs.length] = one[0];
+            return more;
+        });
+        return s;
+    }
+
+    // number of terminals with subscribers
+    public int watchedTerminals() {
+        return subscribers.size();
+    }
+
+    @Override
+    public void modeChanged(Terminal t, TerminalMode previous, TerminalMode mode) {
+        Subscription[] subs = subscribers.getOrDefault(t, NONE);
+        if (subs.length != 0 && !closed)
+            queue.add(new Change(t, previous, mode, subs));
+    }
+
+    // stops the notifications once the queued changes are delivered
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        queue.put(STOP);
+        worker.join();
+    }
+
+    private void drain() {
+        List<Change> batch = new ArrayList<>(batchSize);
+        boolean stop = false;
+        try {
+            while (!stop) {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                for (Change c : batch) {
+                    if (c == STOP)
+                        stop = true;
+                    else
+                        deliver(c);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void deliver(Change c) {
+        for (Subscription s : c.subscriptions) {
+            try {
+                s.subscriber.modeChanged(c.terminal, c.previous, c.mode);
+            } catch (RuntimeException e) {
+                // one failing subscriber does not keep the others from hearing
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package prr.core;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Prices columns of communications in one pass, with the same tariff as
+ * Communication.computeCost.
+ *
+ * The tariff only depends on the size band of the communication, the
+ * points tier of the client, the communication type and whether the client
+ * has 4 or more friends, so it is kept as a 64 entry table and each row
+ * costs one table lookup.
+ **/
+public final class BatchRater {
+    // rows per fork/join leaf
+    private static final int LEAF = 1 << 14;
+
+    // indexed by index(band, pointsTier, type, friendsTier)
+    static final double[] TARIFF = new double[64];
+
+    static {
+        int[] sizes = { 0, 1, 10, 120 };
+        int[] points = { 0, 75, 101, 150 };
+        int[] friends = { 0, 4 };
+        for (int b = 0; b < 4; b++)
+            for (int p = 0; p < 4; p++)
+                for (CommunicationType t : CommunicationType.values())
+                    for (int f = 0; f < 2; f++)
+                        TARIFF[index(b, p, t.ordinal(), f)] = tariff(sizes[b], t, points[p], friends[f]);
+    }
+
+    private BatchRater() { }
+
+    // the branches of Communication.computeCost, used to fill the table
+    private static double tariff(int size, CommunicationType type, int points, int friends) {
+        if (size == 0)
+            return 0;
+        if (size < 10)
+            return (points > 100) ? 1 : 2;
+        if (size < 120) {
+            if (points < 75)
+                return (type == CommunicationType.SMS) ? 6 : 12;
+            if (type == CommunicationType.SMS)
+                return 4;
+            return (friends < 4) ? 8 : 5;
+        }
+        return (points < 150) ? 15 : 12;
+    }
+
+    // 0: empty, 1: under 10 (negative sizes included), 2: under 120, 3: 120 or more
+    static int band(int size) {
+        return (size != 0 ? 1 : 0) + (size >= 10 ? 1 : 0) + (size >= 120 ? 1 : 0);
+    }
+
+    // 0: under 75, 1: 75 to 100, 2: 101 to 149, 3: 150 or more
+    static int pointsTier(int points) {
+        return (points >= 75 ? 1 : 0) + (points > 100 ? 1 : 0) + (points >= 150 ? 1 : 0);
+    }
+
+    static int friendsTier(int friends) {
+        return (friends >= 4) ? 1 : 0;
+    }
+
+    static int index(int band, int pointsTier, int type, int friendsTier) {
+        return (((band << 2) | pointsTier) << 2 | type << 1) | friendsTier;
+    }
+
+    // prices one communication
+    public static double cost(int size, CommunicationType type, int points, int friends) {
+        return TARIFF[index(band(size), pointsTier(points), type.ordinal(), friendsTier(friends))];
+    }
+
+    // prices every row: types hold CommunicationType ordinals, points and friends are those of the originating client
+    public static void rate(int[] sizes, byte[] types, int[] points, int[] friends, double[] costs) {
+        check(sizes, types, points, friends, costs);
+        rate(sizes, types, points, friends, costs, 0, sizes.length);
+    }
+
+    // same as rate, split across the common fork/join pool
+    public static void rateParallel(int[] sizes, byte[] types, int[] points, int[] friends, double[] costs) {
+        check(sizes, types, points, friends, costs);
+        ForkJoinPool.commonPool().invoke(new Slice(sizes, types, points, friends, costs, 0, sizes.length));
+    }
+
+    private static void rate(int[] sizes, byte[] types, int[] points, int[] friends, double[] costs, int from, int to) {
+        double[] tariff = TARIFF;
+        for (int i = from; i < to; i++)
+            costs[i] = tariff[index(band(sizes[i]), pointsTier(points[i]), types[i], friendsTier(friends[i]))];
+    }
+
+    private static void check(int[] sizes, byte[] types, int[] points, int[] friends, double[] costs) {
+        int n = sizes.length;
+        if (types.length != n || points.length != n || friends.length != n || costs.length != n)
+            throw new IllegalArgumentException("Columns must have the same length");
+    }
+
+    private static final class Slice extends RecursiveAction {
+        private final int[] sizes;
+        private final byte[] types;
+        private final int[] points;
+        private final int[] friends;
+        private final double[] costs;
+        private final int from, to;
+
+        Slice(int[] sizes, byte[] types, int[] points, int[] friends, double[] costs, int from, int to) {
+            this.sizes = sizes;
+            this.types = types;
+            this.points = points;
+            this.friends = friends;
+            this.costs = costs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF) {
+                rate(sizes, types, points, friends, costs, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Slice(sizes, types, points, friends, costs, from, mid),
+                      new Slice(sizes, types, points, friends, costs, mid, to));
+        }
+    }
+}
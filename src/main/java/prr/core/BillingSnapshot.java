@@ -0,0 +1,36 @@
+package prr.core;
+
+/**
+ * Balances of a client and of its terminals at one instant, in cents.
+ * Obtained with Client.billingSnapshot().
+ **/
+public final class BillingSnapshot {
+    private final int taxNumber;
+    private final long charges;
+    private final long payments;
+    private final String[] terminalIds;
+    private final long[] terminalBalances;
+
+    BillingSnapshot(int taxNumber, long charges, long payments, String[] terminalIds, long[] terminalBalances) {
+        this.taxNumber = taxNumber;
+        this.charges = charges;
+        this.payments = payments;
+        this.terminalIds = terminalIds;
+        this.terminalBalances = terminalBalances;
+    }
+
+    public int getTaxNumber() { return taxNumber; }
+
+    // total cost of the communications made by the client's terminals
+    public long getCharges() { return charges; }
+
+    // total paid by the client's terminals
+    public long getPayments() { return payments; }
+
+    // what the client owes (negative when in credit)
+    public long balance() { return charges - payments; }
+
+    public int numberOfTerminals() { return terminalIds.length; }
+    public String terminalId(int i) { return terminalIds[i]; }
+    public long terminalBalance(int i) { return terminalBalances[i]; }
+}
@@ -0,0 +1,282 @@
+package prr.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+import prr.core.exceptions.InvalidOperationException;
+
+/**
+ * Loads clients, their terminals and their friends into a network from a
+ * text file with one record per line:
+ *
+ *   C,name,taxNumber,terminalId[,terminalId...]
+ *   F,taxNumber,friendTaxNumber
+ *
+ * Empty lines and lines starting with '#' are skipped. The file is split
+ * at line boundaries into chunks that are memory-mapped and parsed in
+ * parallel; each chunk builds and registers its clients with all their
+ * terminals. Friendships are then sorted by client and added in one step
+ * per client, in parallel, up to each client's friend limit. Records that
+ * the constructors or the network would refuse are counted as rejected
+ * instead of stopping the load.
+ **/
+public class BulkLoader {
+    private final Network network;
+    private final int chunkBytes;
+
+    /** Outcome of a load. **/
+    public static final class Report {
+        private final long clients, terminals, friendships, rejected, nanos;
+
+        Report(long clients, long terminals, long friendships, long rejected, long nanos) {
+            this.clients = clients;
+            this.terminals = terminals;
+            this.friendships = friendships;
+            this.rejected = rejected;
+            this.nanos = nanos;
+        }
+
+        public long getClients() { return clients; }
+        public long getTerminals() { return terminals; }
+        public long getFriendships() { return friendships; }
+        public long getRejected() { return rejected; }
+        public long getNanos() { return nanos; }
+
+        // records read, accepted or not, per second of the whole load
+        public double recordsPerSecond() {
+            long records = clients + friendships + rejected;
+            return (nanos == 0) ? 0 : records * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d clients, %d terminals, %d friendships, %d rejected in %.1f ms (%.0f records/s)",
+                                 clients, terminals, friendships, rejected, nanos / 1e6, recordsPerSecond());
+        }
+    }
+
+    public BulkLoader(Network network) {
+        this(network, 16 << 20);
+    }
+
+    // loads into network, parsing chunks of about chunkBytes each
+    public BulkLoader(Network network, int chunkBytes) {
+        if (network == null || chunkBytes < 1)
+            throw new IllegalArgumentException("Invalid loader arguments");
+        this.network = network;
+        this.chunkBytes = chunkBytes;
+    }
+
+    public Report load(Path file) throws IOException {
+        long started = System.nanoTime();
+        LongAdder clients = new LongAdder(), terminals = new LongAdder(), rejected = new LongAdder();
+        long[] friendships;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long[] bounds = split(ch);
+            long[][] pairs = new long[bounds.length - 1][];
+            IntStream.range(0, bounds.length - 1).parallel().forEach(i -> {
+                try {
+                    MappedByteBuffer chunk = ch.map(FileChannel.MapMode.READ_ONLY, bounds[i], bounds[i + 1] - bounds[i]);
+                    pairs[i] = parse(chunk, clients, terminals, rejected);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            friendships = concat(pairs);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        long added = addFriends(friendships);
+        rejected.add(friendships.length - added);
+        return new Report(clients.sum(), terminals.sum(), added, rejected.sum(), System.nanoTime() - started);
+    }
+
+    // chunk boundaries, each just after a line end
+    private long[] split(FileChannel ch) throws IOException {
+        long size = ch.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long pos = chunkBytes;
+        while (pos < size) {
+            long end = -1;
+            for (long at = pos; end < 0 && at < size; at += probe.capacity()) {
+                probe.clear();
+                int n = ch.read(probe, at);
+                for (int i = 0; i < n; i++) {
+                    if (probe.get(i) == '\n') {
+                        end = at + i + 1;
+                        break;
+                    }
+                }
+            }
+            if (end < 0 || end >= size)
+                break;
+            bounds.add(end);
+            pos = end + chunkBytes;
+        }
+        bounds.add(size);
+        return bounds.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    // registers the clients of a chunk and returns its friendships as (tax << 32 | friend tax)
+    private long[] parse(ByteBuffer in, LongAdder clients, LongAdder terminals, LongAdder rejected) {
+        long[] pairs = new long[64];
+        int npairs = 0;
+        int[] fields = new int[2 * (4 + 9)]; // start and end of up to 9 terminal ids and one spare
+        int limit = in.limit();
+        for (int pos = 0; pos < limit; ) {
+            int eol = pos;
+            while (eol < limit && in.get(eol) != '\n')
+                eol++;
+            int end = (eol > pos && in.get(eol - 1) == '\r') ? eol - 1 : eol;
+            int n = fields(in, pos, end, fields);
+            byte kind = (end > pos) ? in.get(pos) : (byte) '#';
+            if (kind == 'C' && n >= 4 && n <= 12 && fields[1] - fields[0] == 1) {
+                Client c = client(in, fields, n);
+                if (c == null) {
+                    rejected.increment();
+                } else {
+                    clients.increment();
+                    terminals.add(n - 3);
+                }
+            } else if (kind == 'F' && n == 3 && fields[1] - fields[0] == 1) {
+                long tax = number(in, fields[2], fields[3]), friend = number(in, fields[4], fields[5]);
+                if (tax == Long.MIN_VALUE || friend == Long.MIN_VALUE) {
+                    rejected.increment();
+                } else {
+                    if (npairs == pairs.length)
+                        pairs = Arrays.copyOf(pairs, npairs * 2);
+                    pairs[npairs++] = (tax << 32) | (friend & 0xffffffffL);
+                }
+            } else if (kind != '#') {
+                rejected.increment();
+            }
+            pos = eol + 1;
+        }
+        return Arrays.copyOf(pairs, npairs);
+    }
+
+    // splits in[from, to) at commas into fields; returns the number of fields, or -1 if too many
+    private static int fields(ByteBuffer in, int from, int to, int[] fields) {
+        int n = 0, start = from;
+        for (int i = from; i <= to; i++) {
+            if (i == to || in.get(i) == ',') {
+                if (2 * n + 1 >= fields.length)
+                    return -1;
+                fields[2 * n] = start;
+                fields[2 * n + 1] = i;
+                n++;
+                start = i + 1;
+            }
+        }
+        return n;
+    }
+
+    // builds and registers the client of a C record, or returns null if it is refused
+    private Client client(ByteBuffer in, int[] fields, int n) {
+        int nameFrom = fields[2], nameTo = fields[3];
+        if (!validName(in, nameFrom, nameTo))
+            return null;
+        long tax = number(in, fields[4], fields[5]);
+        if (tax == Long.MIN_VALUE)
+            return null;
+        Terminal[] owned = new Terminal[n - 3];
+        for (int f = 3; f < n; f++) {
+            if (fields[2 * f + 1] == fields[2 * f]) // Terminal requires a non empty id
+                return null;
+            owned[f - 3] = new Terminal(string(in, fields[2 * f], fields[2 * f + 1]), null);
+        }
+        try {
+            Client c = new Client(string(in, nameFrom, nameTo), (int) tax, owned[0]);
+            for (int t = 1; t < owned.length; t++)
+                c.addTerminal(owned[t]);
+            network.registerClient(c);
+            return c;
+        } catch (InvalidOperationException e) { // duplicate tax number or terminal id
+            return null;
+        }
+    }
+
+    // the same check as Client.validName, on the bytes of the name
+    private static boolean validName(ByteBuffer in, int from, int to) {
+        if (to <= from || to - from > 40)
+            return false;
+        for (int i = from; i < to; i++) {
+            byte b = in.get(i);
+            if (b < '0' || b > '9')
+                return false;
+        }
+        return true;
+    }
+
+    // the int in in[from, to), or Long.MIN_VALUE if there is none
+    private static long number(ByteBuffer in, int from, int to) {
+        boolean negative = to > from && in.get(from) == '-';
+        int i = negative ? from + 1 : from;
+        if (i == to || to - i > 10)
+            return Long.MIN_VALUE;
+        long v = 0;
+        for (; i < to; i++) {
+            byte b = in.get(i);
+            if (b < '0' || b > '9')
+                return Long.MIN_VALUE;
+            v = v * 10 + (b - '0');
+        }
+        v = negative ? -v : v;
+        return (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) ? Long.MIN_VALUE : v;
+    }
+
+    private static String string(ByteBuffer in, int from, int to) {
+        byte[] b = new byte[to - from];
+        for (int i = 0; i < b.length; i++)
+            b[i] = in.get(from + i);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static long[] concat(long[][] parts) {
+        int n = 0;
+        for (long[] p : parts)
+            n += p.length;
+        long[] all = new long[n];
+        int at = 0;
+        for (long[] p : parts) {
+            System.arraycopy(p, 0, all, at, p.length);
+            at += p.length;
+        }
+        return all;
+    }
+
+    // adds the friendships grouped by client, in parallel; returns how many were added
+    private long addFriends(long[] pairs) {
+        Arrays.parallelSort(pairs); // groups the friends of each client
+        List<Integer> starts = new ArrayList<>();
+        for (int i = 0; i < pairs.length; i++)
+            if (i == 0 || (pairs[i] >> 32) != (pairs[i - 1] >> 32))
+                starts.add(i);
+        starts.add(pairs.length);
+        LongAdder added = new LongAdder();
+        IntStream.range(0, starts.size() - 1).parallel().forEach(r -> {
+            int from = starts.get(r), to = starts.get(r + 1);
+            Client c = network.findClient((int) (pairs[from] >> 32));
+            if (c == null)
+                return;
+            List<Client> friends = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++)
+                friends.add(network.findClient((int) pairs[i]));
+            added.add(c.addFriends(friends));
+        });
+        return added.sum();
+    }
+}
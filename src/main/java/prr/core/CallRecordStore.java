@@ -0,0 +1,248 @@
+package prr.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+import prr.core.exceptions.InvalidInvocationException;
+
+/**
+ * Call detail records of ended communications, kept outside the Java heap.
+ *
+ * Records are fixed width and stored column by column in segments of
+ * 2^segmentShift records, each segment a direct buffer or a memory-mapped
+ * file. Every record links to the previous record of its originating
+ * terminal and to the previous record of its receiving terminal, so the
+ * history of one terminal is read without scanning the others.
+ *
+ * Register it with Network.addListener to record every communication of a
+ * network; terminals are named by their network ordinals. Communications
+ * with a terminal that has no ordinal are counted as dropped.
+ **/
+public class CallRecordStore implements NetworkListener {
+    private static final long NONE = -1;
+    private static final CommunicationType[] TYPES = CommunicationType.values();
+    private static final int HEADS_SHIFT = 12; // terminals per chunk of chain heads
+    private static final int HEADS_MASK = (1 << HEADS_SHIFT) - 1;
+
+    // column offsets, in bytes per segment record
+    private static final int START = 0, END = 8, PREV_FROM = 16, PREV_TO = 24;
+    private static final int FROM = 32, TO = 36, SIZE = 40, COST = 44, TYPE = 48;
+    private static final int RECORD_BYTES = 49;
+
+    private final int segmentShift;
+    private final int segmentMask;
+    private final Path directory; // null for direct buffers
+
+    private volatile ByteBuffer[] segments = new ByteBuffer[0];
+    private volatile AtomicLongArray[] heads = new AtomicLongArray[0]; // newest record of each terminal
+    private final AtomicLong reserved = new AtomicLong();
+    private volatile long published = 0; // records [0, published) are complete, and linked unless linking failed
+    private final LongAdder dropped = new LongAdder();
+
+    // creates a store in direct buffers, with segments of 65536 records
+    public CallRecordStore() {
+        this(16, null);
+    }
+
+    // creates a store with segments of 2^segmentShift records, mapped from files in directory when it is not null.
+    // The directory must not hold the segments of another store.
+    public CallRecordStore(int segmentShift, Path directory) {
+        if (segmentShift < 4 || segmentShift > 24)
+            throw new IllegalArgumentException("Invalid segment size");
+        this.segmentShift = segmentShift;
+        this.segmentMask = (1 << segmentShift) - 1;
+        this.directory = directory;
+        if (directory != null) {
+            try {
+                Files.createDirectories(directory);
+                try (DirectoryStream<Path> old = Files.newDirectoryStream(directory, "cdr-*.seg")) {
+                    if (old.iterator().hasNext())
+                        throw new IllegalArgumentException("Directory already holds call records");
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // records c when both terminals have an ordinal, and counts it as dropped otherwise:
+    // the communication already happened, so it is not failed from here
+    @Override
+    public void communicationEnded(Communication c) {
+        if (c.from().getOrdinal() < 0 || c.to().getOrdinal() < 0) {
+            dropped.increment();
+            return;
+        }
+        try {
+            append(c);
+        } catch (UncheckedIOException e) {
+            dropped.increment();
+        }
+    }
+
+    // appends an ended communication between registered terminals and returns its record index
+    public long append(Communication c) {
+        if (!c.isEnded())
+            throw new InvalidInvocationException("Only ended communications are recorded");
+        int from = c.from().getOrdinal(), to = c.to().getOrdinal();
+        if (from < 0 || to < 0)
+            throw new InvalidInvocationException("Terminals must be registered in a network");
+        return append(from, to, c.getType(), c.getSize(), (int) c.getCost(), c.getStart(), c.getEnd());
+    }
+
+    public long append(int from, int to, CommunicationType type, int size, int cost, long start, long end) {
+        // the segment exists before the index is taken, so a failed allocation takes none
+        long i;
+        ByteBuffer seg;
+        do {
+            i = reserved.get();
+            seg = segmentFor(i);
+        } while (!reserved.compareAndSet(i, i + 1));
+        int r = (int) (i & segmentMask);
+        int n = 1 << segmentShift;
+        seg.putLong(START * n + r * 8, start);
+        seg.putLong(END * n + r * 8, end);
+        seg.putInt(FROM * n + r * 4, from);
+        seg.putInt(TO * n + r * 4, to);
+        seg.putInt(SIZE * n + r * 4, size);
+        seg.putInt(COST * n + r * 4, cost);
+        seg.put(TYPE * n + r, (byte) type.ordinal());
+        seg.putLong(PREV_FROM * n + r * 8, NONE);
+        seg.putLong(PREV_TO * n + r * 8, NONE);
+
+        // records are linked and published in index order
+        for (int spins = 0; published != i; spins++) {
+            if (spins < 128)
+                Thread.onSpinWait();
+            else
+                Thread.yield();
+        }
+        try {
+            AtomicLongArray fromHeads = heads(from), toHeads = heads(to);
+            int fi = from & HEADS_MASK, ti = to & HEADS_MASK;
+            long prevFrom = fromHeads.get(fi);
+            long prevTo = (from == to) ? prevFrom : toHeads.get(ti);
+            seg.putLong(PREV_FROM * n + r * 8, prevFrom);
+            seg.putLong(PREV_TO * n + r * 8, prevTo);
+            fromHeads.set(fi, i);
+            toHeads.set(ti, i);
+        } finally {
+            published = i + 1; // even unlinked, so that a failure cannot hold back the records after it
+        }
+        return i;
+    }
+
+    // number of complete records
+    public long size() {
+        return published;
+    }
+
+    // communications not recorded, for a terminal without an ordinal or a segment that could not be mapped
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public int from(long i) { return seg(i).getInt(FROM * segLen() + off(i) * 4); }
+    public int to(long i) { return seg(i).getInt(TO * segLen() + off(i) * 4); }
+    public int size(long i) { return seg(i).getInt(SIZE * segLen() + off(i) * 4); }
+    public int cost(long i) { return seg(i).getInt(COST * segLen() + off(i) * 4); }
+    public long start(long i) { return seg(i).getLong(START * segLen() + off(i) * 8); }
+    public long end(long i) { return seg(i).getLong(END * segLen() + off(i) * 8); }
+    public CommunicationType type(long i) {
+        return TYPES[seg(i).get(TYPE * segLen() + off(i))];
+    }
+
+    // visits the indexes of all complete records, oldest first
+    public void scan(LongConsumer visitor) {
+        long n = published;
+        for (long i = 0; i < n; i++)
+            visitor.accept(i);
+    }
+
+    // visits, newest first, the records of communications made or received by a terminal that ended in [fromTime, toTime)
+    public void forEachOf(int terminal, long fromTime, long toTime, LongConsumer visitor) {
+        long i = latestOf(terminal);
+        while (i != NONE) {
+            long e = end(i);
+            if (e < fromTime)
+                return;
+            if (e < toTime)
+                visitor.accept(i);
+            i = previousOf(terminal, i);
+        }
+    }
+
+    // the newest record of a terminal, or -1
+    public long latestOf(int terminal) {
+        int chunk = terminal >>> HEADS_SHIFT;
+        AtomicLongArray[] hs = heads;
+        if (chunk >= hs.length || hs[chunk] == null)
+            return NONE;
+        return hs[chunk].get(terminal & HEADS_MASK);
+    }
+
+    // the record of a terminal before record i, or -1
+    public long previousOf(int terminal, long i) {
+        int col = (from(i) == terminal) ? PREV_FROM : PREV_TO;
+        return seg(i).getLong(col * segLen() + off(i) * 8);
+    }
+
+    // only called by the thread publishing the next record
+    private AtomicLongArray heads(int terminal) {
+        int chunk = terminal >>> HEADS_SHIFT;
+        AtomicLongArray[] hs = heads;
+        if (chunk >= hs.length || hs[chunk] == null) {
+            hs = Arrays.copyOf(hs, Math.max(hs.length, chunk + 1));
+            long[] empty = new long[1 << HEADS_SHIFT];
+            Arrays.fill(empty, NONE);
+            hs[chunk] = new AtomicLongArray(empty);
+            heads = hs;
+        }
+        return hs[chunk];
+    }
+
+    private int segLen() { return 1 << segmentShift; }
+    private int off(long i) { return (int) (i & segmentMask); }
+    private ByteBuffer seg(long i) { return segments[(int) (i >>> segmentShift)]; }
+
+    private ByteBuffer segmentFor(long i) {
+        int s = (int) (i >>> segmentShift);
+        ByteBuffer[] segs = segments;
+        if (s < segs.length)
+            return segs[s];
+        synchronized (this) {
+            segs = segments;
+            if (s >= segs.length) {
+                segs = Arrays.copyOf(segs, s + 1);
+                for (int k = segments.length; k <= s; k++)
+                    segs[k] = allocate(k);
+                segments = segs;
+            }
+            return segs[s];
+        }
+    }
+
+    private ByteBuffer allocate(int segment) {
+        int bytes = RECORD_BYTES << segmentShift;
+        if (directory == null)
+            return ByteBuffer.allocateDirect(bytes);
+        Path file = directory.resolve(String.format("cdr-%06d.seg", segment));
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE)) {
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
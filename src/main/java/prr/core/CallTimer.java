@@ -0,0 +1,282 @@
+package prr.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Times the voice calls of a network. Install it with
+ * Network.setCallTimer. A call ended without a duration gets the seconds
+ * it lasted (started seconds, by the timer's monotonic clock), and a call
+ * that lasts longer than the limit, or whose client leaves the network,
+ * is ended by the timer.
+ *
+ * Calls wait in a hierarchical timing wheel: levels of 64 slots, each
+ * slot of a level spanning a whole turn of the level below. A call sits
+ * in a doubly linked slot list, so starting and ending it are O(1); a
+ * tick only looks at the calls due in that tick, plus the slot of an upper
+ * level that turns over, whose calls move down a level. Calls due beyond
+ * the top level wait in it and are placed again when their slot turns.
+ * While no call is in the wheel, the ticks up to the clock are skipped.
+ *
+ * Only the timer's thread touches the wheel. Terminals hand it started,
+ * ended and orphaned calls through lock-free queues, and a call is ended
+ * once, by whoever first marks its Timeout done, so setting up and ending
+ * a call takes no lock of the timer. Timed out calls are ended by the
+ * timer's thread, outside its lock.
+ **/
+public class CallTimer implements NetworkListener, AutoCloseable {
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int LEVELS = 4;
+
+    private final long tickNanos, limitTicks;
+    private final LongSupplier clock; // nanoseconds
+    private final long origin;
+    private final Timeout[][] wheel = new Timeout[LEVELS][SLOTS]; // list heads, linked in a ring
+    private long tick = 0; // last tick processed, guarded by this
+    private int wheeled = 0; // calls in the wheel, guarded by this
+    private final Queue<Timeout> starts = new ConcurrentLinkedQueue<>(), stops = new ConcurrentLinkedQueue<>(),
+                                 orphans = new ConcurrentLinkedQueue<>();
+    private final LongAdder tracked = new LongAdder(), timedOut = new LongAdder(), orphaned = new LongAdder();
+    private final Thread worker;
+    private volatile boolean closed = false;
+
+    /** A call timed by the wheel. **/
+    static final class Timeout {
+        private static final VarHandle DONE;
+        static {
+            try {
+                DONE = MethodHandles.lookup().findVarHandle(Timeout.class, "done", boolean.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        final Communication call;
+        final long startNanos;
+        final CallTimer timer;
+        final long deadline; // tick at which the call is ended
+        private volatile boolean done = false; // stopped, timed out or orphaned
+        boolean orphan; // written by the timer's thread
+        Timeout prev, next; // null when not in the wheel
+
+        private Timeout(Communication call, long startNanos, long deadline, CallTimer timer) {
+            this.call = call;
+            this.startNanos = startNanos;
+            this.deadline = deadline;
+            this.timer = timer;
+        }
+
+        // marks the call done; true for the one caller that does
+        boolean finish() {
+            return !done && DONE.compareAndSet(this, false, true);
+        }
+
+        // takes the call out of the wheel; returns the seconds it lasted
+        int stop() {
+            timer.cancel(this);
+            long nanos = timer.clock.getAsLong() - startNanos;
+            return (int) Math.min(Integer.MAX_VALUE, (Math.max(0, nanos) + 999_999_999) / 1_000_000_000);
+        }
+    }
+
+    // times calls with a wheel of tickMillis ticks, ending those longer than maxCallMillis (0: no limit)
+    public CallTimer(long tickMillis, long maxCallMillis) {
+        this(tickMillis, maxCallMillis, System::nanoTime, true);
+    }
+
+    CallTimer(long tickMillis, long maxCallMillis, LongSupplier clock, boolean thread) {
+        if (tickMillis < 1 || maxCallMillis < 0 || tickMillis > Long.MAX_VALUE / 1_000_000)
+            throw new IllegalArgumentException("Invalid call timer limits");
+        this.tickNanos = tickMillis * 1_000_000;
+        this.limitTicks = (maxCallMillis == 0) ? 0 : Math.max(1, (maxCallMillis + tickMillis - 1) / tickMillis);
+        this.clock = clock;
+        this.origin = clock.getAsLong();
+        for (Timeout[] level : wheel)
+            for (int s = 0; s < SLOTS; s++) {
+                Timeout head = new Timeout(null, 0, 0, this);
+                head.prev = head.next = head;
+                level[s] = head;
+            }
+        if (thread) {
+            worker = new Thread(this::run, "call-timer");
+            worker.setDaemon(true);
+            worker.start();
+        } else {
+            worker = null;
+        }
+    }
+
+    // called by Terminal when call c is set up
+    void started(Communication c) {
+        long now = clock.getAsLong();
+        Timeout t = new Timeout(c, now, (now - origin) / tickNanos + limitTicks, this);
+        c.setTimeout(t);
+        tracked.increment();
+        if (limitTicks != 0)
+            starts.add(t);
+    }
+
+    // calls being timed
+    public int tracked() { return (int) tracked.sum(); }
+
+    // calls ended for passing the limit
+    public long timedOut() { return timedOut.sum(); }
+
+    // calls ended because their client left the network
+    public long orphaned() { return orphaned.sum(); }
+
+    // the calls of a removed client are ended on the next tick, off the thread removing it
+    @Override
+    public void clientRemoved(Client c) {
+        for (Terminal t : c.getTerminals()) {
+            Communication call = t.getOngoing();
+            Timeout timeout = (call != null) ? call.getTimeout() : null;
+            if (timeout != null && timeout.timer == this)
+                orphans.add(timeout);
+        }
+    }
+
+    // processes the ticks up to the clock and ends the calls due; returns how many it ended
+    int advance() {
+        List<Timeout> due = new ArrayList<>();
+        synchronized (this) {
+            for (Timeout t; (t = starts.poll()) != null; ) {
+                if (t.done)
+                    continue; // stopped before it was placed
+                if (t.deadline <= tick) {
+                    expire(t, due);
+                } else {
+                    place(t);
+                    wheeled++;
+                }
+            }
+            for (Timeout t; (t = stops.poll()) != null; )
+                remove(t);
+            for (Timeout t; (t = orphans.poll()) != null; ) {
+                remove(t);
+                t.orphan = true;
+                expire(t, due);
+            }
+            long target = (clock.getAsLong() - origin) / tickNanos;
+            while (tick < target) {
+                if (wheeled == 0) {
+                    tick = target; // nothing to end on the way
+                    break;
+                }
+                tick++;
+                for (int level = LEVELS - 1; level > 0; level--)
+                    if ((tick & ((1L << (BITS * level)) - 1)) == 0)
+                        cascade(wheel[level][(int) ((tick >>> (BITS * level)) & (SLOTS - 1))]);
+                Timeout head = wheel[0][(int) (tick & (SLOTS - 1))];
+                while (head.next != head) {
+                    Timeout t = head.next;
+                    remove(t);
+                    expire(t, due);
+                }
+            }
+        }
+        int ended = 0;
+        for (Timeout t : due) {
+            try {
+                if (t.call.from().endCall(t.call)) {
+                    ended++;
+                    (t.orphan ? orphaned : timedOut).increment();
+                }
+            } catch (RuntimeException e) {
+                // one failing call does not keep the others from ending
+            }
+        }
+        return ended;
+    }
+
+    // stops the timer thread; calls are no longer ended by the limit
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        if (worker != null) {
+            worker.interrupt();
+            worker.join();
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                Thread.sleep(tickNanos / 1_000_000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            advance();
+        }
+    }
+
+    // the call ended: the timer's thread takes it out of the wheel on its next tick
+    private void cancel(Timeout t) {
+        if (t.finish()) {
+            tracked.decrement();
+            if (limitTicks != 0)
+                stops.add(t);
+        }
+    }
+
+    // must hold the monitor of this; adds t to the calls to end unless it is done already
+    private void expire(Timeout t, List<Timeout> due) {
+        if (t.finish()) {
+            tracked.decrement();
+            due.add(t);
+        }
+    }
+
+    // must hold the monitor of this; takes t out of the wheel if it is in it
+    private void remove(Timeout t) {
+        if (t.next != null) {
+            unlink(t);
+            wheeled--;
+        }
+    }
+
+    // must hold the monitor of this; moves the calls of a slot that turned over down the wheel
+    private void cascade(Timeout head) {
+        Timeout t = head.next;
+        head.prev = head.next = head;
+        while (t != head) {
+            Timeout next = t.next;
+            place(t);
+            t = next;
+        }
+    }
+
+    // must hold the monitor of this; puts t in the lowest level whose turn includes its deadline
+    private void place(Timeout t) {
+        long d = Math.max(t.deadline, tick); // tick itself when moved down as it falls due
+        for (int level = 0; level < LEVELS; level++) {
+            if ((d >>> (BITS * (level + 1))) == (tick >>> (BITS * (level + 1)))) {
+                insert(wheel[level][(int) ((d >>> (BITS * level)) & (SLOTS - 1))], t);
+                return;
+            }
+        }
+        // beyond the top level: wait in the next top slot to turn over, then be placed again
+        int top = BITS * (LEVELS - 1);
+        insert(wheel[LEVELS - 1][(int) (((tick >>> top) + 1) & (SLOTS - 1))], t);
+    }
+
+    private static void insert(Timeout head, Timeout t) {
+        t.prev = head.prev;
+        t.next = head;
+        head.prev.next = t;
+        head.prev = t;
+    }
+
+    private static void unlink(Timeout t) {
+        t.prev.next = t.next;
+        t.next.prev = t.prev;
+        t.prev = t.next = null;
+    }
+}
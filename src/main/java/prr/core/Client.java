@@ -2,61 +2,172 @@ package prr.core;
 
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Set;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import prr.core.exceptions.InvalidOperationException;
 
 public class Client {
+    private static final AtomicInteger NEXT_ORDINAL = new AtomicInteger();
+
     private String name;
     private final int taxNumber;
-    private Set<Client> friends = new HashSet<>();
+    private final int ordinal = NEXT_ORDINAL.getAndIncrement(); // dense index of this client
+    private volatile FriendSet friends = FriendSet.EMPTY; // replaced, never changed, under this monitor
     private List<Terminal> terminals = new ArrayList<>();
-    private int points;
+    private final AtomicInteger points = new AtomicInteger(); // always within 0 to 200
+    private volatile Network network; // set while registered in a Network
+    private final Ledger ledger = new Ledger();
 
     public Client(String name, int taxNumber, Terminal term) {
-        if (name == null || name.isEmpty() || !name.matches("\\d+") || name.length() > 40)
+        if (!validName(name))
             throw new InvalidOperationException("Invalid name");
         if (term == null)
             throw new InvalidOperationException("Invalid terminal");
 
         this.name = name;
         this.taxNumber = taxNumber;
-        this.points = 20;
+        this.points.set(20);
 
         terminals.add(term);
         term.setClient(this);
     }
 
+    // whether name is 1 to 40 digits 0-9, as required of a new client
+    static boolean validName(String name) {
+        if (name == null || name.isEmpty() || name.length() > 40)
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (ch < '0' || ch > '9')
+                return false;
+        }
+        return true;
+    }
+
+    // a client with no terminals, for state recovered from a journal or snapshot
+    private Client(String name, int taxNumber, int points) {
+        this.name = name;
+        this.taxNumber = taxNumber;
+        this.points.set(points);
+    }
+
+    static Client restore(String name, int taxNumber, int points, long charges, long payments) {
+        Client c = new Client(name, taxNumber, points);
+        c.ledger.restore(c.ledger.charges, charges);
+        c.ledger.restore(c.ledger.payments, payments);
+        return c;
+    }
+
     public void updateName(String n) {
         if (n == null || n.length() > 40)
             throw new InvalidOperationException("Invalid name");
         this.name = n;
+        Network net = network;
+        if (net != null)
+            net.nameUpdated(this, n);
     }
     public String getName() { return name; }
+    public final int getTaxNumber() { return taxNumber; }
+    final int getOrdinal() { return ordinal; }
 
     // updates the number of points of the client. It can be a positive or negative number.
     public void updatePoints(int p) {
-        int np = points + p;
-        if (np < 0 || np > 200)
+        if (tryUpdatePoints(p) != OperationResult.OK)
             throw new InvalidOperationException("Points out of range");
-        points = np;
     }
-    public int getPoints() { return points; }
+
+    // as updatePoints, returning INVALID_ARGUMENT when the points would leave 0 to 200
+    public OperationResult tryUpdatePoints(int p) {
+        while (true) {
+            int old = points.get();
+            int np = old + p;
+            if (np < 0 || np > 200)
+                return OperationResult.INVALID_ARGUMENT;
+            if (setPoints(old, np))
+                return OperationResult.OK;
+        }
+    }
+    public int getPoints() { return points.get(); }
+
+    // sets the points to value if they still are expected, telling the listeners
+    boolean setPoints(int expected, int value) {
+        if (!points.compareAndSet(expected, value))
+            return false;
+        Network net = network;
+        if (net != null && value != expected)
+            net.pointsUpdated(this, value - expected);
+        return true;
+    }
 
     public void addFriend(Client c) {
+        switch (tryAddFriend(c)) {
+            case INVALID_ARGUMENT:
+                throw new InvalidOperationException("Invalid friend");
+            case LIMIT_REACHED:
+                throw new InvalidOperationException("Friend limit reached");
+            default:
+                break;
+        }
+    }
+
+    // as addFriend, returning INVALID_ARGUMENT for null or this client and LIMIT_REACHED
+    // at the friend limit
+    public synchronized OperationResult tryAddFriend(Client c) {
         if (c == null || c == this)
-            throw new InvalidOperationException("Invalid friend");
+            return OperationResult.INVALID_ARGUMENT;
 
         int maxFriends = 5 * terminals.size() - 3;
         if (friends.size() >= maxFriends)
-            throw new InvalidOperationException("Friend limit reached");
+            return OperationResult.LIMIT_REACHED;
 
-        friends.add(c);
+        FriendSet old = friends;
+        friends = old.with(c);
+        if (friends != old && network != null)
+            network.friendAdded(this, c);
+        return OperationResult.OK;
     }
 
-    public boolean removeFriend(Client c) {
-        return friends.remove(c);
+    public synchronized boolean removeFriend(Client c) {
+        if (c == null)
+            return false;
+        FriendSet old = friends;
+        friends = old.without(c);
+        if (friends == old)
+            return false;
+        if (network != null)
+            network.friendRemoved(this, c);
+        return true;
+    }
+
+    // adds the given friends at once, skipping invalid ones and those over the friend limit.
+    // Returns how many were added.
+    synchronized int addFriends(List<Client> cs) {
+        int room = 5 * terminals.size() - 3 - friends.size();
+        List<Client> added = new ArrayList<>();
+        for (Client c : cs) {
+            if (added.size() >= room)
+                break;
+            if (c != null && c != this && !friends.contains(c) && !added.contains(c))
+                added.add(c);
+        }
+        if (added.isEmpty())
+            return 0;
+        friends = friends.withAll(added);
+        if (network != null)
+            for (Client c : added)
+                network.friendAdded(this, c);
+        return added.size();
+    }
+
+    // adds a friend recovered from a journal or snapshot, without the friend limit
+    synchronized void restoreFriend(Client c) {
+        friends = friends.with(c);
+    }
+
+    // the friends of this client
+    List<Client> getFriends() {
+        return friends.toList();
     }
 
     public boolean hasFriend(Client c) {
@@ -70,33 +181,83 @@ public class Client {
     public void addTerminal(Terminal terminal) {
         if (terminal == null)
             throw new InvalidOperationException("Null terminal");
-        if (terminals.size() >= 9)
-            throw new InvalidOperationException("Terminal limit reached n/9");
 
-        terminals.add(terminal);
-        terminal.setClient(this);
+        synchronized (this) {
+            if (terminals.size() >= 9)
+                throw new InvalidOperationException("Terminal limit reached n/9");
+            if (network != null)
+                network.indexTerminal(terminal);
+            terminals.add(terminal);
+            terminal.setClient(this);
+            if (network != null)
+                network.terminalAdded(this, terminal);
+        }
     }
 
+    // removes one of this client's terminals; false if it is not owned, is in a call or has a negative balance
     public boolean removeTerminal(Terminal terminal) {
-        if (!terminals.contains(terminal) && terminal.balance() < 0)
-            return false;
+        synchronized (this) {
+            if (!terminals.contains(terminal) || terminal.getMode() == TerminalMode.BUSY || balanceOf(terminal) < 0)
+                return false;
 
-        terminals.remove(terminal);
+            terminals.remove(terminal);
+            if (network != null) {
+                network.unindexTerminal(terminal);
+                network.terminalRemoved(this, terminal);
+            }
+        }
         return true;
     }
 
     // returns the number of terminals of this client
-    public int numberOfTerminals() {
+    public synchronized int numberOfTerminals() {
         return terminals.size();
     }
 
+    // returns a snapshot of the terminals of this client
+    public synchronized List<Terminal> getTerminals() {
+        return Collections.unmodifiableList(new ArrayList<>(terminals));
+    }
+
+    Network getNetwork() { return network; }
+    void setNetwork(Network n) { network = n; }
+
+    // live balance of this client in cents: what it owes, negative when in credit
+    public long balance() {
+        return ledger.read(ledger.charges) - ledger.read(ledger.payments);
+    }
+
+    // consistent balances of this client and its terminals, taken without blocking billing
+    public BillingSnapshot billingSnapshot() {
+        return billingSnapshot(getTerminals());
+    }
+
+    // as billingSnapshot, for the given terminals of this client
+    BillingSnapshot billingSnapshot(List<Terminal> ts) {
+        return ledger.snapshot(taxNumber, ts);
+    }
+
     // internal billing methods
-    void charge(double amount) {
-        // increase terminal debt via terminal internals
-        // find ongoing communication's terminal? Simplification: nothing
+    // charges the cost of a communication made by terminal t
+    void charge(Terminal t, long cents) {
+        ledger.post(t.getAccount(), cents, ledger.charges, cents);
     }
-    void credit(double amount) {
-        // receiver credit
+    // credits a payment made by terminal t
+    void credit(Terminal t, long cents) {
+        ledger.post(t.getAccount(), -cents, ledger.payments, cents);
+    }
+    // sets recovered balances before the client is in use
+    void restoreBalance(Terminal t, long cents) {
+        ledger.restore(t.getAccount(), cents);
+    }
+    long getCharges() {
+        return ledger.read(ledger.charges);
+    }
+    long getPayments() {
+        return ledger.read(ledger.payments);
+    }
+    // balance of one of this client's terminals
+    long balanceOf(Terminal t) {
+        return ledger.read(t.getAccount());
     }
 }
-
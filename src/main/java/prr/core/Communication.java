@@ -13,6 +13,10 @@ public class Communication {
     private int size; // for SMS: characters/100 round up; for VOICE: seconds
     private double cost;
     private boolean ended = false;
+    private final long start = System.currentTimeMillis();
+    private long end;
+    private boolean durationSet = false;
+    private volatile CallTimer.Timeout timeout; // while a CallTimer times this call
 
     private Communication(CommunicationType type, Terminal to, Terminal from) {
         this.type = type;
@@ -44,33 +48,62 @@ public class Communication {
         if (type != CommunicationType.VOICE)
             throw new InvalidInvocationException("duration only for voice");
         this.size = duration;
+        this.durationSet = true;
     }
 
     public Terminal to() { return to; }
     public Terminal from() { return from; }
+    public CommunicationType getType() { return type; }
+    public int getSize() { return size; }
+    public boolean isEnded() { return ended; }
+
+    // creation and end times, in milliseconds since the epoch
+    public long getStart() { return start; }
+    public long getEnd() { return end; }
 
     double computeCost() {
-        // cost in cents
-        if (size == 0) {
+        // cost in cents, from one reading of the points so that a concurrent update
+        // cannot mix two tiers. A terminal without a client, the stand-in for a caller
+        // of another partition (see PartitionNode), is rated there.
+        Client payer = from.getClient();
+        int points = (size == 0 || payer == null) ? 0 : payer.getPoints();
+        if (size == 0 || payer == null) {
             cost = 0;
         } else if (size < 10) {
-            cost = (from.getClient().getPoints() > 100) ? 1 : 2;
+            cost = (points > 100) ? 1 : 2;
         } else if (size < 120) {
-            if (from.getClient().getPoints() < 75) {
+            if (points < 75) {
                 cost = (type == CommunicationType.SMS) ? 6 : 12;
             } else {
                 if (type == CommunicationType.SMS) {
                     cost = 4;
                 } else {
-                    cost = (from.getClient().numberOfFriends() < 4) ? 8 : 5;
+                    cost = (payer.numberOfFriends() < 4) ? 8 : 5;
                 }
             }
         } else {
-            cost = (from.getClient().getPoints() < 150) ? 15 : 12;
+            cost = (points < 150) ? 15 : 12;
         }
         return cost;
     }
 
+    // ends this communication and returns its cost in cents
+    long end() {
+        CallTimer.Timeout t = timeout;
+        if (t != null) {
+            int seconds = t.stop();
+            if (!durationSet)
+                size = seconds;
+        }
+        long cents = (long) computeCost();
+        end = System.currentTimeMillis();
+        ended = true;
+        return cents;
+    }
+
+    CallTimer.Timeout getTimeout() { return timeout; }
+    void setTimeout(CallTimer.Timeout t) { timeout = t; }
+
     public double getCost() {
         if (!ended)
             throw new InvalidInvocationException("Cost only available after end");
@@ -0,0 +1,319 @@
+package prr.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Live figures of the communications made by each terminal and each
+ * client, per minute and per hour, fed by the network as communications
+ * end (register it with Network.addListener).
+ *
+ * Each granularity keeps a ring of the most recent buckets (60 minutes and
+ * 24 hours by default); a bucket maps terminal ordinals or client tax
+ * numbers to their counts in open addressing tables of primitives, and is
+ * cleared for reuse when the ring comes round, so memory stays bounded by
+ * the keys active in the retained buckets. Keys are spread over striped
+ * locks. A bucket also keeps its top talkers (clients by voice seconds)
+ * as counts grow, so queries never rescan: one bucket is a table lookup,
+ * a sliding window adds up at most one ring of buckets.
+ *
+ * Communications ending in buckets that already left the ring are dropped.
+ **/
+public class CommunicationAggregator implements NetworkListener {
+    private static final int SMS = 0, VOICE = 1, SIZE = 2, COST = 3, VOICE_SECONDS = 4, FIELDS = 5;
+    private static final int STRIPES = 16;
+
+    public enum Granularity {
+        MINUTE(60_000L), HOUR(3_600_000L);
+
+        final long millis;
+
+        Granularity(long millis) {
+            this.millis = millis;
+        }
+    }
+
+    /** Counts of one key over one or more buckets. **/
+    public static final class Figures {
+        private final int key;
+        private final long[] v;
+
+        Figures(int key, long[] v) {
+            this.key = key;
+            this.v = v;
+        }
+
+        // terminal ordinal or client tax number
+        public int key() { return key; }
+        public long sms() { return v[SMS]; }
+        public long voice() { return v[VOICE]; }
+        public long size() { return v[SIZE]; }
+        public long cost() { return v[COST]; }
+        public long voiceSeconds() { return v[VOICE_SECONDS]; }
+    }
+
+    private final Window[] terminals = new Window[2];
+    private final Window[] clients = new Window[2];
+    private final int topN;
+
+    public CommunicationAggregator() {
+        this(60, 24, 10);
+    }
+
+    // keeps the given number of minute and hour buckets, and topN talkers per bucket
+    public CommunicationAggregator(int minutes, int hours, int topN) {
+        if (minutes < 1 || hours < 1 || topN < 0)
+            throw new IllegalArgumentException("Invalid window sizes");
+        this.topN = topN;
+        terminals[0] = new Window(Granularity.MINUTE.millis, minutes, 0);
+        terminals[1] = new Window(Granularity.HOUR.millis, hours, 0);
+        clients[0] = new Window(Granularity.MINUTE.millis, minutes, topN);
+        clients[1] = new Window(Granularity.HOUR.millis, hours, topN);
+    }
+
+    @Override
+    public void communicationEnded(Communication c) {
+        Terminal from = c.from();
+        Client client = from.getClient();
+        add(from.getOrdinal(), (client != null) ? client.getTaxNumber() : -1, c.getType(), c.getSize(),
+            (long) c.getCost(), c.getEnd());
+    }
+
+    // counts a communication made by a terminal of a client at time (ms)
+    void add(int terminal, int taxNumber, CommunicationType type, int size, long cost, long time) {
+        for (int g = 0; g < 2; g++) {
+            if (terminal >= 0)
+                terminals[g].add(terminal, type, size, cost, time);
+            if (taxNumber >= 0)
+                clients[g].add(taxNumber, type, size, cost, time);
+        }
+    }
+
+    // figures of the bucket holding time; zero if there were none or the bucket is gone
+    public Figures ofTerminal(Terminal t, Granularity g, long time) {
+        return terminals[g.ordinal()].get(t.getOrdinal(), time, 1);
+    }
+
+    public Figures ofClient(Client c, Granularity g, long time) {
+        return clients[g.ordinal()].get(c.getTaxNumber(), time, 1);
+    }
+
+    // figures of the buckets buckets ending with the one holding time (a sliding window)
+    public Figures ofTerminal(Terminal t, Granularity g, long time, int buckets) {
+        return terminals[g.ordinal()].get(t.getOrdinal(), time, buckets);
+    }
+
+    public Figures ofClient(Client c, Granularity g, long time, int buckets) {
+        return clients[g.ordinal()].get(c.getTaxNumber(), time, buckets);
+    }
+
+    // the clients with the most voice seconds in the bucket holding time, most first
+    public List<Figures> topTalkers(Granularity g, long time) {
+        return clients[g.ordinal()].top(time, topN);
+    }
+
+    // updates dropped because their bucket had left the ring, counted per terminal and per client
+    public long dropped() {
+        long n = 0;
+        for (Window[] ws : new Window[][] {terminals, clients})
+            for (Window w : ws)
+                for (Stripe s : w.stripes)
+                    n += s.dropped();
+        return n;
+    }
+
+    private static int hash(int key) {
+        return key * 0x9E3779B9;
+    }
+
+    /** The buckets of one granularity, split in stripes by key. **/
+    private static final class Window {
+        final long width;
+        final int slots;
+        final Stripe[] stripes = new Stripe[STRIPES];
+
+        Window(long width, int slots, int topN) {
+            this.width = width;
+            this.slots = slots;
+            for (int i = 0; i < STRIPES; i++)
+                stripes[i] = new Stripe(slots, topN);
+        }
+
+        Stripe stripe(int key) {
+            return stripes[hash(key) >>> 28];
+        }
+
+        void add(int key, CommunicationType type, int size, long cost, long time) {
+            stripe(key).add(Math.floorDiv(time, width), key, type, size, cost);
+        }
+
+        Figures get(int key, long time, int buckets) {
+            long[] v = new long[FIELDS];
+            long last = Math.floorDiv(time, width);
+            stripe(key).sum(key, last - Math.min(buckets, slots) + 1, last, v);
+            return new Figures(key, v);
+        }
+
+        List<Figures> top(long time, int n) {
+            long epoch = Math.floorDiv(time, width);
+            List<Figures> all = new ArrayList<>();
+            for (Stripe s : stripes)
+                s.top(epoch, all);
+            all.sort((a, b) -> Long.compare(b.voiceSeconds(), a.voiceSeconds()));
+            return all.subList(0, Math.min(n, all.size()));
+        }
+    }
+
+    /** A ring of buckets for the keys of one stripe. **/
+    private static final class Stripe {
+        final Bucket[] ring;
+        private long dropped;
+
+        Stripe(int slots, int topN) {
+            ring = new Bucket[slots];
+            for (int i = 0; i < slots; i++)
+                ring[i] = new Bucket(topN);
+        }
+
+        synchronized void add(long epoch, int key, CommunicationType type, int size, long cost) {
+            Bucket b = ring[(int) Math.floorMod(epoch, (long) ring.length)];
+            if (b.epoch != epoch) {
+                if (b.epoch > epoch) {
+                    dropped++;
+                    return;
+                }
+                b.reset(epoch);
+            }
+            b.add(key, type, size, cost);
+        }
+
+        synchronized void sum(int key, long from, long to, long[] v) {
+            for (long e = from; e <= to; e++) {
+                Bucket b = ring[(int) Math.floorMod(e, (long) ring.length)];
+                if (b.epoch == e)
+                    b.sum(key, v);
+            }
+        }
+
+        synchronized void top(long epoch, List<Figures> out) {
+            Bucket b = ring[(int) Math.floorMod(epoch, (long) ring.length)];
+            if (b.epoch != epoch)
+                return;
+            for (int i = 0; i < b.topSize; i++) {
+                long[] v = new long[FIELDS];
+                b.sum(b.topKeys[i], v);
+                out.add(new Figures(b.topKeys[i], v));
+            }
+        }
+
+        synchronized long dropped() {
+            return dropped;
+        }
+    }
+
+    /** Counts per key of one bucket, in an open addressing table. **/
+    private static final class Bucket {
+        private static final int MIN_CAPACITY = 16;
+
+        long epoch = Long.MIN_VALUE;
+        private int[] keys = new int[MIN_CAPACITY];
+        private boolean[] used = new boolean[MIN_CAPACITY];
+        private long[] values = new long[MIN_CAPACITY * FIELDS];
+        private int size;
+        final int[] topKeys;
+        int topSize;
+
+        Bucket(int topN) {
+            topKeys = new int[topN];
+        }
+
+        void reset(long e) {
+            epoch = e;
+            if (keys.length > MIN_CAPACITY && size * 8 < keys.length) { // shrinks after a busy period
+                int cap = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, size)) * 4);
+                keys = new int[cap];
+                used = new boolean[cap];
+                values = new long[cap * FIELDS];
+            } else {
+                Arrays.fill(used, false);
+                Arrays.fill(values, 0);
+            }
+            size = 0;
+            topSize = 0;
+        }
+
+        private int slot(int key) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (used[i] && keys[i] != key)
+                i = (i + 1) & mask;
+            return i;
+        }
+
+        void add(int key, CommunicationType type, int size, long cost) {
+            int i = slot(key);
+            if (!used[i]) {
+                if (this.size * 2 >= keys.length) {
+                    grow();
+                    i = slot(key);
+                }
+                used[i] = true;
+                keys[i] = key;
+                this.size++;
+            }
+            int at = i * FIELDS;
+            values[at + (type == CommunicationType.SMS ? SMS : VOICE)]++;
+            values[at + SIZE] += size;
+            values[at + COST] += cost;
+            if (type == CommunicationType.VOICE) {
+                values[at + VOICE_SECONDS] += size;
+                offerTop(key, values[at + VOICE_SECONDS]);
+            }
+        }
+
+        // counts only grow, so the top keys stay exact by offering each key as it grows
+        private void offerTop(int key, long seconds) {
+            int min = -1;
+            long minSeconds = Long.MAX_VALUE;
+            for (int i = 0; i < topSize; i++) {
+                if (topKeys[i] == key)
+                    return;
+                long s = values[slot(topKeys[i]) * FIELDS + VOICE_SECONDS];
+                if (s < minSeconds) {
+                    minSeconds = s;
+                    min = i;
+                }
+            }
+            if (topSize < topKeys.length)
+                topKeys[topSize++] = key;
+            else if (min >= 0 && seconds > minSeconds)
+                topKeys[min] = key;
+        }
+
+        void sum(int key, long[] v) {
+            int i = slot(key);
+            if (!used[i])
+                return;
+            for (int f = 0; f < FIELDS; f++)
+                v[f] += values[i * FIELDS + f];
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            boolean[] oldUsed = used;
+            long[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            values = new long[oldValues.length * 2];
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (!oldUsed[j])
+                    continue;
+                int i = slot(oldKeys[j]);
+                used[i] = true;
+                keys[i] = oldKeys[j];
+                System.arraycopy(oldValues, j * FIELDS, values, i * FIELDS, FIELDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package prr.core;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable set of the friends of a client.
+ *
+ * Friends are kept as the sorted ordinals of the clients, with the clients
+ * themselves in the same order, plus a 64 bit Bloom filter of the ordinals.
+ * A lookup reads the filter and, only when it may match, binary searches
+ * the ordinals: no hashing, boxing or allocation. Clients have at most 42
+ * friends, so changes simply copy the arrays.
+ **/
+final class FriendSet {
+    static final FriendSet EMPTY = new FriendSet(new int[0], new Client[0], 0L);
+
+    private final int[] ordinals;
+    private final Client[] clients;
+    private final long bloom;
+
+    private FriendSet(int[] ordinals, Client[] clients, long bloom) {
+        this.ordinals = ordinals;
+        this.clients = clients;
+        this.bloom = bloom;
+    }
+
+    private static long bit(int ordinal) {
+        return 1L << ((ordinal * 0x9E3779B9) >>> 26);
+    }
+
+    boolean contains(Client c) {
+        if (c == null)
+            return false;
+        int o = c.getOrdinal();
+        return (bloom & bit(o)) != 0 && Arrays.binarySearch(ordinals, o) >= 0;
+    }
+
+    int size() {
+        return ordinals.length;
+    }
+
+    // this set plus c, or this set if c is already in it
+    FriendSet with(Client c) {
+        int o = c.getOrdinal();
+        int at = Arrays.binarySearch(ordinals, o);
+        if (at >= 0)
+            return this;
+        at = -at - 1;
+        int n = ordinals.length;
+        int[] os = new int[n + 1];
+        Client[] cs = new Client[n + 1];
+        System.arraycopy(ordinals, 0, os, 0, at);
+        System.arraycopy(clients, 0, cs, 0, at);
+        os[at] = o;
+        cs[at] = c;
+        System.arraycopy(ordinals, at, os, at + 1, n - at);
+        System.arraycopy(clients, at, cs, at + 1, n - at);
+        return new FriendSet(os, cs, bloom | bit(o));
+    }
+
+    // this set plus the given clients, none of which is in it, in one copy
+    FriendSet withAll(List<Client> cs) {
+        Client[] added = cs.toArray(new Client[0]);
+        Arrays.sort(added, (a, b) -> Integer.compare(a.getOrdinal(), b.getOrdinal()));
+        int n = ordinals.length, m = added.length;
+        int[] os = new int[n + m];
+        Client[] merged = new Client[n + m];
+        long b = bloom;
+        for (int i = 0, j = 0, k = 0; k < n + m; k++) {
+            if (j == m || (i < n && ordinals[i] < added[j].getOrdinal())) {
+                os[k] = ordinals[i];
+                merged[k] = clients[i++];
+            } else {
+                os[k] = added[j].getOrdinal();
+                merged[k] = added[j++];
+                b |= bit(os[k]);
+            }
+        }
+        return new FriendSet(os, merged, b);
+    }
+
+    // this set without c, or this set if c is not in it
+    FriendSet without(Client c) {
+        int at = Arrays.binarySearch(ordinals, c.getOrdinal());
+        if (at < 0)
+            return this;
+        int n = ordinals.length - 1;
+        if (n == 0)
+            return EMPTY;
+        int[] os = new int[n];
+        Client[] cs = new Client[n];
+        System.arraycopy(ordinals, 0, os, 0, at);
+        System.arraycopy(clients, 0, cs, 0, at);
+        System.arraycopy(ordinals, at + 1, os, at, n - at);
+        System.arraycopy(clients, at + 1, cs, at, n - at);
+        long b = 0;
+        for (int o : os)
+            b |= bit(o);
+        return new FriendSet(os, cs, b);
+    }
+
+    List<Client> toList() {
+        return List.of(clients);
+    }
+}
@@ -0,0 +1,63 @@
+package prr.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values in power of two buckets:
+ * bucket 0 counts zeros and bucket i values in [2^(i-1), 2^i). Recording
+ * is a few atomic adds and allocates nothing; percentiles are the upper
+ * bound of the bucket they fall in, so within a factor of two.
+ **/
+public final class Histogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    static int bucket(long value) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    // records value; negative values count as zero
+    public void record(long value) {
+        long v = Math.max(0, value);
+        buckets.getAndIncrement(bucket(v));
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    public long count() {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            n += buckets.get(i);
+        return n;
+    }
+
+    public long sum() { return sum.sum(); }
+    public long max() { return max.get(); }
+
+    // count of bucket i
+    public long bucketCount(int i) {
+        return buckets.get(i);
+    }
+
+    // an upper bound of the value below which the fraction q (0 to 1) of the records fall
+    public long percentile(double q) {
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            n += counts[i] = buckets.get(i);
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        for (int i = 0; i < BUCKETS; i++) {
+            rank -= counts[i];
+            if (rank <= 0)
+                return Math.min(max(), (i == 0) ? 0 : (i == 63) ? Long.MAX_VALUE : (1L << i) - 1);
+        }
+        return max();
+    }
+}
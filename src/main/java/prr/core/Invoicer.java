@@ -0,0 +1,323 @@
+package prr.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Stream;
+
+/**
+ * Month-end invoicing: the balance of every client of a network, with
+ * debtors and creditors reported in order of the amount owed or in credit.
+ *
+ * Balances come from Client.billingSnapshot, a consistent cut of each
+ * client and its terminals that neither waits for nor blocks live calls
+ * (Terminal.balance refuses BUSY terminals). Clients are snapshot in
+ * parallel with fork/join in slices of runRecords; each slice sorts its
+ * debtors and its creditors and spills them to run files. The runs are
+ * then merged, fanIn at a time, so memory holds at most one slice per
+ * worker and one buffered record per merged run, however many clients.
+ *
+ * The reports are text files with one client per line,
+ *
+ *   taxNumber,balance,charges,payments
+ *
+ * in cents, largest amount first, ties by tax number, after a '#' header.
+ **/
+public class Invoicer {
+    private static final Comparator<Entry> ORDER = Comparator
+        .comparingLong((Entry e) -> -Math.abs(e.balance))
+        .thenComparingInt(e -> e.taxNumber);
+
+    private final Network network;
+    private final int runRecords;
+    private final int fanIn;
+
+    /** Outcome of an invoicing run. **/
+    public static final class Report {
+        private final Path debtors, creditors;
+        private final long clients, debtorCount, creditorCount, totalDebt, totalCredit, runs, nanos;
+
+        Report(Path debtors, Path creditors, long clients, long debtorCount, long creditorCount,
+               long totalDebt, long totalCredit, long runs, long nanos) {
+            this.debtors = debtors;
+            this.creditors = creditors;
+            this.clients = clients;
+            this.debtorCount = debtorCount;
+            this.creditorCount = creditorCount;
+            this.totalDebt = totalDebt;
+            this.totalCredit = totalCredit;
+            this.runs = runs;
+            this.nanos = nanos;
+        }
+
+        public Path getDebtors() { return debtors; }
+        public Path getCreditors() { return creditors; }
+        public long getClients() { return clients; }
+        public long getDebtorCount() { return debtorCount; }
+        public long getCreditorCount() { return creditorCount; }
+        // what the debtors owe, in cents
+        public long getTotalDebt() { return totalDebt; }
+        // what the creditors are owed, in cents (positive)
+        public long getTotalCredit() { return totalCredit; }
+        // sorted runs spilled before merging
+        public long getRuns() { return runs; }
+        public long getNanos() { return nanos; }
+
+        @Override
+        public String toString() {
+            return String.format("%d clients: %d debtors owing %d, %d creditors owed %d, %d runs in %.1f ms",
+                                 clients, debtorCount, totalDebt, creditorCount, totalCredit, runs, nanos / 1e6);
+        }
+    }
+
+    /** Balance of one client, as stored in a run. **/
+    private static final class Entry {
+        final long balance, charges, payments;
+        final int taxNumber;
+
+        Entry(int taxNumber, long balance, long charges, long payments) {
+            this.taxNumber = taxNumber;
+            this.balance = balance;
+            this.charges = charges;
+            this.payments = payments;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(taxNumber);
+            out.writeLong(balance);
+            out.writeLong(charges);
+            out.writeLong(payments);
+        }
+
+        // the next entry of a run, or null at its end
+        static Entry read(DataInputStream in) throws IOException {
+            int tax;
+            try {
+                tax = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            return new Entry(tax, in.readLong(), in.readLong(), in.readLong());
+        }
+    }
+
+    /** Runs written by a slice and its totals. **/
+    private static final class Runs {
+        final List<Path> debtors = new ArrayList<>(), creditors = new ArrayList<>();
+        long clients, totalDebt, totalCredit;
+
+        Runs add(Runs r) {
+            debtors.addAll(r.debtors);
+            creditors.addAll(r.creditors);
+            clients += r.clients;
+            totalDebt += r.totalDebt;
+            totalCredit += r.totalCredit;
+            return this;
+        }
+    }
+
+    public Invoicer(Network network) {
+        this(network, 16384, 64);
+    }
+
+    // sorts runRecords clients at a time in memory and merges fanIn runs at a time
+    public Invoicer(Network network, int runRecords, int fanIn) {
+        if (network == null || runRecords < 1 || fanIn < 2)
+            throw new IllegalArgumentException("Invalid invoicer arguments");
+        this.network = network;
+        this.runRecords = runRecords;
+        this.fanIn = fanIn;
+    }
+
+    // writes debtors.csv and creditors.csv into directory, on the common pool
+    public Report run(Path directory) throws IOException {
+        return run(directory, ForkJoinPool.commonPool());
+    }
+
+    public Report run(Path directory, ForkJoinPool pool) throws IOException {
+        long started = System.nanoTime();
+        Files.createDirectories(directory);
+        Path work = Files.createTempDirectory(directory, "runs");
+        try {
+            Client[] clients = network.getClients().toArray(new Client[0]);
+            Runs runs;
+            try {
+                runs = pool.invoke(new Slice(clients, 0, clients.length, work));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            Path debtors = directory.resolve("debtors.csv"), creditors = directory.resolve("creditors.csv");
+            long nd = report(runs.debtors, work, debtors);
+            long nc = report(runs.creditors, work, creditors);
+            return new Report(debtors, creditors, runs.clients, nd, nc, runs.totalDebt, runs.totalCredit,
+                              runs.debtors.size() + runs.creditors.size(), System.nanoTime() - started);
+        } finally {
+            try (Stream<Path> left = Files.list(work)) { // the last runs, or all of them after a failure
+                for (Iterator<Path> it = left.iterator(); it.hasNext(); )
+                    Files.deleteIfExists(it.next());
+            }
+            Files.deleteIfExists(work);
+        }
+    }
+
+    // merges runs into the text report target; returns the number of clients in it
+    private long report(List<Path> runs, Path work, Path target) throws IOException {
+        List<Path> level = runs;
+        while (level.size() > fanIn) {
+            List<Path> next = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += fanIn) {
+                List<Path> group = level.subList(i, Math.min(level.size(), i + fanIn));
+                Path merged = Files.createTempFile(work, "merge", ".run");
+                try (DataOutputStream out = new DataOutputStream(
+                         new BufferedOutputStream(Files.newOutputStream(merged)))) {
+                    merge(group, e -> e.write(out));
+                }
+                for (Path p : group)
+                    Files.delete(p);
+                next.add(merged);
+            }
+            level = next;
+        }
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        long n;
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.US_ASCII)) {
+            out.write("# taxNumber,balance,charges,payments\n");
+            n = merge(level, e -> {
+                out.write(Integer.toString(e.taxNumber));
+                out.write(',');
+                out.write(Long.toString(e.balance));
+                out.write(',');
+                out.write(Long.toString(e.charges));
+                out.write(',');
+                out.write(Long.toString(e.payments));
+                out.write('\n');
+            });
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return n;
+    }
+
+    private interface Sink {
+        void accept(Entry e) throws IOException;
+    }
+
+    /** A run being merged and its smallest unmerged entry. **/
+    private static final class Cursor {
+        final DataInputStream in;
+        Entry head;
+
+        Cursor(DataInputStream in) throws IOException {
+            this.in = in;
+            head = Entry.read(in);
+        }
+    }
+
+    // k-way merge of sorted runs; returns the number of entries
+    private static long merge(List<Path> runs, Sink sink) throws IOException {
+        PriorityQueue<Cursor> heap = new PriorityQueue<>(Math.max(1, runs.size()),
+                                                         (a, b) -> ORDER.compare(a.head, b.head));
+        List<Cursor> open = new ArrayList<>(runs.size());
+        long n = 0;
+        try {
+            for (Path p : runs) {
+                Cursor c = new Cursor(new DataInputStream(new BufferedInputStream(Files.newInputStream(p))));
+                open.add(c);
+                if (c.head != null)
+                    heap.add(c);
+            }
+            Cursor c;
+            while ((c = heap.poll()) != null) {
+                sink.accept(c.head);
+                n++;
+                c.head = Entry.read(c.in);
+                if (c.head != null)
+                    heap.add(c);
+            }
+        } finally {
+            for (Cursor c : open)
+                c.in.close();
+        }
+        return n;
+    }
+
+    private final class Slice extends RecursiveTask<Runs> {
+        private final Client[] clients;
+        private final int from, to;
+        private final Path work;
+
+        Slice(Client[] clients, int from, int to, Path work) {
+            this.clients = clients;
+            this.from = from;
+            this.to = to;
+            this.work = work;
+        }
+
+        @Override
+        protected Runs compute() {
+            if (to - from <= runRecords) {
+                try {
+                    return spill();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            int mid = (from + to) >>> 1;
+            Slice left = new Slice(clients, from, mid, work);
+            left.fork();
+            Runs right = new Slice(clients, mid, to, work).compute();
+            return left.join().add(right);
+        }
+
+        // snapshots the slice and writes its sorted debtors and creditors
+        private Runs spill() throws IOException {
+            Runs runs = new Runs();
+            Entry[] debtors = new Entry[to - from], creditors = new Entry[to - from];
+            int nd = 0, nc = 0;
+            for (int i = from; i < to; i++) {
+                BillingSnapshot s = clients[i].billingSnapshot();
+                Entry e = new Entry(s.getTaxNumber(), s.balance(), s.getCharges(), s.getPayments());
+                if (e.balance > 0) {
+                    debtors[nd++] = e;
+                    runs.totalDebt += e.balance;
+                } else if (e.balance < 0) {
+                    creditors[nc++] = e;
+                    runs.totalCredit -= e.balance;
+                }
+            }
+            runs.clients = to - from;
+            if (nd > 0)
+                runs.debtors.add(write(debtors, nd));
+            if (nc > 0)
+                runs.creditors.add(write(creditors, nc));
+            return runs;
+        }
+
+        private Path write(Entry[] entries, int n) throws IOException {
+            Arrays.sort(entries, 0, n, ORDER);
+            Path run = Files.createTempFile(work, "slice", ".run");
+            try (DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(Files.newOutputStream(run)))) {
+                for (int i = 0; i < n; i++)
+                    entries[i].write(out);
+            }
+            return run;
+        }
+    }
+}
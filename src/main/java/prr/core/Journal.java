@@ -0,0 +1,326 @@
+package prr.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write-ahead journal of the state changes of a network.
+ *
+ * Every change reported to the journal as a NetworkListener is appended to
+ * a memory-mapped log segment: writers reserve their place with one atomic
+ * add and copy the record in, writing its length last so that a reader
+ * never sees half a record. Each record carries a CRC32C of its body, and
+ * recovery stops at the first record that does not match it, since the
+ * pages of a mapped segment may reach the disk in any order. A background
+ * thread forces the log to disk every syncMillis (group commit); sync()
+ * waits for the next force.
+ *
+ * checkpoint() starts a new segment and folds the closed segments into a
+ * compact snapshot of the whole state. The snapshot is forced to disk and
+ * renamed into place, and the directory forced, before the segments it
+ * covers are deleted. recover()
+ * loads the latest snapshot, replays the segments written after it in
+ * parallel and returns the rebuilt network, journaling further changes.
+ *
+ * Calls in progress are not kept: terminals come back in the mode they
+ * had before the call.
+ **/
+public class Journal implements NetworkListener, AutoCloseable {
+    private static final int MAX_RECORD = 1 << 12;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final Object flushLock = new Object();
+    private final ThreadLocal<ByteBuffer> scratch = ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_RECORD));
+    private final ScheduledExecutorService background;
+    private volatile Segment current;
+    private int snapshotSegment; // the first segment not covered by the latest snapshot
+
+    private static final class Segment {
+        final int number;
+        final MappedByteBuffer buffer;
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger writers = new AtomicInteger();
+        volatile int forced;
+
+        Segment(int number, MappedByteBuffer buffer) {
+            this.number = number;
+            this.buffer = buffer;
+        }
+    }
+
+    private Journal(Path directory, int segmentBytes, long syncMillis, long checkpointMillis) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        TreeMap<Integer, Path> segments = list("journal-", ".log");
+        TreeMap<Integer, Path> snapshots = list("snapshot-", ".bin");
+        snapshotSegment = snapshots.isEmpty() ? 0 : snapshots.lastKey();
+        int next = Math.max(snapshotSegment, segments.isEmpty() ? 0 : segments.lastKey() + 1);
+        current = create(next);
+
+        background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "journal-" + directory.getFileName());
+            t.setDaemon(true);
+            return t;
+        });
+        if (syncMillis > 0)
+            background.scheduleWithFixedDelay(this::sync, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        if (checkpointMillis > 0)
+            background.scheduleWithFixedDelay(() -> {
+                try {
+                    checkpoint();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, checkpointMillis, checkpointMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // opens the journal in directory with 64MB segments, forcing every 10ms and never checkpointing by itself
+    public static Journal open(Path directory) throws IOException {
+        return open(directory, 64 << 20, 10, 0);
+    }
+
+    public static Journal open(Path directory, int segmentBytes, long syncMillis, long checkpointMillis)
+            throws IOException {
+        if (segmentBytes < MAX_RECORD * 2)
+            throw new IllegalArgumentException("Segment too small");
+        return new Journal(directory, segmentBytes, syncMillis, checkpointMillis);
+    }
+
+    // rebuilds the journaled network, replaying with the given number of threads
+    public Network recover(int threads) throws IOException {
+        JournalImage image = load(current.number, threads);
+        Network network = image.toNetwork();
+        network.addListener(this);
+        return network;
+    }
+
+    public Network recover() throws IOException {
+        return recover(Runtime.getRuntime().availableProcessors());
+    }
+
+    // starts a new segment and replaces the closed ones by a snapshot
+    public synchronized void checkpoint() throws IOException {
+        Segment closed = current;
+        roll(closed);
+        while (closed.writers.get() != 0)
+            Thread.onSpinWait();
+        closed.buffer.force();
+
+        int upTo = closed.number + 1;
+        JournalImage image = load(upTo, Runtime.getRuntime().availableProcessors());
+        image.writeSnapshot(directory.resolve(name("snapshot-", upTo, ".bin"))); // durable before anything is deleted
+        int old = snapshotSegment;
+        snapshotSegment = upTo;
+        Files.deleteIfExists(directory.resolve(name("snapshot-", old, ".bin")));
+        for (int n : list("journal-", ".log").headMap(upTo).keySet())
+            Files.deleteIfExists(directory.resolve(name("journal-", n, ".log")));
+    }
+
+    // waits until everything written so far is on disk; concurrent callers share one force
+    public void sync() {
+        Segment s = current;
+        int upTo = Math.min(s.next.get(), segmentBytes);
+        synchronized (flushLock) {
+            if (s.forced >= upTo)
+                return;
+            upTo = Math.min(s.next.get(), segmentBytes);
+            s.buffer.force();
+            s.forced = upTo;
+        }
+    }
+
+    @Override
+    public void close() {
+        background.shutdown();
+        try {
+            background.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+    }
+
+    // state of the snapshot and log segments before segment upTo
+    private JournalImage load(int upTo, int threads) throws IOException {
+        Path snapshot = directory.resolve(name("snapshot-", snapshotSegment, ".bin"));
+        JournalImage image = Files.exists(snapshot) ? JournalImage.readSnapshot(snapshot) : new JournalImage();
+        List<ByteBuffer> buffers = new ArrayList<>();
+        List<Integer> numbers = new ArrayList<>();
+        for (Map.Entry<Integer, Path> e : list("journal-", ".log").subMap(snapshotSegment, upTo).entrySet()) {
+            try (FileChannel ch = FileChannel.open(e.getValue(), StandardOpenOption.READ)) {
+                buffers.add(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+            }
+            numbers.add(e.getKey());
+        }
+        image.apply(buffers, numbers, Math.max(1, threads));
+        return image;
+    }
+
+    // ---- NetworkListener ----
+
+    @Override
+    public void clientRegistered(Client c) {
+        ByteBuffer b = begin(JournalImage.CLIENT);
+        b.putInt(c.getTaxNumber()).putInt(c.getPoints()).putLong(c.getCharges()).putLong(c.getPayments());
+        putString(b, c.getName());
+        append(b);
+        for (Terminal t : c.getTerminals())
+            terminalAdded(c, t);
+        for (Client f : c.getFriends())
+            friendAdded(c, f);
+    }
+
+    @Override
+    public void clientRemoved(Client c) {
+        append(begin(JournalImage.CLIENT_REMOVED).putInt(c.getTaxNumber()));
+    }
+
+    @Override
+    public void terminalAdded(Client c, Terminal t) {
+        ByteBuffer b = begin(JournalImage.TERMINAL_ADDED);
+        b.putInt(c.getTaxNumber()).putInt(t.getOrdinal()).put((byte) t.getIdleMode().ordinal());
+        b.putLong(c.balanceOf(t));
+        putString(b, t.getId());
+        append(b);
+    }
+
+    @Override
+    public void terminalRemoved(Client c, Terminal t) {
+        append(begin(JournalImage.TERMINAL_REMOVED).putInt(c.getTaxNumber()).putInt(t.getOrdinal()));
+    }
+
+    @Override
+    public void modeChanged(Terminal t, TerminalMode previous, TerminalMode mode) {
+        if (previous == TerminalMode.BUSY || mode == TerminalMode.BUSY)
+            return; // calls are not recovered
+        append(begin(JournalImage.MODE).putInt(t.getOrdinal()).put((byte) mode.ordinal()));
+    }
+
+    @Override
+    public void paid(Terminal t, int amount) {
+        append(begin(JournalImage.PAY).putInt(t.getOrdinal()).putInt(amount));
+    }
+
+    @Override
+    public void communicationEnded(Communication c) {
+        long cents = (long) c.getCost();
+        if (cents != 0)
+            append(begin(JournalImage.CHARGE).putInt(c.from().getOrdinal()).putLong(cents));
+    }
+
+    @Override
+    public void pointsUpdated(Client c, int delta) {
+        append(begin(JournalImage.POINTS).putInt(c.getTaxNumber()).putInt(delta));
+    }
+
+    @Override
+    public void nameUpdated(Client c, String name) {
+        ByteBuffer b = begin(JournalImage.NAME).putInt(c.getTaxNumber());
+        putString(b, name);
+        append(b);
+    }
+
+    @Override
+    public void friendAdded(Client c, Client friend) {
+        append(begin(JournalImage.FRIEND_ADDED).putInt(c.getTaxNumber()).putInt(friend.getTaxNumber()));
+    }
+
+    @Override
+    public void friendRemoved(Client c, Client friend) {
+        append(begin(JournalImage.FRIEND_REMOVED).putInt(c.getTaxNumber()).putInt(friend.getTaxNumber()));
+    }
+
+    // ---- log writing ----
+
+    private ByteBuffer begin(byte op) {
+        ByteBuffer b = scratch.get();
+        b.clear();
+        b.putInt(0).putInt(0).put(op); // length and checksum, set by append
+        return b;
+    }
+
+    private static void putString(ByteBuffer b, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        b.putShort((short) bytes.length).put(bytes);
+    }
+
+    private void append(ByteBuffer record) {
+        int len = record.position();
+        while (true) {
+            Segment s = current;
+            s.writers.incrementAndGet();
+            int pos = s.next.getAndAdd(len);
+            if (pos >= 0 && pos + len + 4 <= segmentBytes) { // keeps room for a zero length at the end
+                MappedByteBuffer out = s.buffer;
+                record.putInt(4, JournalImage.checksum(record, 8, len));
+                for (int i = 4; i < len; i++)
+                    out.put(pos + i, record.get(i));
+                out.putInt(pos, len - 4);
+                s.writers.decrementAndGet();
+                return;
+            }
+            s.writers.decrementAndGet();
+            roll(s);
+        }
+    }
+
+    // replaces a full segment by the next one
+    private void roll(Segment full) {
+        synchronized (flushLock) {
+            if (current != full)
+                return;
+            try {
+                current = create(full.number + 1);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            full.next.set(segmentBytes); // late writers now move to the new segment
+        }
+        while (full.writers.get() != 0)
+            Thread.onSpinWait();
+        full.buffer.force();
+    }
+
+    private Segment create(int number) throws IOException {
+        Path file = directory.resolve(name("journal-", number, ".log"));
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE)) {
+            Segment s = new Segment(number, ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+            JournalImage.forceDirectory(directory); // so that forcing the segment keeps its records
+            return s;
+        }
+    }
+
+    private TreeMap<Integer, Path> list(String prefix, String suffix) throws IOException {
+        TreeMap<Integer, Path> found = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path f : files) {
+                String n = f.getFileName().toString();
+                found.put(Integer.parseInt(n.substring(prefix.length(), n.length() - suffix.length())), f);
+            }
+        }
+        return found;
+    }
+
+    private static String name(String prefix, int number, String suffix) {
+        return String.format("%s%010d%s", prefix, number, suffix);
+    }
+}
@@ -0,0 +1,359 @@
+package prr.core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+
+/**
+ * State of a network as rebuilt from a journal: a snapshot plus the log
+ * records written after it.
+ *
+ * Records are applied in two passes. The structural records (clients and
+ * terminals joining and leaving) are applied in log order by one thread.
+ * The other records only touch one terminal or one client, so they are
+ * split by key and applied by several threads, each reading the log in
+ * order. A record written before its terminal or client last joined is
+ * already part of the state given when joining and is skipped.
+ *
+ * A log record is its length (int), the CRC32C of its body (int) and its
+ * body, the operation then its fields. A segment is read up to its first
+ * record whose checksum does not match.
+ **/
+class JournalImage {
+    static final byte CLIENT = 1, CLIENT_REMOVED = 2, TERMINAL_ADDED = 3, TERMINAL_REMOVED = 4;
+    static final byte MODE = 5, PAY = 6, CHARGE = 7, POINTS = 8, FRIEND_ADDED = 9, FRIEND_REMOVED = 10;
+    static final byte NAME = 11;
+
+    private static final int SNAPSHOT_MAGIC = 0x50525253; // "PRRS"
+    private static final TerminalMode[] MODES = TerminalMode.values();
+
+    static final class ClientState {
+        final int taxNumber;
+        String name;
+        int points;
+        final AtomicLong charges = new AtomicLong();
+        final AtomicLong payments = new AtomicLong();
+        final Set<Integer> friends = new LinkedHashSet<>();
+        final List<Integer> terminals = new ArrayList<>();
+        final long since; // log position of the record that created this state
+
+        ClientState(int taxNumber, long since) {
+            this.taxNumber = taxNumber;
+            this.since = since;
+        }
+    }
+
+    static final class TerminalState {
+        final int ordinal;
+        final int taxNumber;
+        final String id;
+        TerminalMode mode;
+        long balance;
+        final long since;
+
+        TerminalState(int ordinal, int taxNumber, String id, long since) {
+            this.ordinal = ordinal;
+            this.taxNumber = taxNumber;
+            this.id = id;
+            this.since = since;
+        }
+    }
+
+    final Map<Integer, ClientState> clients = new HashMap<>();
+    final Map<Integer, TerminalState> terminals = new HashMap<>();
+    int ordinalLimit;
+
+    // applies the records of a log segment; number gives the segment's place in the log
+    void apply(List<ByteBuffer> logs, List<Integer> numbers, int threads) {
+        List<ByteBuffer> segments = new ArrayList<>();
+        for (ByteBuffer log : logs)
+            segments.add(log.duplicate().limit(intact(log)));
+        for (int i = 0; i < segments.size(); i++)
+            applyStructural(segments.get(i).duplicate(), (long) numbers.get(i) << 32);
+        IntStream.range(0, threads).parallel().forEach(p -> {
+            for (int i = 0; i < segments.size(); i++)
+                applyValues(segments.get(i).duplicate(), (long) numbers.get(i) << 32, p, threads);
+        });
+    }
+
+    // the end of the records of a log segment that are whole and match their checksum
+    private static int intact(ByteBuffer log) {
+        int pos = 0;
+        while (pos + 4 <= log.limit()) {
+            int len = log.getInt(pos);
+            if (len <= 4 || pos + 4 + len > log.limit() || log.getInt(pos + 4) != checksum(log, pos + 8, pos + 4 + len))
+                break;
+            pos += 4 + len;
+        }
+        return pos;
+    }
+
+    // CRC32C of the bytes of b from from to to (excluded)
+    static int checksum(ByteBuffer b, int from, int to) {
+        CRC32C crc = new CRC32C();
+        crc.update(b.duplicate().limit(to).position(from));
+        return (int) crc.getValue();
+    }
+
+    private void applyStructural(ByteBuffer log, long base) {
+        for (int pos = 0; pos + 4 <= log.limit(); ) {
+            int len = log.getInt(pos);
+            if (len <= 0)
+                return;
+            log.position(pos + 8);
+            long at = base | pos;
+            switch (log.get()) {
+                case CLIENT: {
+                    ClientState c = new ClientState(log.getInt(), at);
+                    c.points = log.getInt();
+                    c.charges.set(log.getLong());
+                    c.payments.set(log.getLong());
+                    c.name = getString(log);
+                    removeClient(c.taxNumber);
+                    clients.put(c.taxNumber, c);
+                    break;
+                }
+                case CLIENT_REMOVED:
+                    removeClient(log.getInt());
+                    break;
+                case TERMINAL_ADDED: {
+                    int tax = log.getInt(), ordinal = log.getInt();
+                    TerminalMode mode = MODES[log.get()];
+                    long balance = log.getLong();
+                    TerminalState t = new TerminalState(ordinal, tax, getString(log), at);
+                    t.mode = mode;
+                    t.balance = balance;
+                    TerminalState old = terminals.put(ordinal, t);
+                    if (old != null)
+                        detach(old);
+                    ClientState c = clients.get(tax);
+                    if (c != null)
+                        c.terminals.add(ordinal);
+                    ordinalLimit = Math.max(ordinalLimit, ordinal + 1);
+                    break;
+                }
+                case TERMINAL_REMOVED: {
+                    log.getInt();
+                    TerminalState t = terminals.remove(log.getInt());
+                    if (t != null)
+                        detach(t);
+                    break;
+                }
+                default:
+                    break;
+            }
+            pos += 4 + len;
+        }
+    }
+
+    private void applyValues(ByteBuffer log, long base, int partition, int partitions) {
+        for (int pos = 0; pos + 4 <= log.limit(); ) {
+            int len = log.getInt(pos);
+            if (len <= 0)
+                return;
+            log.position(pos + 8);
+            long at = base | pos;
+            byte op = log.get();
+            if (op >= MODE) { // keyed by terminal ordinal or client tax number
+                int key = log.getInt();
+                if (Math.floorMod(key, partitions) == partition)
+                    applyValue(op, key, log, at);
+            }
+            pos += 4 + len;
+        }
+    }
+
+    private void applyValue(byte op, int key, ByteBuffer log, long at) {
+        if (op == MODE || op == PAY || op == CHARGE) {
+            TerminalState t = terminals.get(key);
+            if (t == null || at < t.since)
+                return;
+            ClientState c = clients.get(t.taxNumber);
+            switch (op) {
+                case MODE:
+                    t.mode = MODES[log.get()];
+                    break;
+                case PAY: {
+                    int amount = log.getInt();
+                    t.balance -= amount;
+                    if (c != null && at > c.since)
+                        c.payments.addAndGet(amount);
+                    break;
+                }
+                default: {
+                    long cents = log.getLong();
+                    t.balance += cents;
+                    if (c != null && at > c.since)
+                        c.charges.addAndGet(cents);
+                }
+            }
+            return;
+        }
+        ClientState c = clients.get(key);
+        if (c == null || at < c.since)
+            return;
+        switch (op) {
+            case POINTS:
+                c.points += log.getInt();
+                break;
+            case FRIEND_ADDED:
+                c.friends.add(log.getInt());
+                break;
+            case FRIEND_REMOVED:
+                c.friends.remove(log.getInt());
+                break;
+            case NAME:
+                c.name = getString(log);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void removeClient(int tax) {
+        ClientState c = clients.remove(tax);
+        if (c != null)
+            for (int ordinal : c.terminals)
+                terminals.remove(ordinal);
+    }
+
+    private void detach(TerminalState t) {
+        ClientState c = clients.get(t.taxNumber);
+        if (c != null)
+            c.terminals.remove((Integer) t.ordinal);
+    }
+
+    // builds a network with this state, creating clients in parallel
+    Network toNetwork() {
+        Network network = new Network(Math.max(16, terminals.size()));
+        network.reserveOrdinals(ordinalLimit);
+        clients.values().parallelStream().forEach(cs -> {
+            Client c = Client.restore(cs.name, cs.taxNumber, cs.points, cs.charges.get(), cs.payments.get());
+            for (int ordinal : cs.terminals) {
+                TerminalState ts = terminals.get(ordinal);
+                Terminal t = new Terminal(ts.id, null);
+                t.setOrdinal(ordinal);
+                c.addTerminal(t);
+                t.restore(ts.mode, ts.balance);
+            }
+            network.registerClient(c);
+        });
+        clients.values().parallelStream().forEach(cs -> {
+            Client c = network.findClient(cs.taxNumber);
+            for (int tax : cs.friends) {
+                Client f = network.findClient(tax);
+                if (f != null)
+                    c.restoreFriend(f);
+            }
+        });
+        return network;
+    }
+
+    void writeSnapshot(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                               StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch), 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(ordinalLimit);
+            out.writeInt(clients.size());
+            for (ClientState c : clients.values()) {
+                out.writeInt(c.taxNumber);
+                out.writeInt(c.points);
+                out.writeLong(c.charges.get());
+                out.writeLong(c.payments.get());
+                writeString(out, c.name);
+                out.writeInt(c.friends.size());
+                for (int f : c.friends)
+                    out.writeInt(f);
+                out.writeInt(c.terminals.size());
+                for (int ordinal : c.terminals) {
+                    TerminalState t = terminals.get(ordinal);
+                    out.writeInt(ordinal);
+                    out.writeByte(t.mode.ordinal());
+                    out.writeLong(t.balance);
+                    writeString(out, t.id);
+                }
+            }
+            out.flush();
+            ch.force(true); // on disk before it replaces anything
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(file.getParent());
+    }
+
+    // forces the entries of directory, such as a rename, to disk
+    static void forceDirectory(Path directory) throws IOException {
+        FileChannel ch;
+        try {
+            ch = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return; // a platform that cannot open directories makes renames durable by itself
+        }
+        try (ch) {
+            ch.force(true);
+        }
+    }
+
+    static JournalImage readSnapshot(Path file) throws IOException {
+        JournalImage image = new JournalImage();
+        ByteBuffer in;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        if (in.getInt() != SNAPSHOT_MAGIC)
+            throw new IOException("Not a journal snapshot: " + file);
+        image.ordinalLimit = in.getInt();
+        for (int n = in.getInt(); n > 0; n--) {
+            ClientState c = new ClientState(in.getInt(), -1);
+            c.points = in.getInt();
+            c.charges.set(in.getLong());
+            c.payments.set(in.getLong());
+            c.name = getString(in);
+            for (int f = in.getInt(); f > 0; f--)
+                c.friends.add(in.getInt());
+            for (int t = in.getInt(); t > 0; t--) {
+                int ordinal = in.getInt();
+                TerminalMode mode = MODES[in.get()];
+                long balance = in.getLong();
+                TerminalState ts = new TerminalState(ordinal, c.taxNumber, getString(in), -1);
+                ts.mode = mode;
+                ts.balance = balance;
+                image.terminals.put(ordinal, ts);
+                c.terminals.add(ordinal);
+            }
+            image.clients.put(c.taxNumber, c);
+        }
+        return image;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(b.length);
+        out.write(b);
+    }
+
+    static String getString(ByteBuffer in) {
+        int n = in.getShort() & 0xffff;
+        byte[] b = new byte[n];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,108 @@
+package prr.core;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Billing ledger of a client. Amounts are in cents.
+ *
+ * Postings are added to LongAdder cells, so many communications ending at
+ * once for the same client do not contend. Every posting belongs to an
+ * epoch. A snapshot closes the current epoch, waits for the postings still
+ * running in it and folds them into the settled totals. The result is a
+ * consistent cut of the client and all its terminals, and new postings
+ * never wait for it.
+ **/
+class Ledger {
+
+    // a balance kept by a ledger
+    static final class Account {
+        private final LongAdder[] open = { new LongAdder(), new LongAdder() };
+        private volatile long settled;
+
+        // adds directly, for terminals that have no client yet
+        void addUnbilled(long cents) {
+            open[0].add(cents);
+        }
+
+        long raw() {
+            return settled + open[0].sum() + open[1].sum();
+        }
+
+        // only while no posting can reach the cell
+        private void settle(int cell) {
+            long s = open[cell].sum();
+            open[cell].add(-s);
+            settled += s;
+        }
+    }
+
+    final Account charges = new Account();
+    final Account payments = new Account();
+
+    // postings that entered and left each cell; equal when no posting is running
+    private final LongAdder[] entered = { new LongAdder(), new LongAdder() };
+    private final LongAdder[] exited = { new LongAdder(), new LongAdder() };
+    private volatile int epoch = 0;
+    private volatile int version = 0; // odd while a snapshot folds the open cells
+
+    // adds a to account x and b to account y as one posting
+    void post(Account x, long a, Account y, long b) {
+        int cell;
+        while (true) {
+            int e = epoch;
+            cell = e & 1;
+            entered[cell].increment();
+            if (epoch == e)
+                break;
+            exited[cell].increment(); // a snapshot closed the epoch: use the next one
+        }
+        x.open[cell].add(a);
+        y.open[cell].add(b);
+        exited[cell].increment();
+    }
+
+    // sets the starting balance of an account that has no postings yet
+    void restore(Account a, long cents) {
+        a.open[0].add(cents);
+    }
+
+    // current balance of an account, never torn by a running snapshot
+    long read(Account a) {
+        while (true) {
+            int v = version;
+            if ((v & 1) == 0) {
+                long r = a.raw();
+                if (version == v)
+                    return r;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    // closes the current epoch and returns the settled balances of the client and the given terminals
+    synchronized BillingSnapshot snapshot(int taxNumber, List<Terminal> terminals) {
+        int closed = epoch & 1;
+        epoch++;
+        // exits are read before entries, so equal sums mean nothing was running in between
+        while (exited[closed].sum() != entered[closed].sum())
+            Thread.onSpinWait();
+
+        String[] ids = new String[terminals.size()];
+        long[] balances = new long[ids.length];
+        version++;
+        try {
+            charges.settle(closed);
+            payments.settle(closed);
+            for (int i = 0; i < ids.length; i++) {
+                Account a = terminals.get(i).getAccount();
+                a.settle(closed);
+                ids[i] = terminals.get(i).getId();
+                balances[i] = a.settled;
+            }
+        } finally {
+            version++;
+        }
+        return new BillingSnapshot(taxNumber, charges.settled, payments.settled, ids, balances);
+    }
+}
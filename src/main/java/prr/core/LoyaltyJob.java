@@ -0,0 +1,109 @@
+package prr.core;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+/**
+ * Recomputes the loyalty points of every client of a network, in parallel
+ * with fork/join, while the network stays in use.
+ *
+ * Each client gets the points given by a rule, by default from its charges
+ * and balance. The new value is published with a compare-and-set against
+ * the value the rule saw, so a concurrent updatePoints is never lost: the
+ * client is simply recomputed. Rating reads the points once per cost, so
+ * it sees either the old or the new tier, never a mix. Listeners are told
+ * of each change as a delta, like any other points update.
+ **/
+public class LoyaltyJob {
+    private static final int LEAF = 1024;
+
+    private final Network network;
+    private final ToIntFunction<Client> rule;
+    private final LongAdder failures = new LongAdder();
+    private volatile RuntimeException lastFailure;
+
+    public LoyaltyJob(Network network) {
+        this(network, LoyaltyJob::defaultPoints);
+    }
+
+    // recomputes with a rule giving the new points of a client, kept within 0 to 200
+    public LoyaltyJob(Network network, ToIntFunction<Client> rule) {
+        this.network = network;
+        this.rule = rule;
+    }
+
+    // 20 points plus one per euro ever charged, halved while owing more than 5 euros
+    public static int defaultPoints(Client c) {
+        long p = 20 + c.getCharges() / 100;
+        if (c.balance() > 500)
+            p /= 2;
+        return (int) Math.min(200, p);
+    }
+
+    // runs on the common pool; returns how many clients had their points changed
+    public int run() {
+        return run(ForkJoinPool.commonPool());
+    }
+
+    public int run(ForkJoinPool pool) {
+        Client[] clients = network.getClients().toArray(new Client[0]);
+        return pool.invoke(new Slice(clients, 0, clients.length));
+    }
+
+    // runs every period on the given executor. A failed run is counted and the next ones still
+    // happen, as the executor would cancel them all after an exception.
+    public ScheduledFuture<?> schedule(ScheduledExecutorService executor, long period, TimeUnit unit) {
+        return executor.scheduleAtFixedRate(() -> {
+            try {
+                run();
+            } catch (RuntimeException e) {
+                lastFailure = e;
+                failures.increment();
+            }
+        }, period, period, unit);
+    }
+
+    // scheduled runs that failed, and the exception of the latest, null if none
+    public long failures() { return failures.sum(); }
+    public RuntimeException lastFailure() { return lastFailure; }
+
+    private int recompute(Client c) {
+        while (true) {
+            int old = c.getPoints();
+            int value = Math.max(0, Math.min(200, rule.applyAsInt(c)));
+            if (c.setPoints(old, value))
+                return (value != old) ? 1 : 0;
+        }
+    }
+
+    private final class Slice extends RecursiveTask<Integer> {
+        private final Client[] clients;
+        private final int from, to;
+
+        Slice(Client[] clients, int from, int to) {
+            this.clients = clients;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (to - from <= LEAF) {
+                int changed = 0;
+                for (int i = from; i < to; i++)
+                    changed += recompute(clients[i]);
+                return changed;
+            }
+            int mid = (from + to) >>> 1;
+            Slice left = new Slice(clients, from, mid);
+            left.fork();
+            int right = new Slice(clients, mid, to).compute();
+            return left.join() + right;
+        }
+    }
+}
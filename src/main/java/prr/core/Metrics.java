@@ -0,0 +1,106 @@
+package prr.core;
+
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of the events of a network, kept by registering
+ * an instance with Network.addListener. Without it the network does no
+ * measuring at all.
+ *
+ * Events only add to striped counters (LongAdder) and lock-free
+ * histograms, so recording never blocks and allocates nothing. Readers
+ * pull a snapshot() of every figure by name whenever they like.
+ **/
+public class Metrics implements NetworkListener {
+    private static final TerminalMode[] MODES = TerminalMode.values();
+    private static final SmsOutcome[] OUTCOMES = SmsOutcome.values();
+
+    private final LongAdder[] transitions = adders(MODES.length * MODES.length);
+    private final LongAdder[] sms = adders(OUTCOMES.length);
+    private final LongAdder callsStarted = new LongAdder();
+    private final LongAdder callsRejected = new LongAdder();
+    private final LongAdder callsEnded = new LongAdder();
+    private final Histogram callSetupNanos = new Histogram();
+    private final Histogram callSeconds = new Histogram();   // billed duration
+    private final Histogram callWallMillis = new Histogram(); // from setup to end
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] a = new LongAdder[n];
+        for (int i = 0; i < n; i++)
+            a[i] = new LongAdder();
+        return a;
+    }
+
+    @Override
+    public void modeChanged(Terminal t, TerminalMode previous, TerminalMode mode) {
+        transitions[previous.ordinal() * MODES.length + mode.ordinal()].increment();
+    }
+
+    @Override
+    public void smsSent(Terminal from, Terminal to, SmsOutcome outcome) {
+        sms[outcome.ordinal()].increment();
+    }
+
+    @Override
+    public void callStarted(Communication c, long setupNanos) {
+        callsStarted.increment();
+        callSetupNanos.record(setupNanos);
+    }
+
+    @Override
+    public void callRejected(Terminal from, Terminal to) {
+        callsRejected.increment();
+    }
+
+    @Override
+    public void communicationEnded(Communication c) {
+        if (c.getType() != CommunicationType.VOICE)
+            return;
+        callsEnded.increment();
+        callSeconds.record(c.getSize());
+        callWallMillis.record(c.getEnd() - c.getStart());
+    }
+
+    public long transitions(TerminalMode from, TerminalMode to) {
+        return transitions[from.ordinal() * MODES.length + to.ordinal()].sum();
+    }
+
+    public long sms(SmsOutcome outcome) { return sms[outcome.ordinal()].sum(); }
+    public long callsStarted() { return callsStarted.sum(); }
+    public long callsRejected() { return callsRejected.sum(); }
+    public long callsEnded() { return callsEnded.sum(); }
+    public Histogram callSetupNanos() { return callSetupNanos; }
+    public Histogram callSeconds() { return callSeconds; }
+    public Histogram callWallMillis() { return callWallMillis; }
+
+    // every figure by name, e.g. "mode.NORMAL.SILENT", "sms.DELIVERED" or "call.seconds.p99".
+    // Figures are read one by one while events may still be counted.
+    public SortedMap<String, Long> snapshot() {
+        SortedMap<String, Long> m = new TreeMap<>();
+        for (TerminalMode from : MODES)
+            for (TerminalMode to : MODES)
+                if (from != to)
+                    m.put("mode." + from + "." + to, transitions(from, to));
+        for (SmsOutcome o : OUTCOMES)
+            m.put("sms." + o, sms(o));
+        m.put("call.started", callsStarted());
+        m.put("call.rejected", callsRejected());
+        m.put("call.ended", callsEnded());
+        put(m, "call.setup.nanos", callSetupNanos);
+        put(m, "call.seconds", callSeconds);
+        put(m, "call.wall.millis", callWallMillis);
+        return Collections.unmodifiableSortedMap(m);
+    }
+
+    private static void put(SortedMap<String, Long> m, String name, Histogram h) {
+        m.put(name + ".count", h.count());
+        m.put(name + ".sum", h.sum());
+        m.put(name + ".max", h.max());
+        m.put(name + ".p50", h.percentile(0.50));
+        m.put(name + ".p90", h.percentile(0.90));
+        m.put(name + ".p99", h.percentile(0.99));
+    }
+}
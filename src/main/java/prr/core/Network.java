@@ -0,0 +1,280 @@
+package prr.core;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import prr.core.exceptions.InvalidOperationException;
+
+/**
+ * Registry of the clients and terminals of a network.
+ *
+ * Terminals are indexed by id and clients by tax number in concurrent hash
+ * maps, so lookups never block and updates only contend on the bin they
+ * touch. A registered client keeps the terminal index up to date through
+ * Client.addTerminal and Client.removeTerminal. Each terminal also gets a
+ * dense ordinal when first indexed, for stores that keep per-terminal data
+ * in arrays.
+ **/
+public class Network {
+    private static final NetworkListener[] NO_LISTENERS = {};
+
+    private final ConcurrentHashMap<String, Terminal> terminals;
+    private final ConcurrentHashMap<Integer, Client> clients;
+    private final AtomicInteger nextOrdinal = new AtomicInteger();
+    private volatile NetworkListener[] listeners = NO_LISTENERS;
+    private volatile SmsRateLimiter smsLimiter;
+    private volatile SmsInbox inbox;
+    private volatile CallTimer callTimer;
+
+    public Network() {
+        this(1024);
+    }
+
+    // creates a network sized for the given number of terminals
+    public Network(int expectedTerminals) {
+        int shards = Runtime.getRuntime().availableProcessors();
+        terminals = new ConcurrentHashMap<>(expectedTerminals, 0.75f, shards);
+        clients = new ConcurrentHashMap<>(Math.max(16, expectedTerminals / 2), 0.75f, shards);
+    }
+
+    // creates a client with a first terminal and registers both
+    public Client registerClient(String name, int taxNumber, String terminalId) {
+        Terminal t = new Terminal(terminalId, null);
+        Client c = new Client(name, taxNumber, t);
+        registerClient(c);
+        return c;
+    }
+
+    // registers a client and all of its terminals
+    public void registerClient(Client c) {
+        if (c == null)
+            throw new InvalidOperationException("Invalid client");
+        if (clients.putIfAbsent(c.getTaxNumber(), c) != null)
+            throw new InvalidOperationException("Duplicate tax number");
+
+        synchronized (c) {
+            if (c.getNetwork() != null) {
+                clients.remove(c.getTaxNumber(), c);
+                throw new InvalidOperationException("Client already registered");
+            }
+            List<Terminal> owned = c.getTerminals();
+            for (int i = 0; i < owned.size(); i++) {
+                try {
+                    indexTerminal(owned.get(i));
+                } catch (InvalidOperationException e) {
+                    for (int j = 0; j < i; j++)
+                        unindexTerminal(owned.get(j));
+                    clients.remove(c.getTaxNumber(), c);
+                    throw e;
+                }
+            }
+            c.setNetwork(this);
+            for (NetworkListener l : listeners)
+                l.clientRegistered(c);
+        }
+    }
+
+    // removes a client and all of its terminals from this network
+    public boolean removeClient(int taxNumber) {
+        Client c = clients.get(taxNumber);
+        if (c == null)
+            return false;
+        synchronized (c) {
+            if (!clients.remove(taxNumber, c))
+                return false;
+            for (Terminal t : c.getTerminals())
+                unindexTerminal(t);
+            c.setNetwork(null);
+            for (NetworkListener l : listeners)
+                l.clientRemoved(c);
+        }
+        return true;
+    }
+
+    // creates a terminal for a registered client
+    public Terminal addTerminal(int taxNumber, String terminalId) {
+        Client c = findClient(taxNumber);
+        if (c == null)
+            throw new InvalidOperationException("Unknown client");
+        Terminal t = new Terminal(terminalId, c);
+        c.addTerminal(t);
+        return t;
+    }
+
+    // removes a terminal from its client (see Client.removeTerminal)
+    public boolean removeTerminal(String terminalId) {
+        Terminal t = terminals.get(terminalId);
+        if (t == null)
+            return false;
+        Client c = t.getClient();
+        return c != null && c.removeTerminal(t);
+    }
+
+    public Terminal findTerminal(String id) {
+        return terminals.get(id);
+    }
+
+    public Client findClient(int taxNumber) {
+        return clients.get(taxNumber);
+    }
+
+    public int numberOfTerminals() {
+        return terminals.size();
+    }
+
+    public int numberOfClients() {
+        return clients.size();
+    }
+
+    public Collection<Terminal> getTerminals() {
+        return Collections.unmodifiableCollection(terminals.values());
+    }
+
+    public Collection<Client> getClients() {
+        return Collections.unmodifiableCollection(clients.values());
+    }
+
+    // number of ordinals given so far; every terminal ordinal is below it
+    public int ordinalLimit() {
+        return nextOrdinal.get();
+    }
+
+    public synchronized void addListener(NetworkListener l) {
+        NetworkListener[] ls = Arrays.copyOf(listeners, listeners.length + 1);
+        ls[ls.length - 1] = l;
+        listeners = ls;
+    }
+
+    public synchronized boolean removeListener(NetworkListener l) {
+        NetworkListener[] ls = listeners;
+        for (int i = 0; i < ls.length; i++) {
+            if (ls[i] == l) {
+                NetworkListener[] nls = new NetworkListener[ls.length - 1];
+                System.arraycopy(ls, 0, nls, 0, i);
+                System.arraycopy(ls, i + 1, nls, i, nls.length - i);
+                listeners = nls;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // limits the SMS sent by each terminal and client from now on; null removes the limits
+    public void setSmsLimiter(SmsRateLimiter limiter) {
+        smsLimiter = limiter;
+    }
+
+    public SmsRateLimiter getSmsLimiter() {
+        return smsLimiter;
+    }
+
+    // keeps the SMS received by the terminals from now on; null stops keeping them
+    public void setInbox(SmsInbox inbox) {
+        this.inbox = inbox;
+    }
+
+    public SmsInbox getInbox() {
+        return inbox;
+    }
+
+    // times the voice calls started from now on, and lets the timer hear of removed clients;
+    // null stops timing new calls
+    public synchronized void setCallTimer(CallTimer timer) {
+        if (callTimer != null)
+            removeListener(callTimer);
+        callTimer = timer;
+        if (timer != null)
+            addListener(timer);
+    }
+
+    public CallTimer getCallTimer() {
+        return callTimer;
+    }
+
+    // whether any listener is registered, to skip work only listeners need
+    boolean observed() {
+        return listeners.length != 0;
+    }
+
+    void communicationEnded(Communication c) {
+        for (NetworkListener l : listeners)
+            l.communicationEnded(c);
+    }
+
+    void smsSent(Terminal from, Terminal to, SmsOutcome outcome) {
+        for (NetworkListener l : listeners)
+            l.smsSent(from, to, outcome);
+    }
+
+    void callStarted(Communication c, long setupNanos) {
+        for (NetworkListener l : listeners)
+            l.callStarted(c, setupNanos);
+    }
+
+    void callRejected(Terminal from, Terminal to) {
+        for (NetworkListener l : listeners)
+            l.callRejected(from, to);
+    }
+
+    void terminalAdded(Client c, Terminal t) {
+        for (NetworkListener l : listeners)
+            l.terminalAdded(c, t);
+    }
+
+    void terminalRemoved(Client c, Terminal t) {
+        for (NetworkListener l : listeners)
+            l.terminalRemoved(c, t);
+    }
+
+    void modeChanged(Terminal t, TerminalMode previous, TerminalMode mode) {
+        for (NetworkListener l : listeners)
+            l.modeChanged(t, previous, mode);
+    }
+
+    void paid(Terminal t, int amount) {
+        for (NetworkListener l : listeners)
+            l.paid(t, amount);
+    }
+
+    void pointsUpdated(Client c, int delta) {
+        for (NetworkListener l : listeners)
+            l.pointsUpdated(c, delta);
+    }
+
+    void nameUpdated(Client c, String name) {
+        for (NetworkListener l : listeners)
+            l.nameUpdated(c, name);
+    }
+
+    void friendAdded(Client c, Client friend) {
+        for (NetworkListener l : listeners)
+            l.friendAdded(c, friend);
+    }
+
+    void friendRemoved(Client c, Client friend) {
+        for (NetworkListener l : listeners)
+            l.friendRemoved(c, friend);
+    }
+
+    // makes sure ordinals given from now on are at least limit
+    void reserveOrdinals(int limit) {
+        nextOrdinal.accumulateAndGet(limit, Math::max);
+    }
+
+    // called by Client when it gains a terminal
+    void indexTerminal(Terminal t) {
+        if (terminals.putIfAbsent(t.getId(), t) != null)
+            throw new InvalidOperationException("Duplicate terminal id");
+        if (t.getOrdinal() < 0)
+            t.setOrdinal(nextOrdinal.getAndIncrement());
+    }
+
+    // called by Client when it loses a terminal
+    void unindexTerminal(Terminal t) {
+        terminals.remove(t.getId(), t);
+    }
+}
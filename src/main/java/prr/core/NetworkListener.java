@@ -0,0 +1,44 @@
+package prr.core;
+
+/**
+ * Receives the events of a Network. Register with Network.addListener.
+ *
+ * Events are delivered on the thread that caused them, after the change is
+ * made, so implementations must be thread-safe and quick.
+ **/
+public interface NetworkListener {
+    // a communication made by a terminal of the network ended and was charged
+    default void communicationEnded(Communication c) { }
+
+    // a terminal tried to send a SMS to terminal to (null if none was given)
+    default void smsSent(Terminal from, Terminal to, SmsOutcome outcome) { }
+
+    // a voice call was set up, in setupNanos (0 when no listener wanted timings)
+    default void callStarted(Communication c, long setupNanos) { }
+
+    // a voice call from terminal from to terminal to (possibly null) was refused
+    default void callRejected(Terminal from, Terminal to) { }
+
+    // a client joined the network with its terminals, or left it
+    default void clientRegistered(Client c) { }
+    default void clientRemoved(Client c) { }
+
+    // a registered client gained or lost a terminal
+    default void terminalAdded(Client c, Terminal t) { }
+    default void terminalRemoved(Client c, Terminal t) { }
+
+    // the mode of a terminal changed, reported in order for each terminal
+    default void modeChanged(Terminal t, TerminalMode previous, TerminalMode mode) { }
+
+    // a terminal paid amount cents
+    default void paid(Terminal t, int amount) { }
+
+    // the points of a client changed by delta
+    default void pointsUpdated(Client c, int delta) { }
+
+    default void nameUpdated(Client c, String name) { }
+
+    // a client added or removed a friend, reported in order for each client
+    default void friendAdded(Client c, Client friend) { }
+    default void friendRemoved(Client c, Client friend) { }
+}
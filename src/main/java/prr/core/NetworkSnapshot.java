@@ -0,0 +1,387 @@
+package prr.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Compact binary image of a whole network: every client with its name,
+ * points, billing totals, terminals and friends, and every terminal with
+ * its id, ordinal, mode, balance and ongoing call.
+ *
+ * Layout (version 1), all ints big-endian:
+ *
+ *   header   magic, version, strings, clients, terminals, ordinal limit,
+ *            positions of the three offset tables
+ *   strings  varint length and UTF-8 bytes of each distinct name and id
+ *   clients  name string, zigzag tax number, points, zigzag charges and
+ *            payments, terminal indices, friend indices (sorted, as deltas)
+ *   terminals id string, ordinal + 1 (0 for none), client index, idle mode,
+ *            zigzag balance, and for the caller of an ongoing call the
+ *            callee and size
+ *   offsets  one int per string, client and terminal: where it starts
+ *
+ * Objects refer to each other by index, never by pointer. The offset
+ * tables give direct access to any record, so an opened snapshot reads its
+ * fields straight from the memory-mapped file without loading it; only
+ * toNetwork() builds objects, in parallel. Files are limited to 2GB.
+ *
+ * A snapshot of a network in use is consistent per client: its billing
+ * totals and the balances, modes and calls of its terminals are read
+ * together, holding the monitors of those terminals. Clients are read one
+ * after the other, so a call is kept only when both of its terminals were
+ * seen in it.
+ **/
+public final class NetworkSnapshot {
+    private static final int MAGIC = 0x5052524E; // "PRRN"
+    public static final int VERSION = 1;
+    private static final int HEADER = 36;
+    private static final TerminalMode[] MODES = TerminalMode.values();
+
+    private final ByteBuffer in;
+    private final int strings, clients, terminals, ordinalLimit;
+    private final int stringTable, clientTable, terminalTable;
+
+    private NetworkSnapshot(ByteBuffer in) throws IOException {
+        this.in = in;
+        if (in.limit() < HEADER || in.getInt(0) != MAGIC)
+            throw new IOException("Not a network snapshot");
+        int version = in.getInt(4);
+        if (version != VERSION)
+            throw new IOException("Unsupported snapshot version " + version);
+        strings = in.getInt(8);
+        clients = in.getInt(12);
+        terminals = in.getInt(16);
+        ordinalLimit = in.getInt(20);
+        stringTable = in.getInt(24);
+        clientTable = in.getInt(28);
+        terminalTable = in.getInt(32);
+    }
+
+    // maps a snapshot file; nothing is read until asked for
+    public static NetworkSnapshot open(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new NetworkSnapshot(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+    }
+
+    static NetworkSnapshot wrap(ByteBuffer buffer) throws IOException {
+        return new NetworkSnapshot(buffer);
+    }
+
+    public int numberOfClients() { return clients; }
+    public int numberOfTerminals() { return terminals; }
+
+    public String clientName(int i) { return string(varint(new int[] {client(i)})); }
+
+    public int clientTaxNumber(int i) {
+        int[] at = {client(i)};
+        varint(at);
+        return unzigzag(varint(at));
+    }
+
+    public int clientPoints(int i) {
+        int[] at = {client(i)};
+        varint(at);
+        varint(at);
+        return varint(at);
+    }
+
+    public String terminalId(int i) { return string(varint(new int[] {terminal(i)})); }
+
+    public long terminalBalance(int i) {
+        int[] at = {terminal(i)};
+        varint(at);
+        varint(at);
+        varint(at);
+        at[0]++; // mode
+        return unzigzag(varlong(at));
+    }
+
+    // ---- writing ----
+
+    // writes the state of network to file, replacing it atomically
+    public static void write(Network network, Path file) throws IOException {
+        ByteBuffer image = encode(network);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                               StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (image.hasRemaining())
+                ch.write(image);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static ByteBuffer encode(Network network) {
+        Client[] cs = network.getClients().toArray(new Client[0]);
+        Map<Client, Integer> clientIndex = new IdentityHashMap<>();
+        for (int i = 0; i < cs.length; i++)
+            clientIndex.put(cs[i], i);
+        Terminal[][] owned = new Terminal[cs.length][];
+        Map<Terminal, Integer> terminalIndex = new IdentityHashMap<>();
+        for (int i = 0; i < cs.length; i++) {
+            owned[i] = cs[i].getTerminals().toArray(new Terminal[0]);
+            for (Terminal t : owned[i])
+                terminalIndex.put(t, terminalIndex.size());
+        }
+
+        // the state of each client and its terminals, read while none of them can change mode or be charged for a call
+        BillingSnapshot[] bills = new BillingSnapshot[cs.length];
+        TerminalMode[] idle = new TerminalMode[terminalIndex.size()];
+        Communication[] calls = new Communication[terminalIndex.size()];
+        for (int i = 0, first = 0; i < cs.length; first += owned[i++].length) {
+            Client c = cs[i];
+            Terminal[] ts = owned[i];
+            int at = first;
+            bills[i] = Terminal.locked(ts, () -> {
+                for (int k = 0; k < ts.length; k++) {
+                    idle[at + k] = ts[k].getIdleMode();
+                    calls[at + k] = ts[k].getOngoing();
+                }
+                return c.billingSnapshot(Arrays.asList(ts));
+            });
+        }
+
+        Strings strs = new Strings();
+        Out recs = new Out();
+        int[] clientOffsets = new int[cs.length];
+        int[] terminalOffsets = new int[terminalIndex.size()];
+        int nt = 0;
+        for (int i = 0; i < cs.length; i++) {
+            Client c = cs[i];
+            clientOffsets[i] = recs.size;
+            recs.varint(strs.ref(c.getName()));
+            recs.varint(zigzag(c.getTaxNumber()));
+            recs.varint(c.getPoints());
+            recs.varlong(zigzag(bills[i].getCharges()));
+            recs.varlong(zigzag(bills[i].getPayments()));
+            recs.varint(owned[i].length);
+            for (Terminal t : owned[i])
+                recs.varint(terminalIndex.get(t));
+            List<Client> friends = c.getFriends();
+            int[] fs = new int[friends.size()];
+            int n = 0;
+            for (Client f : friends) {
+                Integer fi = clientIndex.get(f);
+                if (fi != null) // a friend that left the network is not kept
+                    fs[n++] = fi;
+            }
+            Arrays.sort(fs, 0, n);
+            recs.varint(n);
+            for (int k = 0, prev = 0; k < n; prev = fs[k++])
+                recs.varint(fs[k] - prev);
+        }
+        for (int i = 0; i < cs.length; i++) {
+            for (int k = 0; k < owned[i].length; k++) {
+                Terminal t = owned[i][k];
+                int ti = nt;
+                terminalOffsets[nt++] = recs.size;
+                recs.varint(strs.ref(t.getId()));
+                recs.varint(t.getOrdinal() + 1);
+                recs.varint(i);
+                recs.put((byte) idle[ti].ordinal());
+                recs.varlong(zigzag(bills[i].terminalBalance(k)));
+                Communication call = calls[ti];
+                Integer peer = (call != null && call.from() == t) ? terminalIndex.get(call.to()) : null;
+                if (peer != null && calls[peer] != call)
+                    peer = null; // the callee was read after the call ended
+                if (peer == null) {
+                    recs.put((byte) 0);
+                } else {
+                    recs.put((byte) 1);
+                    recs.varint(peer);
+                    recs.varint(call.getSize());
+                }
+            }
+        }
+
+        int nstrings = strs.index.size();
+        Out sb = strs.bytes;
+        int stringTable = HEADER + sb.size + recs.size;
+        int clientTable = stringTable + 4 * nstrings;
+        int terminalTable = clientTable + 4 * cs.length;
+        ByteBuffer out = ByteBuffer.allocate(terminalTable + 4 * nt);
+        out.putInt(MAGIC).putInt(VERSION).putInt(nstrings).putInt(cs.length).putInt(nt)
+           .putInt(network.ordinalLimit()).putInt(stringTable).putInt(clientTable).putInt(terminalTable);
+        out.put(sb.bytes, 0, sb.size);
+        out.put(recs.bytes, 0, recs.size);
+        for (int k = 0; k < nstrings; k++)
+            out.putInt(HEADER + strs.offsets[k]);
+        for (int off : clientOffsets)
+            out.putInt(HEADER + sb.size + off);
+        for (int off : terminalOffsets)
+            out.putInt(HEADER + sb.size + off);
+        out.flip();
+        return out;
+    }
+
+    // ---- loading ----
+
+    // builds a network with the state of this snapshot
+    public Network toNetwork() {
+        Network network = new Network(Math.max(16, terminals));
+        network.reserveOrdinals(ordinalLimit);
+        Client[] cs = new Client[clients];
+        Terminal[] ts = new Terminal[terminals];
+        IntStream.range(0, clients).parallel().forEach(i -> {
+            int[] at = {client(i)};
+            String name = string(varint(at));
+            int tax = unzigzag(varint(at));
+            int points = varint(at);
+            long charges = unzigzag(varlong(at));
+            long payments = unzigzag(varlong(at));
+            Client c = Client.restore(name, tax, points, charges, payments);
+            for (int n = varint(at); n > 0; n--) {
+                int ti = varint(at);
+                int[] tat = {terminal(ti)};
+                Terminal t = new Terminal(string(varint(tat)), null);
+                int ordinal = varint(tat) - 1;
+                if (ordinal >= 0)
+                    t.setOrdinal(ordinal);
+                varint(tat);
+                TerminalMode mode = MODES[in.get(tat[0]++)];
+                long balance = unzigzag(varlong(tat));
+                c.addTerminal(t);
+                t.restore(mode, balance);
+                ts[ti] = t;
+            }
+            network.registerClient(c);
+            cs[i] = c;
+        });
+        IntStream.range(0, clients).parallel().forEach(i -> {
+            int[] at = {client(i)};
+            varint(at);
+            varint(at);
+            varint(at);
+            varlong(at);
+            varlong(at);
+            for (int n = varint(at); n > 0; n--)
+                varint(at);
+            for (int n = varint(at), f = 0; n > 0; n--) {
+                f += varint(at);
+                cs[i].restoreFriend(cs[f]);
+            }
+        });
+        // each terminal is in at most one call, listed once by its caller
+        IntStream.range(0, terminals).parallel().forEach(i -> {
+            int[] at = {terminal(i)};
+            varint(at);
+            varint(at);
+            varint(at);
+            at[0]++;
+            varlong(at);
+            if (in.get(at[0]++) == 1) {
+                Terminal from = ts[i], to = ts[varint(at)];
+                Communication c = Communication.voiceCommunication(to, from);
+                int size = varint(at);
+                if (size > 0)
+                    c.duration(size);
+                from.restoreCall(c);
+                to.restoreCall(c);
+            }
+        });
+        return network;
+    }
+
+    private int client(int i) {
+        return in.getInt(clientTable + 4 * i);
+    }
+
+    private int terminal(int i) {
+        return in.getInt(terminalTable + 4 * i);
+    }
+
+    private String string(int i) {
+        int[] at = {in.getInt(stringTable + 4 * i)};
+        int n = varint(at);
+        byte[] b = new byte[n];
+        for (int k = 0; k < n; k++)
+            b[k] = in.get(at[0] + k);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    // reads the varint at at[0], moving at[0] past it
+    private int varint(int[] at) {
+        return (int) varlong(at);
+    }
+
+    private long varlong(int[] at) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get(at[0]++);
+            v |= (long) (b & 0x7f) << shift;
+            if (b >= 0)
+                return v;
+        }
+    }
+
+    private static int zigzag(int v) { return (v << 1) ^ (v >> 31); }
+    private static long zigzag(long v) { return (v << 1) ^ (v >> 63); }
+    private static int unzigzag(int v) { return (v >>> 1) ^ -(v & 1); }
+    private static long unzigzag(long v) { return (v >>> 1) ^ -(v & 1); }
+
+    /** Growable byte array for encoding. **/
+    private static final class Out {
+        byte[] bytes = new byte[1 << 12];
+        int size;
+
+        void put(byte b) {
+            if (size == bytes.length)
+                bytes = Arrays.copyOf(bytes, 2 * size);
+            bytes[size++] = b;
+        }
+
+        void put(byte[] b) {
+            if (size + b.length > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, size + b.length));
+            System.arraycopy(b, 0, bytes, size, b.length);
+            size += b.length;
+        }
+
+        void varint(int v) {
+            varlong(v & 0xffffffffL);
+        }
+
+        void varlong(long v) {
+            while ((v & ~0x7fL) != 0) {
+                put((byte) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            put((byte) v);
+        }
+    }
+
+    /** The distinct strings of a snapshot being encoded. **/
+    private static final class Strings {
+        final Map<String, Integer> index = new HashMap<>();
+        final Out bytes = new Out();
+        int[] offsets = new int[16];
+
+        // index of s in the table, adding it if new
+        int ref(String s) {
+            Integer i = index.get(s);
+            if (i != null)
+                return i;
+            int n = index.size();
+            if (n == offsets.length)
+                offsets = Arrays.copyOf(offsets, 2 * n);
+            offsets[n] = bytes.size;
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            bytes.varint(b.length);
+            bytes.put(b);
+            index.put(s, n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package prr.core;
+
+// result of the try* operations of Terminal and Client, which return it instead of throwing;
+// UNREACHABLE when the partition of the other terminal did not answer
+public enum OperationResult {
+    OK, INVALID_ARGUMENT, WRONG_MODE, TARGET_UNAVAILABLE, NO_ONGOING_CALL, LIMIT_REACHED, UNREACHABLE
+}
@@ -0,0 +1,572 @@
+package prr.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import prr.core.exceptions.InvalidOperationException;
+
+/**
+ * One partition of a network spread over several nodes, in one process or
+ * many. A terminal lives on partition partitionOf(id), and a client on the
+ * partition of its terminals, which must all hash to it. Each node keeps
+ * its partition in an ordinary Network.
+ *
+ * SMS, voice calls and the SILENT friend check reach terminals of other
+ * partitions through a binary request/response protocol over sockets.
+ * Each node keeps one connection to every other node. Requests carry an
+ * id, so many can be in flight at once (pipelining). A writer thread sends
+ * all queued requests in one flush, and the other node flushes its
+ * responses once it has no more requests to read (batching). When a
+ * connection breaks, its pending requests fail and the next request opens
+ * a new one. Opening a connection and waiting for an answer each take at
+ * most the request timeout; a request that does not get its answer ends
+ * UNREACHABLE.
+ *
+ * Notices that need no answer (END, HANGUP) are sent from terminal
+ * listeners, which may hold a terminal's monitor, so they never wait: they
+ * are queued on a live connection for its writer thread, or else handed to
+ * the node's notifier thread, which opens the connection and sends them.
+ *
+ * A call across partitions holds the terminal on each node in a call with
+ * a stand-in for the remote peer. The caller's terminal is held first and
+ * released if the other node refuses, so no node waits on another while
+ * holding a terminal. Either side may end the call as usual: the caller's
+ * node bills it and tells the other node, which drops its side. The
+ * duration is the one set on the side that ends. Friends on other
+ * partitions are kept by tax number.
+ *
+ * Listeners of a partition's network see the stand-ins of remote
+ * terminals, which have no ordinal and no client: a call is rated and
+ * billed only on the caller's partition.
+ **/
+public class PartitionNode implements NetworkListener, AutoCloseable {
+    private static final byte SMS = 1, CALL = 2, END = 3, HANGUP = 4;
+    private static final int BATCH = 256;
+    private static final SmsOutcome[] OUTCOMES = SmsOutcome.values();
+    private static final OperationResult[] RESULTS = OperationResult.values();
+
+    private final int index, partitions;
+    private final Network network;
+    private final ServerSocket server;
+    private final Peer[] peers;
+    private volatile List<InetSocketAddress> addresses = Collections.emptyList();
+    private final List<Socket> sessions = new CopyOnWriteArrayList<>();
+    private volatile boolean closed = false;
+    private volatile long timeoutMillis = 10_000;
+    private final BlockingQueue<Runnable> notices = new LinkedBlockingQueue<>(); // for peers not connected
+    private final Thread notifier;
+
+    private final AtomicLong nextCall = new AtomicLong();
+    private final ConcurrentHashMap<Long, Communication> placed = new ConcurrentHashMap<>(); // calls made from here
+    private final ConcurrentHashMap<Communication, Long> placedIds = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Communication> received = new ConcurrentHashMap<>(); // calls made to here
+    private final ConcurrentHashMap<Terminal, Long> receivedIds = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Set<Integer>> remoteFriends = new ConcurrentHashMap<>();
+
+    // the body of a request, after its id and operation
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static final class Request {
+        final int id;
+        final byte op;
+        final Body body;
+        final CompletableFuture<Integer> done = new CompletableFuture<>();
+
+        Request(int id, byte op, Body body) {
+            this.id = id;
+            this.op = op;
+            this.body = body;
+        }
+    }
+
+    // creates node index of partitions, listening on an ephemeral local port
+    public PartitionNode(int index, int partitions) throws IOException {
+        if (partitions < 1 || index < 0 || index >= partitions)
+            throw new IllegalArgumentException("Invalid partition");
+        this.index = index;
+        this.partitions = partitions;
+        network = new Network();
+        network.addListener(this);
+        peers = new Peer[partitions];
+        for (int i = 0; i < partitions; i++)
+            peers[i] = (i == index) ? null : new Peer(i);
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "partition-" + index + "-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        notifier = new Thread(this::sendNotices, "partition-" + index + "-notifier");
+        notifier.setDaemon(true);
+        notifier.start();
+    }
+
+    // starts the given number of nodes in this process, connected to each other
+    public static List<PartitionNode> startLocal(int partitions) throws IOException {
+        List<PartitionNode> nodes = new ArrayList<>();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (int i = 0; i < partitions; i++) {
+            nodes.add(new PartitionNode(i, partitions));
+            addresses.add(nodes.get(i).getAddress());
+        }
+        for (PartitionNode n : nodes)
+            n.connect(addresses);
+        return nodes;
+    }
+
+    // the partition of a terminal id
+    public static int partitionOf(String terminalId, int partitions) {
+        return Math.floorMod(terminalId.hashCode(), partitions);
+    }
+
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+    }
+
+    // the addresses of every node, by partition; connections are opened when first needed
+    public void connect(List<InetSocketAddress> nodes) {
+        if (nodes.size() != partitions)
+            throw new IllegalArgumentException("Need the address of every partition");
+        addresses = new ArrayList<>(nodes);
+    }
+
+    public int getIndex() { return index; }
+
+    // how long a request to another node waits for its connection, and then its answer, before it fails
+    public void setRequestTimeout(long millis) {
+        if (millis <= 0)
+            throw new IllegalArgumentException("Invalid timeout");
+        timeoutMillis = millis;
+    }
+
+    // the terminals and clients of this partition
+    public Network getNetwork() { return network; }
+
+    public boolean owns(String terminalId) {
+        return partitionOf(terminalId, partitions) == index;
+    }
+
+    public Client registerClient(String name, int taxNumber, String terminalId) {
+        checkOwned(terminalId);
+        return network.registerClient(name, taxNumber, terminalId);
+    }
+
+    public Terminal addTerminal(int taxNumber, String terminalId) {
+        checkOwned(terminalId);
+        return network.addTerminal(taxNumber, terminalId);
+    }
+
+    private void checkOwned(String terminalId) {
+        if (terminalId == null || !owns(terminalId))
+            throw new InvalidOperationException("Terminal belongs to another partition");
+    }
+
+    // makes friendTax, of any partition, a friend of client taxNumber of this partition
+    public OperationResult addFriend(int taxNumber, int friendTax) {
+        Client c = network.findClient(taxNumber);
+        if (c == null || friendTax == taxNumber)
+            return OperationResult.INVALID_ARGUMENT;
+        Client local = network.findClient(friendTax);
+        synchronized (c) { // the friend limit counts the friends of every partition
+            Set<Integer> remote = remoteFriends.getOrDefault(taxNumber, Collections.emptySet());
+            if (c.numberOfFriends() + remote.size() >= 5 * c.getTerminals().size() - 3)
+                return OperationResult.LIMIT_REACHED;
+            if (local != null)
+                return c.tryAddFriend(local);
+            remoteFriends.computeIfAbsent(taxNumber, k -> ConcurrentHashMap.newKeySet()).add(friendTax);
+            return OperationResult.OK;
+        }
+    }
+
+    // whether client taxNumber of this partition has friendTax, of any partition, as a friend
+    public boolean hasFriend(int taxNumber, int friendTax) {
+        Client c = network.findClient(taxNumber);
+        if (c == null)
+            return false;
+        Client local = network.findClient(friendTax);
+        if (local != null)
+            return c.hasFriend(local);
+        return remoteFriends.getOrDefault(taxNumber, Collections.emptySet()).contains(friendTax);
+    }
+
+    // as Terminal.trySendSMS from terminal fromId of this partition to terminal toId of any partition
+    public SmsOutcome sendSMS(String fromId, String toId, String msg) {
+        Terminal from = network.findTerminal(fromId);
+        if (from == null || toId == null)
+            return SmsOutcome.REJECTED;
+        if (owns(toId)) {
+            Terminal to = network.findTerminal(toId);
+            return (to == null) ? SmsOutcome.REJECTED : from.trySendSMS(to, msg);
+        }
+        String text = (msg == null) ? "" : msg;
+        int tax = from.getClient().getTaxNumber();
+        return from.trySendRemoteSMS(new Terminal(toId, null), msg, () -> OUTCOMES[await(peerOf(toId).send(SMS, out -> {
+            out.writeUTF(fromId);
+            out.writeInt(tax);
+            out.writeUTF(toId);
+            out.writeUTF(text);
+        }), SmsOutcome.UNREACHABLE.ordinal())]);
+    }
+
+    // as Terminal.tryMakeVoiceCall from terminal fromId of this partition to terminal toId of any partition
+    public OperationResult makeVoiceCall(String fromId, String toId) {
+        Terminal from = network.findTerminal(fromId);
+        if (from == null || toId == null || toId.equals(fromId))
+            return OperationResult.INVALID_ARGUMENT;
+        if (owns(toId)) {
+            Terminal to = network.findTerminal(toId);
+            return (to == null) ? OperationResult.INVALID_ARGUMENT : from.tryMakeVoiceCall(to);
+        }
+        long started = System.nanoTime();
+        Terminal peer = new Terminal(toId, null);
+        Communication c = Communication.voiceCommunication(peer, from);
+        peer.restoreCall(c);
+        OperationResult r = from.holdRemoteCall(c, true);
+        if (r == OperationResult.OK) {
+            long id = (long) index << 48 | nextCall.getAndIncrement();
+            placed.put(id, c);
+            placedIds.put(c, id);
+            int tax = from.getClient().getTaxNumber();
+            r = RESULTS[await(peerOf(toId).send(CALL, out -> {
+                out.writeLong(id);
+                out.writeUTF(fromId);
+                out.writeInt(tax);
+                out.writeUTF(toId);
+            }), OperationResult.UNREACHABLE.ordinal())];
+            // the other node may have taken the call before its answer was lost
+            if (r == OperationResult.UNREACHABLE)
+                peerOf(toId).notice(HANGUP, out -> out.writeLong(id));
+            if (r != OperationResult.OK) {
+                placed.remove(id);
+                placedIds.remove(c);
+                from.dropRemoteCall(c);
+            }
+        }
+        if (r == OperationResult.OK)
+            network.callStarted(c, System.nanoTime() - started);
+        else
+            network.callRejected(from, peer);
+        return r;
+    }
+
+    // a call made from here ended: the other partition drops its side
+    @Override
+    public void communicationEnded(Communication c) {
+        Long id = placedIds.remove(c);
+        if (id != null && placed.remove(id) != null)
+            peerOf(c.to().getId()).notice(HANGUP, out -> out.writeLong(id));
+    }
+
+    // a terminal called from another partition left its call here: the caller's partition bills it
+    @Override
+    public void modeChanged(Terminal t, TerminalMode previous, TerminalMode mode) {
+        if (previous != TerminalMode.BUSY)
+            return;
+        Long id = receivedIds.remove(t);
+        Communication c = (id != null) ? received.remove(id) : null;
+        if (c != null) {
+            int seconds = c.getSize();
+            peerOf(c.from().getId()).notice(END, out -> {
+                out.writeLong(id);
+                out.writeInt(seconds);
+            });
+        }
+    }
+
+    // handles a request from another node; returns the ordinal of its outcome
+    private int handle(byte op, DataInputStream in) throws IOException {
+        switch (op) {
+            case SMS: {
+                String fromId = in.readUTF();
+                int fromTax = in.readInt();
+                String toId = in.readUTF();
+                String msg = in.readUTF();
+                return deliverSMS(fromId, fromTax, toId, msg).ordinal();
+            }
+            case CALL: {
+                long id = in.readLong();
+                String fromId = in.readUTF();
+                int fromTax = in.readInt();
+                String toId = in.readUTF();
+                return acceptCall(id, fromId, fromTax, toId).ordinal();
+            }
+            case END: {
+                long id = in.readLong();
+                int seconds = in.readInt();
+                Communication c = placed.remove(id);
+                if (c == null)
+                    return OperationResult.NO_ONGOING_CALL.ordinal();
+                placedIds.remove(c);
+                return (c.from().endCall(c, seconds) ? OperationResult.OK : OperationResult.NO_ONGOING_CALL).ordinal();
+            }
+            case HANGUP: {
+                long id = in.readLong();
+                Communication c = received.remove(id);
+                if (c == null)
+                    return OperationResult.NO_ONGOING_CALL.ordinal();
+                receivedIds.remove(c.to(), id);
+                return (c.to().dropRemoteCall(c) ? OperationResult.OK : OperationResult.NO_ONGOING_CALL).ordinal();
+            }
+            default:
+                throw new IOException("Unknown operation " + op);
+        }
+    }
+
+    private SmsOutcome deliverSMS(String fromId, int fromTax, String toId, String msg) {
+        Terminal to = network.findTerminal(toId);
+        if (to == null)
+            return SmsOutcome.REJECTED;
+        TerminalMode m = to.getMode();
+        SmsOutcome outcome = Terminal.receivable(m, m == TerminalMode.SILENT
+                                                    && hasFriend(to.getClient().getTaxNumber(), fromTax));
+        if (outcome == SmsOutcome.DELIVERED)
+            to.receiveSMS(new Terminal(fromId, null), msg);
+        return outcome;
+    }
+
+    private OperationResult acceptCall(long id, String fromId, int fromTax, String toId) {
+        Terminal to = network.findTerminal(toId);
+        if (to == null)
+            return OperationResult.INVALID_ARGUMENT;
+        Terminal peer = new Terminal(fromId, null); // no client: the caller's partition bills the call
+        Communication c = Communication.voiceCommunication(to, peer);
+        peer.restoreCall(c);
+        OperationResult r = to.holdRemoteCall(c, false);
+        if (r == OperationResult.OK) {
+            received.put(id, c);
+            receivedIds.put(to, id);
+            if (to.getOngoing() != c) // ended before it was recorded
+                modeChanged(to, TerminalMode.BUSY, to.getMode());
+        }
+        return r;
+    }
+
+    private Peer peerOf(String terminalId) {
+        return peers[partitionOf(terminalId, partitions)];
+    }
+
+    // the ordinal answered to a request, or unreachable when there is no answer in time
+    private int await(CompletableFuture<Integer> f, int unreachable) {
+        try {
+            return f.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return unreachable;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return unreachable;
+        }
+    }
+
+    // sends the notices of peers that had no live connection, one at a time
+    private void sendNotices() {
+        try {
+            while (!closed)
+                notices.take().run();
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket s = server.accept();
+                s.setTcpNoDelay(true);
+                sessions.add(s);
+                Thread t = new Thread(() -> serve(s), "partition-" + index + "-session");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    // answers the requests of one connection in order
+    private void serve(Socket s) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            while (true) {
+                int id = in.readInt();
+                byte op = in.readByte();
+                int result = handle(op, in);
+                out.writeInt(id);
+                out.writeByte(result);
+                if (in.available() == 0) // the answers to pipelined requests leave together
+                    out.flush();
+            }
+        } catch (IOException e) {
+            // the other node closed the connection
+        } finally {
+            sessions.remove(s);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        notifier.interrupt();
+        for (Socket s : sessions)
+            s.close();
+        for (Peer p : peers)
+            if (p != null)
+                p.close();
+    }
+
+    /** Requests to another node, over a connection opened when first needed and again after it breaks. **/
+    private final class Peer {
+        private final int node;
+        private final AtomicInteger nextId = new AtomicInteger();
+        private volatile Connection connection; // written under this
+
+        Peer(int node) {
+            this.node = node;
+        }
+
+        CompletableFuture<Integer> send(byte op, Body body) {
+            Request r = new Request(nextId.incrementAndGet(), op, body);
+            try {
+                connection().send(r);
+            } catch (IOException e) {
+                r.done.completeExceptionally(e);
+            }
+            return r.done;
+        }
+
+        // sends a request whose answer nobody waits for, without blocking the caller
+        void notice(byte op, Body body) {
+            Connection c = connection;
+            if (c != null && !c.broken)
+                c.send(new Request(nextId.incrementAndGet(), op, body));
+            else
+                notices.add(() -> send(op, body));
+        }
+
+        private synchronized Connection connection() throws IOException {
+            if (closed)
+                throw new IOException("Partition node closed");
+            if (connection != null && !connection.broken)
+                return connection;
+            if (addresses.isEmpty())
+                throw new IOException("Not connected");
+            connection = new Connection(node);
+            return connection;
+        }
+
+        synchronized void close() {
+            if (connection != null)
+                connection.fail(new IOException("Partition node closed"));
+        }
+    }
+
+    /** One connection to another node, sending requests and completing them as answers come. **/
+    private final class Connection {
+        private final Request stop = new Request(0, (byte) 0, null);
+        private final Socket socket;
+        private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+        private final ConcurrentHashMap<Integer, CompletableFuture<Integer>> pending = new ConcurrentHashMap<>();
+        private volatile boolean broken = false;
+
+        Connection(int node) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(addresses.get(node), (int) Math.min(timeoutMillis, Integer.MAX_VALUE));
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Thread writer = new Thread(() -> write(out), "partition-" + index + "-to-" + node);
+            Thread reader = new Thread(() -> read(in), "partition-" + index + "-from-" + node);
+            writer.setDaemon(true);
+            reader.setDaemon(true);
+            writer.start();
+            reader.start();
+        }
+
+        void send(Request r) {
+            pending.put(r.id, r.done);
+            queue.add(r);
+            // whoever takes r out of pending completes it, here or in fail
+            if (broken && pending.remove(r.id) != null)
+                r.done.completeExceptionally(new IOException("Connection to partition lost"));
+        }
+
+        private void write(DataOutputStream out) {
+            List<Request> batch = new ArrayList<>(BATCH);
+            try {
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, BATCH - 1);
+                    for (Request r : batch) {
+                        if (r == stop)
+                            return;
+                        out.writeInt(r.id);
+                        out.writeByte(r.op);
+                        r.body.write(out);
+                    }
+                    out.flush();
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                fail(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void read(DataInputStream in) {
+            try {
+                while (true) {
+                    int id = in.readInt();
+                    int result = in.readByte();
+                    CompletableFuture<Integer> f = pending.remove(id);
+                    if (f != null)
+                        f.complete(result);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        // the connection is not used again: its threads stop and its pending requests fail
+        void fail(IOException e) {
+            broken = true;
+            queue.add(stop);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // already failing
+            }
+            for (Integer id : pending.keySet()) {
+                CompletableFuture<Integer> f = pending.remove(id);
+                if (f != null)
+                    f.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package prr.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Discrete-event simulation of a network, to test it under a realistic
+ * load.
+ *
+ * The population is split in partitions, closed communities whose
+ * terminals only talk to each other. Each partition has its own random
+ * generator (from the seed), its own event queue ordered by simulated time
+ * and its own counters, and runs on its own thread, so a run is the same
+ * for the same seed and number of partitions however the threads are
+ * scheduled; one partition gives a single-threaded run.
+ *
+ * Each terminal acts as a Poisson process: it sends a SMS, makes a call or
+ * changes its mode (on, off, silent); terminals pay their debt when turned
+ * off. Each client adds and removes friends. Everything goes through the
+ * try* operations, so rejections are counted, not thrown.
+ **/
+public class Simulator {
+    private static final int ACT = 0, CALL_END = 1, FRIENDS = 2, POWER_ON = 3;
+
+    // distribution of the call durations, around a mean
+    public enum Durations { FIXED, UNIFORM, EXPONENTIAL }
+
+    /** Parameters of a simulation. Rates are per hour of simulated time. **/
+    public static final class Config {
+        long seed = 1;
+        int clients = 1000;
+        int terminalsPerClient = 1;
+        long simulatedMillis = 3_600_000L;
+        double smsPerHour = 10;
+        double callsPerHour = 4;
+        double modeChangesPerHour = 2;
+        double friendChangesPerHour = 1;
+        Durations durations = Durations.EXPONENTIAL;
+        double meanCallSeconds = 90;
+        double payShare = 0.5; // chance a terminal pays its debt when turned off
+
+        public Config seed(long s) { seed = s; return this; }
+        public Config clients(int n) { clients = n; return this; }
+        public Config terminalsPerClient(int n) { terminalsPerClient = n; return this; }
+        public Config simulatedMillis(long ms) { simulatedMillis = ms; return this; }
+        public Config smsPerHour(double r) { smsPerHour = r; return this; }
+        public Config callsPerHour(double r) { callsPerHour = r; return this; }
+        public Config modeChangesPerHour(double r) { modeChangesPerHour = r; return this; }
+        public Config friendChangesPerHour(double r) { friendChangesPerHour = r; return this; }
+        public Config payShare(double p) { payShare = p; return this; }
+
+        public Config callDurations(Durations d, double meanSeconds) {
+            durations = d;
+            meanCallSeconds = meanSeconds;
+            return this;
+        }
+    }
+
+    /** Counts and totals of a run. **/
+    public static final class Report {
+        long events, smsAttempted, callsAttempted, callsStarted, callsRejected, modeRejected;
+        final long[] sms = new long[SmsOutcome.values().length];
+        long charges, payments, simulatedMillis, wallNanos;
+
+        void add(Report r) {
+            events += r.events;
+            smsAttempted += r.smsAttempted;
+            callsAttempted += r.callsAttempted;
+            callsStarted += r.callsStarted;
+            callsRejected += r.callsRejected;
+            modeRejected += r.modeRejected;
+            for (int i = 0; i < sms.length; i++)
+                sms[i] += r.sms[i];
+            charges += r.charges;
+            payments += r.payments;
+        }
+
+        public long getEvents() { return events; }
+        public long getSmsAttempted() { return smsAttempted; }
+        public long getSms(SmsOutcome outcome) { return sms[outcome.ordinal()]; }
+        public long getCallsAttempted() { return callsAttempted; }
+        public long getCallsStarted() { return callsStarted; }
+        public long getCallsRejected() { return callsRejected; }
+        public long getModeChangesRejected() { return modeRejected; }
+        // billing totals over the population, in cents
+        public long getCharges() { return charges; }
+        public long getPayments() { return payments; }
+        public long getSimulatedMillis() { return simulatedMillis; }
+        public long getWallNanos() { return wallNanos; }
+
+        // calls started per second of real time taken by the run
+        public double callsPerSecond() {
+            return (wallNanos == 0) ? 0 : callsStarted * 1e9 / wallNanos;
+        }
+
+        public double callRejectionRate() {
+            return (callsAttempted == 0) ? 0 : (double) callsRejected / callsAttempted;
+        }
+
+        // share of SMS that were not delivered, for any reason
+        public double smsRejectionRate() {
+            return (smsAttempted == 0) ? 0 : 1 - (double) getSms(SmsOutcome.DELIVERED) / smsAttempted;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d events, %d calls (%.1f%% rejected, %.0f/s), %d SMS (%.1f%% not delivered), "
+                                 + "charges %d, payments %d", events, callsStarted, 100 * callRejectionRate(),
+                                 callsPerSecond(), smsAttempted, 100 * smsRejectionRate(), charges, payments);
+        }
+    }
+
+    private final Config config;
+    private final Network network;
+    private final Client[] clients;
+    private final Terminal[] terminals; // the terminals of client i from i * terminalsPerClient
+
+    public Simulator(Config config) {
+        if (config.clients < 1 || config.terminalsPerClient < 1 || config.terminalsPerClient > 9)
+            throw new IllegalArgumentException("Invalid population");
+        this.config = config;
+        int per = config.terminalsPerClient;
+        network = new Network(config.clients * per);
+        clients = new Client[config.clients];
+        terminals = new Terminal[config.clients * per];
+        for (int i = 0; i < config.clients; i++) {
+            clients[i] = network.registerClient(String.valueOf(i + 1), i + 1, "S" + i + "_0");
+            terminals[i * per] = network.findTerminal("S" + i + "_0");
+            for (int t = 1; t < per; t++)
+                terminals[i * per + t] = network.addTerminal(i + 1, "S" + i + "_" + t);
+        }
+    }
+
+    public Network getNetwork() {
+        return network;
+    }
+
+    // runs the simulation in the given number of partitions, each on its own thread
+    public Report run(int partitions) throws Exception {
+        if (partitions < 1 || partitions > config.clients)
+            throw new IllegalArgumentException("Invalid number of partitions");
+        long started = System.nanoTime();
+        Report total = new Report();
+        if (partitions == 1) {
+            total.add(new Partition(0, 0, config.clients).run());
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(partitions);
+            try {
+                List<Future<Report>> done = new ArrayList<>();
+                for (int p = 0; p < partitions; p++) {
+                    int from = (int) ((long) config.clients * p / partitions);
+                    int to = (int) ((long) config.clients * (p + 1) / partitions);
+                    Partition part = new Partition(p, from, to);
+                    done.add(pool.submit(part::run));
+                }
+                for (Future<Report> f : done)
+                    total.add(f.get());
+            } finally {
+                pool.shutdown();
+            }
+        }
+        total.simulatedMillis = config.simulatedMillis;
+        total.wallNanos = System.nanoTime() - started;
+        return total;
+    }
+
+    private static final class Event implements Comparable<Event> {
+        final long time, seq;
+        final int kind, index;
+        final Communication call;
+        final int seconds;
+
+        Event(long time, long seq, int kind, int index, Communication call, int seconds) {
+            this.time = time;
+            this.seq = seq;
+            this.kind = kind;
+            this.index = index;
+            this.call = call;
+            this.seconds = seconds;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            int c = Long.compare(time, o.time);
+            return (c != 0) ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    /** The clients from to to (excluded) and their terminals, simulated by one thread. **/
+    private final class Partition {
+        final Random random;
+        final PriorityQueue<Event> queue = new PriorityQueue<>();
+        final int from, to, firstTerminal, endTerminal;
+        final double terminalRate, clientRate; // events per ms
+        final Report report = new Report();
+        long seq;
+
+        Partition(int number, int from, int to) {
+            this.random = new Random(config.seed * 1_000_003L + number);
+            this.from = from;
+            this.to = to;
+            firstTerminal = from * config.terminalsPerClient;
+            endTerminal = to * config.terminalsPerClient;
+            terminalRate = (config.smsPerHour + config.callsPerHour + config.modeChangesPerHour) / 3_600_000.0;
+            clientRate = config.friendChangesPerHour / 3_600_000.0;
+        }
+
+        Report run() {
+            for (int t = firstTerminal; t < endTerminal; t++)
+                schedule((long) (random.nextDouble() * 60_000), POWER_ON, t, null, 0);
+            for (int c = from; c < to; c++)
+                next(0, FRIENDS, c, clientRate);
+            Event e;
+            while ((e = queue.poll()) != null && e.time <= config.simulatedMillis) {
+                report.events++;
+                switch (e.kind) {
+                    case POWER_ON:
+                        terminals[e.index].tryTurnOn();
+                        next(e.time, ACT, e.index, terminalRate);
+                        break;
+                    case CALL_END:
+                        e.call.from().endCall(e.call, e.seconds); // unless it already ended
+                        break;
+                    case FRIENDS:
+                        changeFriend(clients[e.index]);
+                        next(e.time, FRIENDS, e.index, clientRate);
+                        break;
+                    default:
+                        act(e.time, e.index);
+                        next(e.time, ACT, e.index, terminalRate);
+                }
+            }
+            for (int c = from; c < to; c++) {
+                report.charges += clients[c].getCharges();
+                report.payments += clients[c].getPayments();
+            }
+            return report;
+        }
+
+        private void schedule(long time, int kind, int index, Communication call, int seconds) {
+            queue.add(new Event(time, seq++, kind, index, call, seconds));
+        }
+
+        // the next event of a Poisson process of the given rate
+        private void next(long now, int kind, int index, double rate) {
+            if (rate > 0)
+                schedule(now + 1 + (long) (-Math.log(1 - random.nextDouble()) / rate), kind, index, null, 0);
+        }
+
+        // sends a SMS, makes a call or changes mode; a terminal alone in its partition only changes mode
+        private void act(long now, int index) {
+            Terminal t = terminals[index];
+            double r = random.nextDouble() * (config.smsPerHour + config.callsPerHour + config.modeChangesPerHour);
+            Terminal to = (r < config.smsPerHour + config.callsPerHour) ? peer(index) : null;
+            if (to == null) {
+                changeMode(t);
+            } else if (r < config.smsPerHour) {
+                report.smsAttempted++;
+                report.sms[t.trySendSMS(to, "x".repeat(1 + random.nextInt(300))).ordinal()]++;
+            } else {
+                report.callsAttempted++;
+                if (t.tryMakeVoiceCall(to) == OperationResult.OK) {
+                    report.callsStarted++;
+                    int seconds = duration();
+                    schedule(now + 1000L * seconds, CALL_END, index, t.getOngoing(), seconds);
+                } else {
+                    report.callsRejected++;
+                }
+            }
+        }
+
+        private Terminal peer(int index) {
+            int n = endTerminal - firstTerminal;
+            if (n < 2)
+                return null;
+            int p = firstTerminal + random.nextInt(n - 1);
+            return terminals[(p >= index) ? p + 1 : p];
+        }
+
+        private void changeMode(Terminal t) {
+            OperationResult r;
+            if (t.getMode() == TerminalMode.OFF) {
+                r = t.tryTurnOn();
+            } else if (random.nextBoolean()) {
+                r = t.tryToggleOnMode();
+            } else {
+                r = t.tryTurnOff();
+                if (r == OperationResult.OK && random.nextDouble() < config.payShare) {
+                    long debt = t.getClient().balanceOf(t);
+                    if (debt >= 5)
+                        t.tryPay((int) Math.min(debt, Integer.MAX_VALUE));
+                }
+            }
+            if (r != OperationResult.OK)
+                report.modeRejected++;
+        }
+
+        private void changeFriend(Client c) {
+            List<Client> friends = c.getFriends();
+            if (!friends.isEmpty() && random.nextBoolean())
+                c.removeFriend(friends.get(random.nextInt(friends.size())));
+            else if (to - from > 1)
+                c.tryAddFriend(clients[from + random.nextInt(to - from)]);
+        }
+
+        private int duration() {
+            double mean = config.meanCallSeconds;
+            switch (config.durations) {
+                case FIXED:
+                    return Math.max(1, (int) Math.round(mean));
+                case UNIFORM:
+                    return 1 + random.nextInt(Math.max(1, (int) Math.round(2 * mean - 1)));
+                default:
+                    return Math.max(1, (int) Math.round(-mean * Math.log(1 - random.nextDouble())));
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package prr.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Asynchronous SMS delivery.
+ *
+ * Messages are put in one of several bounded queues, chosen by the id of
+ * the receiving terminal, so messages to the same terminal keep their
+ * order. Each queue has one worker thread that delivers in batches. When
+ * a queue is full the message is rejected at once instead of waiting.
+ **/
+public class SmsDispatcher implements AutoCloseable {
+    private static final Delivery STOP = new Delivery(null, null, null);
+
+    private final List<BlockingQueue<Delivery>> shards;
+    private final Thread[] workers;
+    private final int batchSize;
+    private volatile boolean closed = false;
+
+    private static final class Delivery {
+        final Terminal from;
+        final Terminal to;
+        final String msg;
+        final CompletableFuture<SmsOutcome> done = new CompletableFuture<>();
+
+        Delivery(Terminal from, Terminal to, String msg) {
+            this.from = from;
+            this.to = to;
+            this.msg = msg;
+        }
+    }
+
+    public SmsDispatcher() {
+        this(Runtime.getRuntime().availableProcessors(), 1024, 64);
+    }
+
+    // creates a dispatcher with the given number of queues, each holding at most queueCapacity messages
+    public SmsDispatcher(int shardCount, int queueCapacity, int batchSize) {
+        if (shardCount < 1 || queueCapacity < 1 || batchSize < 1)
+            throw new IllegalArgumentException("Invalid dispatcher sizes");
+        this.batchSize = batchSize;
+        shards = new ArrayList<>(shardCount);
+        workers = new Thread[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            BlockingQueue<Delivery> queue = new ArrayBlockingQueue<>(queueCapacity);
+            shards.add(queue);
+            workers[i] = new Thread(() -> drain(queue), "sms-dispatcher-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    // queues a SMS for delivery (see Terminal.trySendSMS(Terminal, String, SmsDispatcher))
+    CompletableFuture<SmsOutcome> submit(Terminal from, Terminal to, String msg) {
+        if (closed)
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Dispatcher closed"));
+        Delivery d = new Delivery(from, to, msg);
+        BlockingQueue<Delivery> queue = shards.get(shardOf(to));
+        if (!queue.offer(d))
+            return CompletableFuture.failedFuture(new RejectedExecutionException("SMS queue full"));
+        // closed while queueing: the workers may be gone. Whoever takes d out of the
+        // queue (a worker, close() or this) completes it, so it is never left pending.
+        if (closed && queue.remove(d))
+            d.done.completeExceptionally(new RejectedExecutionException("Dispatcher closed"));
+        return d.done;
+    }
+
+    // number of messages waiting for delivery
+    public int pending() {
+        int n = 0;
+        for (BlockingQueue<Delivery> q : shards)
+            n += q.size();
+        return n;
+    }
+
+    // stops accepting messages and waits until the queued ones are delivered. Messages
+    // queued too late for the workers fail with RejectedExecutionException. Closing again
+    // only waits for the first close to finish.
+    @Override
+    public synchronized void close() throws InterruptedException {
+        if (!closed) {
+            closed = true;
+            for (BlockingQueue<Delivery> q : shards)
+                q.put(STOP);
+        }
+        for (Thread w : workers)
+            w.join();
+        for (BlockingQueue<Delivery> q : shards)
+            for (Delivery d; (d = q.poll()) != null; )
+                d.done.completeExceptionally(new RejectedExecutionException("Dispatcher closed"));
+    }
+
+    private int shardOf(Terminal to) {
+        int h = to.getId().hashCode();
+        return ((h ^ (h >>> 16)) & 0x7fffffff) % shards.size();
+    }
+
+    private void drain(BlockingQueue<Delivery> queue) {
+        List<Delivery> batch = new ArrayList<>(batchSize);
+        boolean stop = false;
+        try {
+            while (!stop) {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                for (Delivery d : batch) {
+                    if (d == STOP)
+                        stop = true;
+                    else
+                        deliver(d);
+                }
+                batch.clear();
+            }
+            // messages that raced with close()
+            for (Delivery d; (d = queue.poll()) != null; )
+                deliver(d);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void deliver(Delivery d) {
+        try {
+            d.done.complete(d.from.deliverSMS(d.to, d.msg));
+        } catch (RuntimeException e) {
+            d.done.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package prr.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Inbox of the SMS received by the terminals of a network. Install it
+ * with Network.setInbox; Terminal.receiveSMS then appends every SMS it
+ * receives.
+ *
+ * Messages of all terminals are appended to one log of fixed-size byte
+ * segments, as records
+ *
+ *   previous (long), time (long), sender length (short), text length (short), sender, text
+ *
+ * with sender id and text in UTF-8, and previous the position of the
+ * record before it for the same terminal. The only per-terminal state is
+ * the position of its newest record, one long in an AtomicLongArray by
+ * terminal ordinal, so memory follows the bytes retained, not the number
+ * of messages or terminals that have any.
+ *
+ * Appending takes no lock. A writer reserves the bytes of its record by
+ * a compare-and-set on the (segment, end) cursor, copies the record in,
+ * and links it with a compare-and-set on the head of its terminal.
+ * Chains stay in log order: if a later record of the same terminal was
+ * linked first, the writer appends its record again after it and leaves
+ * the reserved bytes unused. Only starting a segment and evicting
+ * segments take the inbox monitor.
+ *
+ * Whole segments are evicted, oldest first, when there are more than
+ * maxSegments or when their newest message is older than maxAge; a read
+ * returns at most the latest perTerminal messages of a terminal. Segments
+ * are never reused, so a Cursor can decode the messages it found even
+ * after their segment was evicted.
+ **/
+public class SmsInbox {
+    private static final int HEADER = 20;
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+    private static final int END_BITS = 31; // a cursor is segment << END_BITS | end
+    private static final int EVICTED = Integer.MIN_VALUE; // records of an evicted segment, so later adds show
+
+    private final int segmentBytes, maxSegments, perTerminal;
+    private final long maxAge;
+    private final LongSupplier clock;
+    private final AtomicReferenceArray<Segment> ring; // segment n is at n % maxSegments
+    private volatile AtomicLongArray[] heads = new AtomicLongArray[0]; // position + 1 of the newest record, 0 if none
+    private volatile long first = 0; // oldest retained segment, changed under this monitor
+    // segment being appended to and where the next record goes in it; the segment is in the
+    // ring before the cursor names it, and only changes under this monitor
+    private final AtomicLong cursor = new AtomicLong();
+    private final LongAdder appended = new LongAdder(), dropped = new LongAdder(), evicted = new LongAdder();
+
+    /** A segment of the log. **/
+    private static final class Segment {
+        final long number;
+        final byte[] bytes;
+        final AtomicLong newest; // time of the newest record
+        final AtomicInteger records = new AtomicInteger(); // negative once evicted
+
+        Segment(long number, int size, long now) {
+            this.number = number;
+            this.bytes = new byte[size];
+            this.newest = new AtomicLong(now);
+        }
+    }
+
+    /** The messages of a terminal, oldest first; decoded only when asked for. **/
+    public static final class Cursor {
+        private final Segment[] segments;
+        private final int[] offsets;
+        private final long[] positions;
+        private int next, at = -1;
+
+        private Cursor(Segment[] segments, int[] offsets, long[] positions, int n) {
+            this.segments = segments;
+            this.offsets = offsets;
+            this.positions = positions;
+            this.next = segments.length - n;
+        }
+
+        // moves to the next message; false after the last one
+        public boolean next() {
+            if (next == segments.length)
+                return false;
+            at = next++;
+            return true;
+        }
+
+        // messages left after the current one
+        public int remaining() { return segments.length - next; }
+
+        // where the current message is in the log; read(t, position) returns the messages after it
+        public long position() { return positions[current()]; }
+
+        // when the current message was received, in milliseconds since the epoch
+        public long time() { return getLong(segments[current()].bytes, offsets[at] + 8); }
+
+        // id of the terminal that sent the current message
+        public String sender() {
+            byte[] b = segments[current()].bytes;
+            int o = offsets[at];
+            return new String(b, o + HEADER, getShort(b, o + 16), StandardCharsets.UTF_8);
+        }
+
+        public String text() {
+            byte[] b = segments[current()].bytes;
+            int o = offsets[at], idLength = getShort(b, o + 16);
+            return new String(b, o + HEADER + idLength, getShort(b, o + 18), StandardCharsets.UTF_8);
+        }
+
+        private int current() {
+            if (at < 0)
+                throw new IllegalStateException("No current message");
+            return at;
+        }
+    }
+
+    // keeps up to maxSegments segments of segmentBytes for at most maxAgeMillis (0: no age limit),
+    // reading at most perTerminal messages of each terminal
+    public SmsInbox(int segmentBytes, int maxSegments, long maxAgeMillis, int perTerminal) {
+        this(segmentBytes, maxSegments, maxAgeMillis, perTerminal, System::currentTimeMillis);
+    }
+
+    SmsInbox(int segmentBytes, int maxSegments, long maxAgeMillis, int perTerminal, LongSupplier clock) {
+        if (segmentBytes < 256 || segmentBytes > (1 << 30) || maxSegments < 1 || maxAgeMillis < 0 || perTerminal < 1)
+            throw new IllegalArgumentException("Invalid inbox limits");
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.maxAge = maxAgeMillis;
+        this.perTerminal = perTerminal;
+        this.clock = clock;
+        ring = new AtomicReferenceArray<>(maxSegments);
+        ring.set(0, new Segment(0, segmentBytes, clock.getAsLong()));
+    }
+
+    // keeps the SMS received by terminal to from terminal from; false if it cannot be kept
+    public boolean append(Terminal to, Terminal from, String msg) {
+        int ordinal = to.getOrdinal();
+        byte[] id = (from != null) ? from.getId().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        byte[] text = (msg != null) ? msg.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int need = HEADER + id.length + text.length;
+        if (ordinal < 0 || id.length > 0xFFFF || text.length > 0xFFFF || need > segmentBytes) {
+            dropped.increment();
+            return false;
+        }
+        AtomicLongArray chunk = chunk(ordinal);
+        int i = ordinal & CHUNK_MASK;
+        long now = clock.getAsLong();
+        if (maxAge != 0) {
+            Segment oldest = ring.get(slot(first));
+            if (oldest != null && oldest.newest.get() < now - maxAge)
+                expire();
+        }
+        while (true) {
+            long c = cursor.get();
+            long number = c >>> END_BITS;
+            int end = (int) (c & ((1L << END_BITS) - 1));
+            if (end + need > segmentBytes) {
+                synchronized (this) {
+                    if (cursor.get() == c)
+                        roll(now);
+                }
+                continue;
+            }
+            Segment s = ring.get(slot(number));
+            if (s == null || s.number != number || !cursor.compareAndSet(c, c + need))
+                continue; // the cursor moved on
+            byte[] b = s.bytes;
+            putLong(b, end + 8, now);
+            putShort(b, end + 16, id.length);
+            putShort(b, end + 18, text.length);
+            System.arraycopy(id, 0, b, end + HEADER, id.length);
+            System.arraycopy(text, 0, b, end + HEADER + id.length, text.length);
+            long position = number * segmentBytes + end;
+            if (link(chunk, i, b, end, position)) {
+                if (s.records.getAndIncrement() < 0) // evicted before it was linked
+                    evicted.increment();
+                s.newest.accumulateAndGet(now, Math::max);
+                break;
+            }
+        }
+        appended.increment();
+        return true;
+    }
+
+    // makes the record at position, at offset end of b, the newest of terminal i of chunk;
+    // false if a later record of the terminal is already linked
+    private static boolean link(AtomicLongArray chunk, int i, byte[] b, int end, long position) {
+        while (true) {
+            long head = chunk.get(i);
+            if (head - 1 > position)
+                return false;
+            putLong(b, end, head - 1);
+            if (chunk.compareAndSet(i, head, position + 1)) // publishes the record
+                return true;
+        }
+    }
+
+    // the latest messages of terminal t, at most perTerminal
+    public Cursor read(Terminal t) {
+        return read(t, -1);
+    }
+
+    // the latest messages of terminal t after the given position, at most perTerminal
+    public Cursor read(Terminal t, long after) {
+        int ordinal = t.getOrdinal();
+        Segment[] segments = new Segment[perTerminal];
+        int[] offsets = new int[perTerminal];
+        long[] positions = new long[perTerminal];
+        int n = 0;
+        long p = head(ordinal) - 1;
+        while (p > after && n < perTerminal) {
+            long number = p / segmentBytes;
+            Segment s = ring.get(slot(number));
+            if (s == null || s.number != number || number < first)
+                break; // evicted
+            int k = perTerminal - 1 - n++; // filled from the end, to be read oldest first
+            segments[k] = s;
+            offsets[k] = (int) (p % segmentBytes);
+            positions[k] = p;
+            p = getLong(s.bytes, offsets[k]);
+        }
+        return new Cursor(segments, offsets, positions, n);
+    }
+
+    // evicts the segments past the age limit now, without waiting for the next append
+    public synchronized void expire() {
+        expire(clock.getAsLong());
+    }
+
+    // bytes held by retained segments
+    public long retainedBytes() {
+        long n;
+        synchronized (this) {
+            n = current() - first + 1;
+        }
+        return n * segmentBytes;
+    }
+
+    // messages kept since the inbox was created
+    public long appended() { return appended.sum(); }
+
+    // messages refused for being too long or for a terminal without an ordinal
+    public long dropped() { return dropped.sum(); }
+
+    // messages evicted with their segment
+    public long evicted() { return evicted.sum(); }
+
+    // the segment being appended to
+    private long current() {
+        return cursor.get() >>> END_BITS;
+    }
+
+    // must hold the monitor of this; starts a new segment, evicting the oldest if all are in use
+    private void roll(long now) {
+        long current = current();
+        if (current - first + 1 == maxSegments)
+            evictFirst();
+        start(current + 1, now);
+    }
+
+    // must hold the monitor of this
+    private void expire(long now) {
+        if (maxAge == 0)
+            return;
+        long current = current();
+        while (first <= current && ring.get(slot(first)).newest.get() < now - maxAge) {
+            if (first == current) { // all expired: start afresh rather than keep an old segment
+                evictFirst();
+                start(first, now);
+                return;
+            }
+            evictFirst();
+        }
+    }
+
+    // must hold the monitor of this; appends go to segment number from now on
+    private void start(long number, long now) {
+        ring.set(slot(number), new Segment(number, segmentBytes, now));
+        cursor.set(number << END_BITS);
+    }
+
+    // must hold the monitor of this; records linked later count as evicted when they are
+    private void evictFirst() {
+        evicted.add(ring.get(slot(first)).records.getAndSet(EVICTED));
+        ring.set(slot(first), null);
+        first++;
+    }
+
+    private int slot(long number) {
+        return (int) (number % maxSegments);
+    }
+
+    // position + 1 of the newest record of the terminal at ordinal, 0 if none
+    private long head(int ordinal) {
+        AtomicLongArray[] cs = heads;
+        int c = ordinal >>> CHUNK_SHIFT;
+        return (ordinal < 0 || c >= cs.length || cs[c] == null) ? 0 : cs[c].get(ordinal & CHUNK_MASK);
+    }
+
+    private AtomicLongArray chunk(int ordinal) {
+        int c = ordinal >>> CHUNK_SHIFT;
+        AtomicLongArray[] cs = heads;
+        if (c < cs.length && cs[c] != null)
+            return cs[c];
+        synchronized (ring) {
+            cs = heads;
+            if (c >= cs.length || cs[c] == null) {
+                cs = Arrays.copyOf(cs, Math.max(cs.length, c + 1));
+                cs[c] = new AtomicLongArray(1 << CHUNK_SHIFT);
+                heads = cs;
+            }
+            return cs[c];
+        }
+    }
+
+    private static void putLong(byte[] b, int at, long v) {
+        for (int i = 7; i >= 0; i--, v >>>= 8)
+            b[at + i] = (byte) v;
+    }
+
+    private static long getLong(byte[] b, int at) {
+        long v = 0;
+        for (int i = 0; i < 8; i++)
+            v = v << 8 | (b[at + i] & 0xFF);
+        return v;
+    }
+
+    private static void putShort(byte[] b, int at, int v) {
+        b[at] = (byte) (v >>> 8);
+        b[at + 1] = (byte) v;
+    }
+
+    private static int getShort(byte[] b, int at) {
+        return (b[at] & 0xFF) << 8 | (b[at + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,8 @@
+package prr.core;
+
+// what became of a SMS: delivered, dropped by the state of the receiving terminal,
+// rejected because the sending terminal could not send, refused by the network's
+// SmsRateLimiter, or lost because the receiver's partition did not answer
+public enum SmsOutcome {
+    DELIVERED, TARGET_OFF, TARGET_SILENT, REJECTED, RATE_LIMITED, UNREACHABLE
+}
@@ -0,0 +1,112 @@
+package prr.core;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket admission of SMS, per sending terminal and per client
+ * owning it. Install it with Network.setSmsLimiter; a SMS over either
+ * limit is not delivered and ends as SmsOutcome.RATE_LIMITED.
+ *
+ * Each bucket is one long in an AtomicLongArray, indexed by terminal or
+ * client ordinal in chunks allocated as ordinals grow: the time at which
+ * the bucket will be full again (the generic cell rate algorithm). Taking
+ * a token moves that time one interval later with a compare-and-set, and
+ * is refused when it would lie more than a burst of intervals ahead, so
+ * admission takes no lock and no per-terminal object.
+ **/
+public class SmsRateLimiter {
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    private final Buckets terminals, clients;
+    private final LongSupplier clock;
+    private final long origin; // times are kept from here, so that they never go below 0
+    private final LongAdder terminalRejections = new LongAdder(), clientRejections = new LongAdder();
+
+    // limits each terminal and each client to a rate (SMS per second) with bursts of up to burst SMS;
+    // a rate of 0 leaves that level unlimited
+    public SmsRateLimiter(double terminalRate, int terminalBurst, double clientRate, int clientBurst) {
+        this(terminalRate, terminalBurst, clientRate, clientBurst, System::nanoTime);
+    }
+
+    SmsRateLimiter(double terminalRate, int terminalBurst, double clientRate, int clientBurst, LongSupplier clock) {
+        if (terminalRate < 0 || clientRate < 0 || terminalBurst < 1 || clientBurst < 1)
+            throw new IllegalArgumentException("Invalid rate limits");
+        terminals = (terminalRate == 0) ? null : new Buckets(terminalRate, terminalBurst);
+        clients = (clientRate == 0) ? null : new Buckets(clientRate, clientBurst);
+        this.clock = clock;
+        this.origin = clock.getAsLong();
+    }
+
+    // takes a token from the buckets of terminal t and of its client; false if either is empty
+    public boolean tryAcquire(Terminal t) {
+        long now = clock.getAsLong() - origin;
+        int ordinal = t.getOrdinal();
+        if (terminals != null && ordinal >= 0 && !terminals.take(ordinal, now)) {
+            terminalRejections.increment();
+            return false;
+        }
+        Client c = t.getClient();
+        if (clients != null && c != null && !clients.take(c.getOrdinal(), now)) {
+            if (terminals != null && ordinal >= 0)
+                terminals.giveBack(ordinal); // the SMS is not sent, so the terminal keeps its token
+            clientRejections.increment();
+            return false;
+        }
+        return true;
+    }
+
+    // SMS refused by the limit of their terminal
+    public long terminalRejections() { return terminalRejections.sum(); }
+
+    // SMS refused by the limit of their client
+    public long clientRejections() { return clientRejections.sum(); }
+
+    /** The buckets of one level, by ordinal. **/
+    private static final class Buckets {
+        final long interval; // nanoseconds per token
+        final long tolerance; // how far ahead of now the full time may be
+        private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+
+        Buckets(double rate, int burst) {
+            interval = Math.max(1, (long) (1e9 / rate));
+            tolerance = interval * (burst - 1);
+        }
+
+        boolean take(int ordinal, long now) {
+            AtomicLongArray chunk = chunk(ordinal);
+            int i = ordinal & CHUNK_MASK;
+            while (true) {
+                long full = chunk.get(i);
+                long from = Math.max(full, now); // an idle bucket is full, not in credit
+                if (from - now > tolerance)
+                    return false;
+                if (chunk.compareAndSet(i, full, from + interval))
+                    return true;
+            }
+        }
+
+        void giveBack(int ordinal) {
+            chunk(ordinal).addAndGet(ordinal & CHUNK_MASK, -interval);
+        }
+
+        private AtomicLongArray chunk(int ordinal) {
+            int c = ordinal >>> CHUNK_SHIFT;
+            AtomicLongArray[] cs = chunks;
+            if (c < cs.length && cs[c] != null)
+                return cs[c];
+            synchronized (this) {
+                cs = chunks;
+                if (c >= cs.length || cs[c] == null) {
+                    cs = Arrays.copyOf(cs, Math.max(cs.length, c + 1));
+                    cs[c] = new AtomicLongArray(1 << CHUNK_SHIFT);
+                    chunks = cs;
+                }
+                return cs[c];
+            }
+        }
+    }
+}
@@ -1,22 +1,39 @@
 package prr.core;
 
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
 import prr.core.exceptions.InvalidInvocationException;
 
+/**
+* This class represents a terminal. Mode changes are made while holding the
+* terminal's monitor; a voice call holds the monitors of both terminals,
+* always taken in the same order (by id), so call setup and teardown are
+* atomic for both peers and can never deadlock.
+**/
 public class Terminal {
+    // breaks lock-order ties between distinct terminals with the same id and identity hash
+    private static final Object TIE_LOCK = new Object();
+
     private final String id;
-    private Client client;
-    private int balance = 0; // cents
-    private TerminalMode mode = TerminalMode.OFF;
+    private volatile Client client;
+    private final Ledger.Account account = new Ledger.Account(); // balance in cents
+    private volatile TerminalMode mode = TerminalMode.OFF;
     private TerminalMode prevMode;
-    private Communication ongoing;
+    private volatile Communication ongoing;
+    private volatile int ordinal = -1;
 
     // creates a terminal with a given identifier and associated to the given client.
+    // The client may be null until a Client adopts the terminal.
     public Terminal(String id, Client client) {
-        if (id == null || id.isEmpty() || client == null)
+        if (id == null || id.isEmpty())
             throw new InvalidInvocationException("Invalid constructor args");
         this.id = id;
         this.client = client;
     }
+    public final String getId() { return id; }
+
     // Returns the mode of this terminal
     public final TerminalMode getMode() { return mode; }
 
@@ -29,95 +46,434 @@ public class Terminal {
 
     // Decreases the debt of this terminal by the given amount. The amount must be a number greater than 5 cents
     public void pay(int amount) {
-        if (mode != TerminalMode.OFF || amount < 5)
+        if (tryPay(amount) != OperationResult.OK)
             throw new InvalidInvocationException("Pay only off and >=5");
-        balance -= amount;
+    }
+
+    // as pay, returning WRONG_MODE unless OFF and INVALID_ARGUMENT below 5 cents instead of throwing
+    public synchronized OperationResult tryPay(int amount) {
+        if (mode != TerminalMode.OFF)
+            return OperationResult.WRONG_MODE;
+        if (amount < 5)
+            return OperationResult.INVALID_ARGUMENT;
+        Client c = client;
+        if (c != null)
+            c.credit(this, amount);
+        else
+            account.addUnbilled(-amount);
+        Network n = getNetwork();
+        if (n != null)
+            n.paid(this, amount);
+        return OperationResult.OK;
     }
 
     // returns the balance of this terminal
-    public int balance() {
+    public synchronized int balance() {
         if (mode == TerminalMode.BUSY)
             throw new InvalidInvocationException("Balance unavailable in BUSY");
-        return balance;
+        Client c = client;
+        return (int) ((c != null) ? c.balanceOf(this) : account.raw());
+    }
+
+    // charges the cost of a communication made by this terminal
+    void charge(long cents) {
+        Client c = client;
+        if (c != null)
+            c.charge(this, cents);
+        else
+            account.addUnbilled(cents);
     }
 
+    Ledger.Account getAccount() { return account; }
+
     // send a SMS to terminal to with text msg. Returns if the SMS was successfully delivered.
     public boolean sendSMS(Terminal to, String msg) {
-        if (mode == TerminalMode.OFF || mode == TerminalMode.BUSY)
+        SmsOutcome outcome = trySendSMS(to, msg);
+        if (outcome == SmsOutcome.REJECTED)
             throw new InvalidInvocationException("Cannot send SMS now");
+        return outcome == SmsOutcome.DELIVERED;
+    }
 
-        if (to.getMode() == TerminalMode.OFF)
-            return false;
-        if (to.getMode() == TerminalMode.SILENT && !to.getClient().hasFriend(client))
+    // as sendSMS, returning REJECTED instead of throwing when this terminal cannot send
+    // or no receiver is given
+    public SmsOutcome trySendSMS(Terminal to, String msg) {
+        if (!canSendSMS(to))
+            return SmsOutcome.REJECTED;
+        if (!admitted(to))
+            return SmsOutcome.RATE_LIMITED;
+        return deliverSMS(to, msg);
+    }
+
+    // send a SMS through the given dispatcher. The returned handle completes with whether
+    // the SMS was delivered, or exceptionally with RejectedExecutionException under overload.
+    public CompletableFuture<Boolean> sendSMS(Terminal to, String msg, SmsDispatcher dispatcher) {
+        CompletableFuture<SmsOutcome> f = trySendSMS(to, msg, dispatcher);
+        if (f.isDone() && !f.isCompletedExceptionally() && f.join() == SmsOutcome.REJECTED)
+            throw new InvalidInvocationException("Cannot send SMS now");
+        return f.thenApply(o -> o == SmsOutcome.DELIVERED);
+    }
+
+    // as sendSMS through a dispatcher, completing with the outcome trySendSMS reports:
+    // REJECTED and RATE_LIMITED at once, the others when the SMS is delivered
+    public CompletableFuture<SmsOutcome> trySendSMS(Terminal to, String msg, SmsDispatcher dispatcher) {
+        if (!canSendSMS(to))
+            return CompletableFuture.completedFuture(SmsOutcome.REJECTED);
+        if (!admitted(to))
+            return CompletableFuture.completedFuture(SmsOutcome.RATE_LIMITED);
+        return dispatcher.submit(this, to, msg);
+    }
+
+    private boolean canSendSMS(Terminal to) {
+        if (to == null || mode == TerminalMode.OFF || mode == TerminalMode.BUSY) {
+            smsSent(to, SmsOutcome.REJECTED);
             return false;
-        
-        receiveSMS(this, msg);
+        }
         return true;
     }
 
-    // receives a SMS from terminal from with text msg
+    // whether the network's rate limiter, if any, lets this terminal send now
+    private boolean admitted(Terminal to) {
+        Network n = getNetwork();
+        SmsRateLimiter limiter = (n != null) ? n.getSmsLimiter() : null;
+        if (limiter == null || limiter.tryAcquire(this))
+            return true;
+        smsSent(to, SmsOutcome.RATE_LIMITED);
+        return false;
+    }
+
+    // delivers a SMS to terminal to if its mode allows it. Returns what became of it.
+    SmsOutcome deliverSMS(Terminal to, String msg) {
+        TerminalMode m = to.getMode();
+        SmsOutcome outcome = receivable(m, m == TerminalMode.SILENT && to.getClient().hasFriend(client));
+        if (outcome != SmsOutcome.DELIVERED) {
+            smsSent(to, outcome);
+            return outcome;
+        }
+        to.receiveSMS(this, msg);
+        return delivered(to, msg);
+    }
+
+    // as trySendSMS to the stand-in of a terminal of another partition, whose node delivers
+    // the SMS and answers what became of it (see PartitionNode)
+    SmsOutcome trySendRemoteSMS(Terminal standIn, String msg, Supplier<SmsOutcome> remote) {
+        if (!canSendSMS(standIn))
+            return SmsOutcome.REJECTED;
+        if (!admitted(standIn))
+            return SmsOutcome.RATE_LIMITED;
+        SmsOutcome outcome = remote.get();
+        if (outcome != SmsOutcome.DELIVERED) {
+            smsSent(standIn, outcome);
+            return outcome;
+        }
+        return delivered(standIn, msg);
+    }
+
+    // what becomes of a SMS to a terminal in mode m, whose client has the sender's as a friend or not
+    static SmsOutcome receivable(TerminalMode m, boolean friend) {
+        if (m == TerminalMode.OFF)
+            return SmsOutcome.TARGET_OFF;
+        if (m == TerminalMode.SILENT && !friend)
+            return SmsOutcome.TARGET_SILENT;
+        return SmsOutcome.DELIVERED;
+    }
+
+    // bills a SMS received by terminal to and tells the listeners
+    private SmsOutcome delivered(Terminal to, String msg) {
+        Communication c = Communication.textCommunication(to, this, (msg == null) ? 0 : msg.length());
+        charge(c.end());
+        smsSent(to, SmsOutcome.DELIVERED);
+        communicationEnded(c);
+        return SmsOutcome.DELIVERED;
+    }
+
+    private void smsSent(Terminal to, SmsOutcome outcome) {
+        Network n = getNetwork();
+        if (n != null)
+            n.smsSent(this, to, outcome);
+    }
+
+    // receives a SMS from terminal from with text msg, kept in the network's inbox if it has one
     public void receiveSMS(Terminal from, String msg) {
-        // Does something with the message
+        Network n = getNetwork();
+        SmsInbox inbox = (n != null) ? n.getInbox() : null;
+        if (inbox != null)
+            inbox.append(this, from, msg);
     }
 
     // start a voice call with tetminal to
     public void makeVoiceCall(Terminal to) {
+        switch (tryMakeVoiceCall(to)) {
+            case OK:
+                return;
+            case INVALID_ARGUMENT:
+                throw new InvalidInvocationException("Invalid call target");
+            case WRONG_MODE:
+                throw new InvalidInvocationException("Cannot start call");
+            default:
+                throw new InvalidInvocationException("Target unavailable");
+        }
+    }
+
+    // as makeVoiceCall, returning INVALID_ARGUMENT for a null or own target, WRONG_MODE
+    // when this terminal cannot call and TARGET_UNAVAILABLE when to is not NORMAL
+    public OperationResult tryMakeVoiceCall(Terminal to) {
+        Network n = getNetwork();
+        long started = (n != null && n.observed()) ? System.nanoTime() : 0;
+        OperationResult r;
+        Communication c = null;
+        if (to == null || to == this) {
+            r = OperationResult.INVALID_ARGUMENT;
+        } else {
+            int order = lockOrder(this, to);
+            Terminal first = (order < 0) ? this : to;
+            Terminal second = (order < 0) ? to : this;
+            if (order == 0) {
+                synchronized (TIE_LOCK) {
+                    synchronized (first) { synchronized (second) { r = startVoiceCall(to); c = ongoing; } }
+                }
+            } else {
+                synchronized (first) { synchronized (second) { r = startVoiceCall(to); c = ongoing; } }
+            }
+        }
+        if (n != null) {
+            if (r == OperationResult.OK)
+                n.callStarted(c, (started != 0) ? System.nanoTime() - started : 0);
+            else
+                n.callRejected(this, to);
+        }
+        return r;
+    }
+
+    // must hold the monitors of this and to
+    private OperationResult startVoiceCall(Terminal to) {
         if (mode == TerminalMode.OFF || mode == TerminalMode.BUSY)
-            throw new InvalidInvocationException("Cannot start call");
-        if (to.getMode() != TerminalMode.NORMAL)
-            throw new InvalidInvocationException("Target unavailable");
+            return OperationResult.WRONG_MODE;
+        if (to.mode != TerminalMode.NORMAL)
+            return OperationResult.TARGET_UNAVAILABLE;
 
-        Communication c = Communication.voiceCommunication(this, to);
+        Communication c = Communication.voiceCommunication(to, this);
+        to.acceptVoiceCall(c);
         prevMode = mode;
-        mode = TerminalMode.BUSY;
         ongoing = c;
+        setMode(TerminalMode.BUSY);
+        Network n = getNetwork();
+        CallTimer timer = (n != null) ? n.getCallTimer() : null;
+        if (timer != null)
+            timer.started(c);
+        return OperationResult.OK;
     }
 
     // to invoke over the receiving terminal of a voice call (represented by c). The voice
     // call is established if the terminal accepts the call, otherwise it throws an exception.
-    void acceptVoiceCall(Communication c) {
+    synchronized void acceptVoiceCall(Communication c) {
         if (mode != TerminalMode.NORMAL)
             throw new InvalidInvocationException("Cannot accept call");
         prevMode = mode;
-        mode = TerminalMode.BUSY;
         ongoing = c;
+        setMode(TerminalMode.BUSY);
+    }
+
+    // puts this terminal in call c with a terminal of another partition (see PartitionNode).
+    // The caller must be able to call, the receiver must be NORMAL.
+    synchronized OperationResult holdRemoteCall(Communication c, boolean caller) {
+        if (caller ? (mode == TerminalMode.OFF || mode == TerminalMode.BUSY) : mode != TerminalMode.NORMAL)
+            return caller ? OperationResult.WRONG_MODE : OperationResult.TARGET_UNAVAILABLE;
+        prevMode = mode;
+        ongoing = c;
+        setMode(TerminalMode.BUSY);
+        return OperationResult.OK;
+    }
+
+    // leaves call c without billing, when the other partition ended or refused it; false if c is not ongoing
+    synchronized boolean dropRemoteCall(Communication c) {
+        if (ongoing != c)
+            return false;
+        release();
+        return true;
     }
 
     // turns on this terminal
     public void turnOn() {
-        if (mode != TerminalMode.OFF)
+        if (tryTurnOn() != OperationResult.OK)
             throw new InvalidInvocationException("Already on");
-        mode = TerminalMode.NORMAL;
+    }
+
+    // as turnOn, returning WRONG_MODE if already on
+    public synchronized OperationResult tryTurnOn() {
+        if (mode != TerminalMode.OFF)
+            return OperationResult.WRONG_MODE;
+        setMode(TerminalMode.NORMAL);
+        return OperationResult.OK;
     }
 
     // turns off this terminal
     public void turnOff() {
-        if (mode == TerminalMode.BUSY)
+        if (tryTurnOff() != OperationResult.OK)
             throw new InvalidInvocationException("Cannot turn off while busy");
-        mode = TerminalMode.OFF;
+    }
+
+    // as turnOff, returning WRONG_MODE while busy
+    public synchronized OperationResult tryTurnOff() {
+        if (mode == TerminalMode.BUSY)
+            return OperationResult.WRONG_MODE;
+        setMode(TerminalMode.OFF);
+        return OperationResult.OK;
     }
 
     // toggles the On mode: normal to silent or silent to normal
     public void toggleOnMode() {
+        if (tryToggleOnMode() != OperationResult.OK)
+            throw new InvalidInvocationException("Can only toggle when on and idle");
+    }
+
+    // as toggleOnMode, returning WRONG_MODE when off or busy
+    public synchronized OperationResult tryToggleOnMode() {
         if (mode == TerminalMode.NORMAL)
-            mode = TerminalMode.SILENT;
+            setMode(TerminalMode.SILENT);
         else if (mode == TerminalMode.SILENT)
-            mode = TerminalMode.NORMAL;
+            setMode(TerminalMode.NORMAL);
         else
-            throw new InvalidInvocationException("Can only toggle when on and idle");
+            return OperationResult.WRONG_MODE;
+        return OperationResult.OK;
     }
 
     // Ends the ongoing communication.
     public void endOngoingCommunication() {
-        if (ongoing == null)
+        if (tryEndOngoingCommunication() != OperationResult.OK)
             throw new InvalidInvocationException("No ongoing call");
+    }
 
-        this.mode = prevMode;
+    // as endOngoingCommunication, returning NO_ONGOING_CALL when there is none
+    public OperationResult tryEndOngoingCommunication() {
+        while (true) {
+            Communication c = ongoing;
+            if (c == null)
+                return OperationResult.NO_ONGOING_CALL;
+            if (endCall(c))
+                return OperationResult.OK;
+            // the call changed while we were locking: look again
+        }
+    }
+
+    // ends call c if it is still ongoing in this terminal; false if it is not
+    boolean endCall(Communication c) {
+        return endCall(c, -1);
+    }
+
+    // as endCall, first setting the duration of c to the given seconds (none if negative)
+    boolean endCall(Communication c, int seconds) {
+        Terminal peer = (c.from() == this) ? c.to() : c.from();
+        int order = lockOrder(this, peer);
+        Terminal first = (order < 0) ? this : peer;
+        Terminal second = (order < 0) ? peer : this;
+        boolean ended;
+        if (order == 0) {
+            synchronized (TIE_LOCK) {
+                synchronized (first) { synchronized (second) { ended = endVoiceCall(c, peer, seconds); } }
+            }
+        } else {
+            synchronized (first) { synchronized (second) { ended = endVoiceCall(c, peer, seconds); } }
+        }
+        if (ended)
+            communicationEnded(c);
+        return ended;
+    }
+
+    // must hold the monitors of this and peer
+    private boolean endVoiceCall(Communication c, Terminal peer, int seconds) {
+        if (ongoing != c)
+            return false;
+        if (seconds >= 0)
+            c.duration(seconds);
         //client.updatePoints(0); // no change
-        Terminal peer = (ongoing.from() == this) ? ongoing.to() : ongoing.from();
-        peer.mode = peer.prevMode;
-        this.ongoing = null;
-        peer.ongoing = null;
+        c.from().charge(c.end());
+        release();
+        peer.release();
+        return true;
     }
-}
 
+    // must hold the monitor of this
+    private void release() {
+        ongoing = null;
+        setMode(prevMode);
+    }
+
+    // must hold the monitor of this; listeners see the changes of a terminal in order
+    private void setMode(TerminalMode m) {
+        TerminalMode old = mode;
+        mode = m;
+        if (old != m) {
+            Network n = getNetwork();
+            if (n != null)
+                n.modeChanged(this, old, m);
+        }
+    }
+
+    // the mode this terminal returns to when not in a call
+    synchronized TerminalMode getIdleMode() {
+        return (mode == TerminalMode.BUSY) ? prevMode : mode;
+    }
+
+    // sets the state recovered from a journal or snapshot, before the terminal is in use
+    synchronized void restore(TerminalMode m, long balance) {
+        mode = m;
+        Client c = client;
+        if (c != null)
+            c.restoreBalance(this, balance);
+        else
+            account.addUnbilled(balance);
+    }
+
+    // puts this terminal back in call c, recovered from a snapshot, before the terminal is in use
+    synchronized void restoreCall(Communication c) {
+        prevMode = mode;
+        ongoing = c;
+        mode = TerminalMode.BUSY;
+    }
+
+    // tells the listeners of the network of the originating client
+    private static void communicationEnded(Communication c) {
+        Network n = c.from().getNetwork();
+        if (n != null)
+            n.communicationEnded(c);
+    }
+
+    // the network of this terminal's client, or null
+    Network getNetwork() {
+        Client c = client;
+        return (c != null) ? c.getNetwork() : null;
+    }
+
+    // dense index given by the network, -1 until the terminal is registered
+    int getOrdinal() { return ordinal; }
+    void setOrdinal(int o) { ordinal = o; }
+
+    // the ongoing communication of this terminal, or null
+    Communication getOngoing() { return ongoing; }
+
+    // runs action holding the monitors of all the given terminals, taken in lock order
+    static <T> T locked(Terminal[] ts, Supplier<T> action) {
+        Terminal[] sorted = ts.clone();
+        Arrays.sort(sorted, Terminal::lockOrder);
+        for (int i = 1; i < sorted.length; i++)
+            if (sorted[i] != sorted[i - 1] && lockOrder(sorted[i - 1], sorted[i]) == 0)
+                synchronized (TIE_LOCK) { return locked(sorted, 0, action); }
+        return locked(sorted, 0, action);
+    }
+
+    private static <T> T locked(Terminal[] sorted, int from, Supplier<T> action) {
+        if (from == sorted.length)
+            return action.get();
+        synchronized (sorted[from]) {
+            return locked(sorted, from + 1, action);
+        }
+    }
+
+    // total order used to lock two terminals; 0 only for distinct terminals that cannot be told apart
+    private static int lockOrder(Terminal a, Terminal b) {
+        int c = a.id.compareTo(b.id);
+        if (c != 0)
+            return c;
+        return Integer.compare(System.identityHashCode(a), System.identityHashCode(b));
+    }
+}
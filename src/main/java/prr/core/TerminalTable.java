@@ -0,0 +1,246 @@
+package prr.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import prr.core.exceptions.InvalidInvocationException;
+
+/**
+ * Storage for very large populations of idle terminals: what a Terminal
+ * keeps between calls (its id, its client, its mode and its balance) in
+ * dense primitive arrays indexed by ordinal instead of one Terminal object
+ * (with its id String, Ledger.Account and map entries) per terminal.
+ *
+ * The table only stores; it has no operations of its own. A terminal is
+ * used through a Terminal: load builds one for its client as a snapshot
+ * does, so calls, SMS, payments, ids, the ledger and the listeners are
+ * those of the network, and save writes its state back once it is idle.
+ *
+ * Per terminal the table holds a byte with the mode, a long balance in
+ * cents and the client's key (its tax number); ids are kept in a shared
+ * pool of pages, one byte per char when they fit in Latin-1 and two
+ * otherwise, and found through an open addressing index of ordinals.
+ * Arrays grow in chunks and existing chunks never move, so readers need
+ * no lock; add and save take the monitor of the table.
+ **/
+public final class TerminalTable {
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+    private static final int PAGE_SHIFT = 20; // id pool pages of 1 MB, or one page for a longer id
+    private static final TerminalMode[] MODES = TerminalMode.values();
+    private static final VarHandle MODE = MethodHandles.arrayElementVarHandle(byte[].class);
+    private static final VarHandle BALANCE = MethodHandles.arrayElementVarHandle(long[].class);
+
+    // by ordinal, in chunks of 1 << CHUNK_SHIFT
+    private volatile byte[][] modes = new byte[0][];
+    private volatile long[][] balances = new long[0][];
+    private volatile int[][] owners = new int[0][];
+    private volatile int[][] idRefs = new int[0][]; // page << PAGE_SHIFT | offset of an id
+
+    private volatile byte[][] pages = { new byte[1 << PAGE_SHIFT] };
+    private int pageEnd = 0;
+    private volatile AtomicIntegerArray index = new AtomicIntegerArray(1024); // ordinal + 1, 0 when empty
+    private volatile int size = 0;
+
+    // adds an OFF terminal of the client with the given key; returns its ordinal
+    public synchronized int add(String id, int client) {
+        if (id == null || id.isEmpty())
+            throw new InvalidInvocationException("Invalid constructor args");
+        if (find(id) >= 0)
+            throw new InvalidInvocationException("Duplicate terminal id");
+        int o = size;
+        if (o == Integer.MAX_VALUE - 1)
+            throw new IllegalStateException("Terminal table full");
+        int c = o >>> CHUNK_SHIFT, i = o & CHUNK_MASK;
+        if (c == modes.length)
+            grow();
+        owners[c][i] = client;
+        idRefs[c][i] = store(id);
+        if ((o + 1) * 2L > index.length())
+            rehash(index.length() * 2);
+        insert(index, id.hashCode(), o);
+        size = o + 1; // publishes the terminal
+        return o;
+    }
+
+    // stores the state of an idle terminal, adding it when its id is new; returns its ordinal
+    public synchronized int save(Terminal t) {
+        if (t.getMode() == TerminalMode.BUSY)
+            throw new InvalidInvocationException("Cannot store a terminal in a call");
+        Client c = t.getClient();
+        int client = (c != null) ? c.getTaxNumber() : 0;
+        int o = find(t.getId());
+        if (o < 0)
+            o = add(t.getId(), client);
+        else if (getClient(o) != client)
+            throw new InvalidInvocationException("Terminal of another client");
+        BALANCE.setVolatile(balances[o >>> CHUNK_SHIFT], o & CHUNK_MASK, (long) t.balance());
+        MODE.setVolatile(modes[o >>> CHUNK_SHIFT], o & CHUNK_MASK, (byte) t.getMode().ordinal());
+        return o;
+    }
+
+    // a new Terminal of client c with the stored state of the terminal at ordinal
+    public Terminal load(int ordinal, Client c) {
+        check(ordinal);
+        if (c == null || c.getTaxNumber() != getClient(ordinal))
+            throw new InvalidInvocationException("Terminal of another client");
+        Terminal t = new Terminal(getId(ordinal), null);
+        c.addTerminal(t);
+        t.restore(getMode(ordinal), getBalance(ordinal));
+        return t;
+    }
+
+    // the ordinal of the terminal with the given id, or -1
+    public int find(String id) {
+        AtomicIntegerArray ix = index;
+        int mask = ix.length() - 1;
+        for (int s = mix(id.hashCode()) & mask; ; s = (s + 1) & mask) {
+            int e = ix.get(s);
+            if (e == 0)
+                return -1;
+            if (idEquals(e - 1, id))
+                return e - 1;
+        }
+    }
+
+    public int size() { return size; }
+
+    public String getId(int ordinal) {
+        check(ordinal);
+        int ref = idRefs[ordinal >>> CHUNK_SHIFT][ordinal & CHUNK_MASK];
+        byte[] page = pages[ref >>> PAGE_SHIFT];
+        int[] at = {ref & ((1 << PAGE_SHIFT) - 1)};
+        int header = varint(page, at);
+        char[] chars = new char[header >>> 1];
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = charAt(page, at[0], header, i);
+        return new String(chars);
+    }
+
+    // the key of the client owning the terminal
+    public int getClient(int ordinal) {
+        check(ordinal);
+        return owners[ordinal >>> CHUNK_SHIFT][ordinal & CHUNK_MASK];
+    }
+
+    public TerminalMode getMode(int ordinal) {
+        check(ordinal);
+        return MODES[(byte) MODE.getVolatile(modes[ordinal >>> CHUNK_SHIFT], ordinal & CHUNK_MASK)];
+    }
+
+    // the stored balance in cents
+    public long getBalance(int ordinal) {
+        check(ordinal);
+        return (long) BALANCE.getVolatile(balances[ordinal >>> CHUNK_SHIFT], ordinal & CHUNK_MASK);
+    }
+
+    private void check(int ordinal) {
+        if (ordinal < 0 || ordinal >= size)
+            throw new InvalidInvocationException("Unknown terminal");
+    }
+
+    // must hold the monitor of this; adds a chunk to every column
+    private void grow() {
+        int n = modes.length + 1, len = 1 << CHUNK_SHIFT;
+        byte[][] m = Arrays.copyOf(modes, n);
+        long[][] b = Arrays.copyOf(balances, n);
+        int[][] o = Arrays.copyOf(owners, n), r = Arrays.copyOf(idRefs, n);
+        m[n - 1] = new byte[len];
+        b[n - 1] = new long[len];
+        o[n - 1] = new int[len];
+        r[n - 1] = new int[len];
+        balances = b;
+        owners = o;
+        idRefs = r;
+        modes = m;
+    }
+
+    // must hold the monitor of this; appends the id to the pool and returns where it is
+    private int store(String id) {
+        boolean wide = false;
+        for (int i = 0; i < id.length() && !wide; i++)
+            wide = id.charAt(i) > 0xFF;
+        int header = id.length() << 1 | (wide ? 1 : 0);
+        int need = 5 + (wide ? 2 : 1) * id.length();
+        byte[][] ps = pages;
+        if (pageEnd + need > ps[ps.length - 1].length) {
+            if (ps.length == 1 << (31 - PAGE_SHIFT))
+                throw new IllegalStateException("Terminal id pool full");
+            ps = Arrays.copyOf(ps, ps.length + 1);
+            ps[ps.length - 1] = new byte[Math.max(1 << PAGE_SHIFT, need)];
+            pageEnd = 0;
+        }
+        byte[] page = ps[ps.length - 1];
+        int start = pageEnd;
+        int at = start;
+        for (int v = header; ; v >>>= 7) {
+            if ((v & ~0x7F) == 0) {
+                page[at++] = (byte) v;
+                break;
+            }
+            page[at++] = (byte) (v & 0x7F | 0x80);
+        }
+        for (int i = 0; i < id.length(); i++) {
+            char ch = id.charAt(i);
+            if (wide)
+                page[at++] = (byte) (ch >>> 8);
+            page[at++] = (byte) ch;
+        }
+        pages = ps;
+        pageEnd = at;
+        return (ps.length - 1) << PAGE_SHIFT | start;
+    }
+
+    private boolean idEquals(int ordinal, String id) {
+        int ref = idRefs[ordinal >>> CHUNK_SHIFT][ordinal & CHUNK_MASK];
+        byte[] page = pages[ref >>> PAGE_SHIFT];
+        int[] at = {ref & ((1 << PAGE_SHIFT) - 1)};
+        int header = varint(page, at);
+        if (header >>> 1 != id.length())
+            return false;
+        for (int i = 0; i < id.length(); i++)
+            if (charAt(page, at[0], header, i) != id.charAt(i))
+                return false;
+        return true;
+    }
+
+    private static int varint(byte[] page, int[] at) {
+        int v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = page[at[0]++];
+            v |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return v;
+        }
+    }
+
+    // char i of an id whose chars start at from
+    private static char charAt(byte[] page, int from, int header, int i) {
+        if ((header & 1) == 0)
+            return (char) (page[from + i] & 0xFF);
+        return (char) ((page[from + 2 * i] & 0xFF) << 8 | (page[from + 2 * i + 1] & 0xFF));
+    }
+
+    // must hold the monitor of this
+    private void rehash(int capacity) {
+        AtomicIntegerArray ix = new AtomicIntegerArray(capacity);
+        for (int o = 0; o < size; o++)
+            insert(ix, getId(o).hashCode(), o);
+        index = ix;
+    }
+
+    private static void insert(AtomicIntegerArray ix, int hash, int ordinal) {
+        int mask = ix.length() - 1;
+        int s = mix(hash) & mask;
+        while (ix.get(s) != 0)
+            s = (s + 1) & mask;
+        ix.set(s, ordinal + 1); // after the id is stored, so a reader finding it can compare it
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,483 @@
+package prr.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Flags terminals and clients whose SMS or voice call rate jumps, while
+ * the traffic flows. Register it with Network.addListener: it counts every
+ * SMS a terminal sends (delivered or not, but not those refused before
+ * sending) and every voice call when it ends, by its caller.
+ *
+ * Each scope (terminals, clients) keeps a count-min sketch of the current
+ * window, a sketch of the baseline, and the space-saving top k of the
+ * window. The sketches are blocked: the four counters of a key lie in one
+ * 64 byte block, next to their baseline, so that an event misses the
+ * cache once per scope rather than eight times. At the end of a window
+ * the baseline becomes the mean of itself and the window, and the top k
+ * counts are halved, so older windows fade. Closing a window does not
+ * touch the sketches: each block remembers the window it was last brought
+ * up to, and the next event or estimate that reads it applies the windows
+ * closed since. Halving keeps the top k in order, so it is O(k) and only
+ * merges equal buckets. An event raises an alert
+ * when it takes the count of its key in the window to the threshold:
+ * minCount, or jumpFactor times the baseline if more. Each key alerts at
+ * most once per window.
+ *
+ * Each scope is split by key hash into stripes, each with its own slice
+ * of the sketches, its own top k and its own lock; a key always falls in
+ * the same stripe, so the top k of a scope is the largest of the entries
+ * of its stripes, merged when read. Keys are terminal ordinals and tax
+ * numbers, each with the type of communication. An event costs one hash
+ * and O(1) work in one stripe per scope, even when it closes a window
+ * (then O(k) for the top k); memory depends only on the sketch width, k
+ * and the number of stripes, not on how many terminals there are.
+ **/
+public class TrafficMonitor implements NetworkListener {
+    private static final int DEPTH = 4;
+    private static final int STRIPES = 16; // at most; a stripe has at least 16 counter pairs
+
+    public enum Scope { TERMINAL, CLIENT }
+
+    // receives the alerts, on the thread of the event that raised them
+    public interface Alerts {
+        void anomaly(Alert a);
+    }
+
+    /** A key whose count in the window reached its threshold. **/
+    public static final class Alert {
+        private final Scope scope;
+        private final CommunicationType type;
+        private final Terminal terminal;
+        private final long count, baseline;
+
+        Alert(Scope scope, CommunicationType type, Terminal terminal, long count, long baseline) {
+            this.scope = scope;
+            this.type = type;
+            this.terminal = terminal;
+            this.count = count;
+            this.baseline = baseline;
+        }
+
+        public Scope getScope() { return scope; }
+        public CommunicationType getType() { return type; }
+        // the terminal whose event raised the alert; for a client alert, one of its terminals
+        public Terminal getTerminal() { return terminal; }
+        public Client getClient() { return terminal.getClient(); }
+        // estimated count in the window
+        public long getCount() { return count; }
+        // estimated count of a window, decayed over the past windows
+        public long getBaseline() { return baseline; }
+
+        @Override
+        public String toString() {
+            String key = (scope == Scope.TERMINAL) ? terminal.getId() : String.valueOf(getClient().getTaxNumber());
+            return String.format("%s %s %s: %d against %d", scope, key, type, count, baseline);
+        }
+    }
+
+    /** An entry of a top k. **/
+    public static final class HeavyHitter {
+        private final Scope scope;
+        private final CommunicationType type;
+        private final Object subject;
+        private final long count, error;
+
+        HeavyHitter(Scope scope, CommunicationType type, Object subject, long count, long error) {
+            this.scope = scope;
+            this.type = type;
+            this.subject = subject;
+            this.count = count;
+            this.error = error;
+        }
+
+        public Scope getScope() { return scope; }
+        public CommunicationType getType() { return type; }
+        // the terminal of a TERMINAL entry, null otherwise
+        public Terminal getTerminal() { return (scope == Scope.TERMINAL) ? (Terminal) subject : null; }
+        public Client getClient() { return (scope == Scope.CLIENT) ? (Client) subject : ((Terminal) subject).getClient(); }
+        // decayed count, overestimated by at most error
+        public long getCount() { return count; }
+        public long getError() { return error; }
+
+        @Override
+        public String toString() {
+            String key = (scope == Scope.TERMINAL) ? ((Terminal) subject).getId()
+                                                   : String.valueOf(((Client) subject).getTaxNumber());
+            return String.format("%s %s %s: %d (+-%d)", scope, key, type, count, error);
+        }
+    }
+
+    private final long windowMillis, minCount;
+    private final int k;
+    private final double jumpFactor;
+    private final Alerts alerts;
+    private final LongSupplier clock;
+    private final Detector[] terminals, clients; // stripes of each scope
+    private final LongAdder raised = new LongAdder();
+
+    // counts in windows of windowMillis with sketches of width counter pairs (a power of 2) and a top k of k entries
+    public TrafficMonitor(long windowMillis, int width, int k, long minCount, double jumpFactor, Alerts alerts) {
+        this(windowMillis, width, k, minCount, jumpFactor, alerts, System::currentTimeMillis);
+    }
+
+    TrafficMonitor(long windowMillis, int width, int k, long minCount, double jumpFactor, Alerts alerts,
+                   LongSupplier clock) {
+        if (windowMillis < 1 || width < 16 || Integer.bitCount(width) != 1 || k < 1 || minCount < 1
+                || !(jumpFactor >= 1) || alerts == null)
+            throw new IllegalArgumentException("Invalid monitor settings");
+        this.windowMillis = windowMillis;
+        this.minCount = minCount;
+        this.jumpFactor = jumpFactor;
+        this.alerts = alerts;
+        this.clock = clock;
+        this.k = k;
+        long now = clock.getAsLong();
+        int stripes = Math.min(STRIPES, width / 16);
+        terminals = new Detector[stripes];
+        clients = new Detector[stripes];
+        for (int i = 0; i < stripes; i++) {
+            terminals[i] = new Detector(Scope.TERMINAL, width / stripes, k, now);
+            clients[i] = new Detector(Scope.CLIENT, width / stripes, k, now);
+        }
+    }
+
+    @Override
+    public void smsSent(Terminal from, Terminal to, SmsOutcome outcome) {
+        if (outcome != SmsOutcome.REJECTED && outcome != SmsOutcome.RATE_LIMITED)
+            count(from, CommunicationType.SMS);
+    }
+
+    @Override
+    public void communicationEnded(Communication c) {
+        if (c.getType() == CommunicationType.VOICE)
+            count(c.from(), CommunicationType.VOICE);
+    }
+
+    // the top k of a scope, largest first
+    public List<HeavyHitter> heavyHitters(Scope scope) {
+        long now = clock.getAsLong();
+        List<HeavyHitter> l = new ArrayList<>();
+        for (Detector d : detectors(scope))
+            d.top(now, l);
+        l.sort((a, b) -> Long.compare(b.count, a.count));
+        return (l.size() > k) ? new ArrayList<>(l.subList(0, k)) : l;
+    }
+
+    // estimated count of a terminal ordinal or tax number in the current window
+    public long estimate(Scope scope, CommunicationType type, int id) {
+        long h = hash(key(type, id));
+        Detector d = stripe(detectors(scope), h);
+        synchronized (d) {
+            d.roll(clock.getAsLong());
+            return d.estimate(0, h);
+        }
+    }
+
+    // alerts raised so far
+    public long alertCount() { return raised.sum(); }
+
+    private Detector[] detectors(Scope scope) {
+        return (scope == Scope.TERMINAL) ? terminals : clients;
+    }
+
+    // the stripe of hash h, chosen by bits its blocks and cells do not use
+    private static Detector stripe(Detector[] stripes, long h) {
+        return stripes[(int) (h >>> 48) & (stripes.length - 1)];
+    }
+
+    private void count(Terminal t, CommunicationType type) {
+        long now = clock.getAsLong();
+        int ordinal = t.getOrdinal();
+        if (ordinal >= 0) {
+            long key = key(type, ordinal), h = hash(key);
+            stripe(terminals, h).add(key, h, t, t, type, now);
+        }
+        Client c = t.getClient();
+        if (c != null) {
+            long key = key(type, c.getTaxNumber()), h = hash(key);
+            stripe(clients, h).add(key, h, c, t, type, now);
+        }
+    }
+
+    private static long key(CommunicationType type, int id) {
+        return (long) type.ordinal() << 32 | (id & 0xFFFFFFFFL);
+    }
+
+    // the finalizer of MurmurHash3; its halves give the cell of each row (double hashing)
+    private static long hash(long key) {
+        long h = key ^ 0x9E3779B97F4A7C15L;
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    /** The sketches and top k of one stripe of a scope; guarded by its monitor. **/
+    private final class Detector {
+        final Scope scope;
+        final int blocks; // mask of the block number
+        // blocks of 8 pairs of counters, window then baseline: a key has one counter pair in
+        // each of its block's 4 rows of 2 pairs, so an event touches one cache line
+        final int[] counters;
+        final long[] windows; // the window each block was last brought up to
+        final TopK top;
+        long window, windowEnd; // number and end of the current window
+
+        Detector(Scope scope, int width, int k, long now) {
+            this.scope = scope;
+            this.blocks = width / 8 - 1;
+            counters = new int[2 * width];
+            windows = new long[width / 8];
+            top = new TopK(k);
+            windowEnd = now + windowMillis;
+        }
+
+        void add(long key, long h, Object subject, Terminal t, CommunicationType type, long now) {
+            long count, base;
+            synchronized (this) {
+                roll(now);
+                long before = Long.MAX_VALUE;
+                int block = block(h);
+                base = Long.MAX_VALUE;
+                for (int r = 0; r < DEPTH; r++) {
+                    int i = cell(block, h, r);
+                    before = Math.min(before, counters[i]);
+                    base = Math.min(base, counters[i + 1]);
+                    if (counters[i] != Integer.MAX_VALUE)
+                        counters[i]++;
+                }
+                count = before + 1;
+                top.offer(key, (int) h, subject);
+                long threshold = Math.max(minCount, (long) Math.ceil(jumpFactor * base));
+                if (before >= threshold || count < threshold)
+                    return;
+            }
+            raised.increment();
+            alerts.anomaly(new Alert(scope, type, t, count, base));
+        }
+
+        // estimated count of the key of hash h in the window (0) or the baseline (1)
+        long estimate(int which, long h) {
+            long e = Long.MAX_VALUE;
+            int block = block(h);
+            for (int r = 0; r < DEPTH; r++)
+                e = Math.min(e, counters[cell(block, h, r) + which]);
+            return e;
+        }
+
+        // must hold the monitor of this; the first counter of the block of hash h, brought up
+        // to the current window: the first window closed since averages each baseline with
+        // its count, the others halve it, and 32 leave nothing
+        private int block(long h) {
+            int b = (int) h & blocks;
+            long behind = window - windows[b];
+            int start = b << 4;
+            if (behind > 0) {
+                windows[b] = window;
+                for (int i = start; i < start + 16; i += 2) {
+                    long base = ((long) counters[i + 1] + counters[i]) / 2;
+                    counters[i + 1] = (behind > 32) ? 0 : (int) (base >> (behind - 1));
+                    counters[i] = 0;
+                }
+            }
+            return start;
+        }
+
+        // the window counter of row r for hash h in its block; its baseline follows it
+        private int cell(int block, long h, int r) {
+            return block | (r << 2) | (int) ((h >>> (32 + r)) & 1) << 1;
+        }
+
+        // must hold the monitor of this; closes the windows that ended before now
+        void roll(long now) {
+            if (now < windowEnd)
+                return;
+            long n = (now - windowEnd) / windowMillis + 1;
+            window += n;
+            windowEnd += n * windowMillis;
+            top.halve((int) Math.min(n, 63));
+        }
+
+        // adds the entries of the top k to l
+        synchronized void top(long now, List<HeavyHitter> l) {
+            roll(now);
+            for (int i = 0; i < top.size; i++) {
+                if (top.counts[i] > 0) {
+                    CommunicationType type = CommunicationType.values()[(int) (top.keys[i] >>> 32)];
+                    l.add(new HeavyHitter(scope, type, top.subjects[i], top.counts[i], top.errors[i]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Space-saving top k: k counters found through an open addressing
+     * table, in buckets of equal count kept in increasing order (the
+     * stream summary), so that counting a key and replacing the smallest
+     * counter with a new key are both O(1). A new key inherits the count
+     * it replaces as its error.
+     **/
+    private static final class TopK {
+        private static final int NONE = -1;
+
+        final long[] keys, counts, errors; // by counter
+        final Object[] subjects;
+        final int[] where; // table position of each counter
+        final int[] table; // counter + 1, 0 when empty
+        final int[] bucket, prev, next; // bucket of each counter and its neighbours in it
+        final long[] bucketCount; // by bucket
+        final int[] first, lower, higher; // first counter of each bucket, neighbouring buckets
+        int size = 0, smallest = NONE, free; // free: first unused bucket, linked through higher
+
+        TopK(int k) {
+            keys = new long[k];
+            counts = new long[k];
+            errors = new long[k];
+            subjects = new Object[k];
+            where = new int[k];
+            table = new int[Integer.highestOneBit(k) * 4];
+            bucket = new int[k];
+            prev = new int[k];
+            next = new int[k];
+            bucketCount = new long[k + 1]; // a counter moving up may need one more for an instant
+            first = new int[k + 1];
+            lower = new int[k + 1];
+            higher = new int[k + 1];
+            clearBuckets();
+        }
+
+        void offer(long key, int hash, Object subject) {
+            int mask = table.length - 1;
+            int p = hash & mask;
+            for (int e; (e = table[p]) != 0; p = (p + 1) & mask) {
+                if (keys[e - 1] == key) {
+                    increment(e - 1);
+                    return;
+                }
+            }
+            int i;
+            if (size < keys.length) {
+                i = size++;
+                counts[i] = 0;
+                errors[i] = 0;
+                attach(i, bucketAbove(NONE, 0));
+            } else {
+                i = first[smallest];
+                remove(where[i]);
+                p = hash & mask; // the removal may have moved entries
+                while (table[p] != 0)
+                    p = (p + 1) & mask;
+                errors[i] = counts[i];
+            }
+            keys[i] = key;
+            subjects[i] = subject;
+            table[p] = i + 1;
+            where[i] = p;
+            increment(i);
+        }
+
+        // halves every count the given number of times. That keeps the buckets in order, so
+        // a bucket only merges into the one below when their counts become equal.
+        void halve(int times) {
+            for (int i = 0; i < size; i++) {
+                counts[i] >>= times;
+                errors[i] >>= times;
+            }
+            for (int b = smallest, h; b != NONE; b = h) {
+                h = higher[b];
+                bucketCount[b] >>= times;
+                int l = lower[b];
+                if (l != NONE && bucketCount[l] == bucketCount[b]) {
+                    for (int i = first[b], n; i != NONE; i = n) {
+                        n = next[i];
+                        detach(i); // the last one drops bucket b
+                        attach(i, l);
+                    }
+                }
+            }
+        }
+
+        private void increment(int i) {
+            int b = bucket[i];
+            long c = ++counts[i];
+            int h = higher[b];
+            int target = (h != NONE && bucketCount[h] == c) ? h : bucketAbove(b, c);
+            detach(i);
+            attach(i, target);
+        }
+
+        // a new bucket of count c right above bucket b, or the smallest if b is NONE
+        private int bucketAbove(int b, long c) {
+            if (b == NONE && smallest != NONE && bucketCount[smallest] == c)
+                return smallest;
+            int n = free;
+            free = higher[n];
+            bucketCount[n] = c;
+            first[n] = NONE;
+            lower[n] = b;
+            higher[n] = (b == NONE) ? smallest : higher[b];
+            if (higher[n] != NONE)
+                lower[higher[n]] = n;
+            if (b == NONE)
+                smallest = n;
+            else
+                higher[b] = n;
+            return n;
+        }
+
+        private void attach(int i, int b) {
+            bucket[i] = b;
+            prev[i] = NONE;
+            next[i] = first[b];
+            if (first[b] != NONE)
+                prev[first[b]] = i;
+            first[b] = i;
+        }
+
+        // takes counter i out of its bucket, dropping the bucket if it empties
+        private void detach(int i) {
+            int b = bucket[i];
+            if (prev[i] != NONE)
+                next[prev[i]] = next[i];
+            else
+                first[b] = next[i];
+            if (next[i] != NONE)
+                prev[next[i]] = prev[i];
+            if (first[b] != NONE)
+                return;
+            if (lower[b] != NONE)
+                higher[lower[b]] = higher[b];
+            else
+                smallest = higher[b];
+            if (higher[b] != NONE)
+                lower[higher[b]] = lower[b];
+            higher[b] = free;
+            free = b;
+        }
+
+        private void clearBuckets() {
+            smallest = NONE;
+            free = 0;
+            for (int b = 0; b < higher.length; b++)
+                higher[b] = (b + 1 < higher.length) ? b + 1 : NONE;
+        }
+
+        // backward shift deletion of table position p
+        private void remove(int p) {
+            int mask = table.length - 1;
+            for (int q = (p + 1) & mask; table[q] != 0; q = (q + 1) & mask) {
+                int e = table[q];
+                int home = (int) hash(keys[e - 1]) & mask;
+                boolean stays = (q > p) ? (home > p && home <= q) : (home > p || home <= q);
+                if (!stays) {
+                    table[p] = e;
+                    where[e - 1] = p;
+                    p = q;
+                }
+            }
+            table[p] = 0;
+        }
+    }
+}
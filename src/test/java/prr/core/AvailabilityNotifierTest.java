@@ -0,0 +1,72 @@
+package prr.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class AvailabilityNotifierTest {
+
+    private Network network;
+    private AvailabilityNotifier notifier;
+    private Terminal t1, t2, t3;
+
+    @BeforeMethod
+    public void setup() {
+        network = new Network();
+        notifier = new AvailabilityNotifier();
+        network.addListener(notifier);
+        t1 = network.registerClient("111", 111, "T1").getTerminals().get(0);
+        t2 = network.registerClient("222", 222, "T2").getTerminals().get(0);
+        t3 = network.registerClient("333", 333, "T3").getTerminals().get(0);
+    }
+
+    @AfterMethod
+    public void teardown() throws Exception {
+        notifier.close();
+    }
+
+    @Test(timeOut = 10000)
+    public void testSubscribersSeeChangesInOrder() throws Exception {
+        List<String> seen = Collections.synchronizedList(new ArrayList<>());
+        List<String> others = Collections.synchronizedList(new ArrayList<>());
+        AvailabilityNotifier.Subscription s =
+            notifier.subscribe(t2, (t, prev, mode) -> seen.add(t.getId() + ":" + prev + ">" + mode));
+        notifier.subscribe(t3, (t, prev, mode) -> others.add(t.getId()));
+        t1.turnOn();
+        t2.turnOn();
+        t2.toggleOnMode();
+        t2.toggleOnMode();
+        t1.makeVoiceCall(t2);
+        t1.endOngoingCommunication();
+        t2.turnOff();
+        notifier.close();
+
+        assertEquals(seen, List.of("T2:OFF>NORMAL", "T2:NORMAL>SILENT", "T2:SILENT>NORMAL",
+                                   "T2:NORMAL>BUSY", "T2:BUSY>NORMAL", "T2:NORMAL>OFF"));
+        assertTrue(others.isEmpty());
+        s.cancel();
+        assertEquals(notifier.watchedTerminals(), 1);
+    }
+
+    @Test(timeOut = 10000)
+    public void testWhenAvailable() throws Exception {
+        t1.turnOn(); t2.turnOn(); t3.turnOn();
+        t1.makeVoiceCall(t2);
+        CompletableFuture<Terminal> free = notifier.whenAvailable(t2);
+        assertFalse(free.isDone());
+        t2.endOngoingCommunication();
+        assertSame(free.get(5, TimeUnit.SECONDS), t2);
+        assertTrue(notifier.whenAvailable(t3).isDone());
+
+        // one-shot subscriptions go away once completed
+        free.join();
+        for (int i = 0; i < 100 && notifier.watchedTerminals() != 0; i++)
+            Thread.sleep(10);
+        assertEquals(notifier.watchedTerminals(), 0);
+    }
+}
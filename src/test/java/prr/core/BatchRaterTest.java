@@ -0,0 +1,90 @@
+package prr.core;
+
+import java.util.Random;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class BatchRaterTest {
+
+    private static final int[] POINTS = { 0, 20, 74, 75, 100, 101, 149, 150, 200 };
+    private static final int MAX_FRIENDS = 7; // two terminals
+
+    private Terminal[][] senders; // [points][friends]
+    private Terminal receiver;
+
+    @BeforeMethod
+    public void setup() {
+        receiver = new Terminal("R", null);
+        new Client("1", 1, receiver);
+        Client[] others = new Client[MAX_FRIENDS];
+        for (int i = 0; i < others.length; i++)
+            others[i] = new Client(String.valueOf(100 + i), 100 + i, new Terminal("O" + i, null));
+
+        senders = new Terminal[POINTS.length][MAX_FRIENDS + 1];
+        int tax = 1000;
+        for (int p = 0; p < POINTS.length; p++) {
+            for (int f = 0; f <= MAX_FRIENDS; f++, tax++) {
+                Terminal t = new Terminal("S" + tax, null);
+                Client c = new Client(String.valueOf(tax), tax, t);
+                c.addTerminal(new Terminal("X" + tax, c));
+                c.updatePoints(POINTS[p] - c.getPoints());
+                for (int i = 0; i < f; i++)
+                    c.addFriend(others[i]);
+                senders[p][f] = t;
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesComputeCost() {
+        int n = 100_000;
+        Random rnd = new Random(42);
+        int[] sizes = new int[n];
+        byte[] types = new byte[n];
+        int[] points = new int[n];
+        int[] friends = new int[n];
+        Communication[] reference = new Communication[n];
+        for (int i = 0; i < n; i++) {
+            int p = rnd.nextInt(POINTS.length), f = rnd.nextInt(MAX_FRIENDS + 1);
+            Terminal from = senders[p][f];
+            int size = (rnd.nextInt(8) == 0) ? 0 : rnd.nextInt(300);
+            CommunicationType type = CommunicationType.values()[rnd.nextInt(2)];
+            Communication c;
+            if (type == CommunicationType.SMS) {
+                c = Communication.textCommunication(receiver, from, size * 100);
+            } else {
+                c = Communication.voiceCommunication(receiver, from);
+                c.duration(size);
+            }
+            reference[i] = c;
+            sizes[i] = size;
+            types[i] = (byte) type.ordinal();
+            points[i] = POINTS[p];
+            friends[i] = f;
+        }
+
+        double[] serial = new double[n], parallel = new double[n];
+        BatchRater.rate(sizes, types, points, friends, serial);
+        BatchRater.rateParallel(sizes, types, points, friends, parallel);
+        for (int i = 0; i < n; i++) {
+            long expected = Double.doubleToRawLongBits(reference[i].computeCost());
+            assertEquals(Double.doubleToRawLongBits(serial[i]), expected, "row " + i);
+            assertEquals(Double.doubleToRawLongBits(parallel[i]), expected, "row " + i);
+        }
+    }
+
+    @Test
+    public void testSingleCost() {
+        assertEquals(BatchRater.cost(0, CommunicationType.VOICE, 200, 0), 0.0);
+        assertEquals(BatchRater.cost(5, CommunicationType.SMS, 101, 0), 1.0);
+        assertEquals(BatchRater.cost(50, CommunicationType.VOICE, 80, 4), 5.0);
+        assertEquals(BatchRater.cost(-3, CommunicationType.VOICE, 20, 0), 2.0);
+        assertEquals(BatchRater.cost(500, CommunicationType.SMS, 150, 0), 12.0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testColumnsMustMatch() {
+        BatchRater.rate(new int[2], new byte[2], new int[2], new int[1], new double[2]);
+    }
+}
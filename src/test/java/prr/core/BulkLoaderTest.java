@@ -0,0 +1,88 @@
+package prr.core;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class BulkLoaderTest {
+
+    private Network network;
+    private Path file;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        network = new Network();
+        file = Files.createTempFile("clients", ".csv");
+    }
+
+    @Test
+    public void testLoadsRecordsAcrossChunks() throws Exception {
+        List<String> lines = new ArrayList<>();
+        lines.add("# clients then friends");
+        for (int i = 1; i <= 500; i++)
+            lines.add("C," + (1000 + i) + "," + i + ",T" + i + (i % 10 == 0 ? ",U" + i + ",V" + i : ""));
+        lines.add("");
+        for (int i = 2; i <= 500; i++)
+            lines.add("F," + i + "," + (i - 1));
+        Files.write(file, lines);
+
+        BulkLoader.Report report = new BulkLoader(network, 256).load(file);
+        assertEquals(report.getClients(), 500);
+        assertEquals(report.getTerminals(), 600);
+        assertEquals(report.getFriendships(), 499);
+        assertEquals(report.getRejected(), 0);
+        assertTrue(report.recordsPerSecond() > 0);
+
+        assertEquals(network.numberOfClients(), 500);
+        assertEquals(network.numberOfTerminals(), 600);
+        assertEquals(network.findClient(30).numberOfTerminals(), 3);
+        assertSame(network.findTerminal("V30").getClient(), network.findClient(30));
+        assertTrue(network.findClient(7).hasFriend(network.findClient(6)));
+        assertFalse(network.findClient(6).hasFriend(network.findClient(7)));
+    }
+
+    @Test
+    public void testRejectsWhatConstructorsRefuse() throws Exception {
+        Files.write(file, List.of(
+            "C,123,1,A",
+            "C,12a,2,B",           // name not all digits
+            "C,,3,C",              // empty name
+            "C," + "9".repeat(41) + ",4,D", // name too long
+            "C,456,1,E",           // duplicate tax number
+            "C,789,5,A",           // duplicate terminal id
+            "C,789,6,",            // empty terminal id
+            "C,789,7",             // no terminal
+            "C,1,8,a,b,c,d,e,f,g,h,i,j", // 10 terminals
+            "X,1,2",
+            "F,1,99",              // unknown friend
+            "F,1,1",               // self
+            "F,1,x",
+            "C,789,9,Z\r"));
+        BulkLoader.Report report = new BulkLoader(network).load(file);
+        assertEquals(report.getClients(), 2);
+        assertEquals(report.getRejected(), 12);
+        assertNotNull(network.findTerminal("Z"));
+        for (String name : new String[] {"123", "12a", "", "9".repeat(41), "\u0663", null})
+            assertEquals(Client.validName(name), name != null && name.matches("\\d+") && name.length() <= 40);
+    }
+
+    @Test
+    public void testFriendLimit() throws Exception {
+        List<String> lines = new ArrayList<>();
+        lines.add("C,1,1,T1,T2"); // 7 friends at most
+        for (int i = 2; i <= 20; i++) {
+            lines.add("C," + i + "," + i + ",T" + i + "b");
+            lines.add("F,1," + i);
+            lines.add("F,1," + i); // duplicates count once at most
+        }
+        Files.write(file, lines);
+        BulkLoader.Report report = new BulkLoader(network, 64).load(file);
+        assertEquals(report.getFriendships(), 7);
+        assertEquals(report.getRejected(), 38 - 7);
+        assertEquals(network.findClient(1).numberOfFriends(), 7);
+    }
+}
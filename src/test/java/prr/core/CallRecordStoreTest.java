@@ -0,0 +1,146 @@
+package prr.core;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class CallRecordStoreTest {
+
+    private Network network;
+    private CallRecordStore store;
+    private Terminal t1, t2, t3;
+
+    @BeforeMethod
+    public void setup() {
+        network = new Network();
+        store = new CallRecordStore(4, null); // 16 records per segment
+        network.addListener(store);
+        t1 = network.registerClient("111", 111, "T1").getTerminals().get(0);
+        t2 = network.registerClient("222", 222, "T2").getTerminals().get(0);
+        t3 = network.registerClient("333", 333, "T3").getTerminals().get(0);
+        t1.turnOn(); t2.turnOn(); t3.turnOn();
+    }
+
+    @Test
+    public void testRecordsEndedCommunications() {
+        t1.sendSMS(t2, "x".repeat(500));
+        t2.makeVoiceCall(t3);
+        t2.getOngoing().duration(50);
+        t3.endOngoingCommunication();
+
+        assertEquals(store.size(), 2);
+        assertEquals(store.from(0), t1.getOrdinal());
+        assertEquals(store.to(0), t2.getOrdinal());
+        assertEquals(store.type(0), CommunicationType.SMS);
+        assertEquals(store.size(0), 5);
+        assertEquals(store.cost(0), 2);
+        assertEquals(store.from(1), t2.getOrdinal());
+        assertEquals(store.type(1), CommunicationType.VOICE);
+        assertEquals(store.cost(1), 12);
+        assertTrue(store.end(1) >= store.start(1));
+    }
+
+    @Test
+    public void testPerTerminalHistory() {
+        for (int i = 0; i < 40; i++) {
+            t1.sendSMS(t2, "a");
+            t2.sendSMS(t3, "b");
+            t3.sendSMS(t1, "c");
+        }
+        assertEquals(store.size(), 120);
+        List<Long> ofT2 = new ArrayList<>();
+        store.forEachOf(t2.getOrdinal(), 0, Long.MAX_VALUE, ofT2::add);
+        assertEquals(ofT2.size(), 80);
+        for (int i = 1; i < ofT2.size(); i++)
+            assertTrue(ofT2.get(i) < ofT2.get(i - 1));
+        for (long r : ofT2)
+            assertTrue(store.from(r) == t2.getOrdinal() || store.to(r) == t2.getOrdinal());
+
+        long[] scanned = new long[1];
+        store.scan(i -> scanned[0]++);
+        assertEquals(scanned[0], 120);
+        assertEquals(store.latestOf(network.ordinalLimit() + 5000), -1);
+    }
+
+    @Test
+    public void testTimeRange() {
+        store.append(0, 1, CommunicationType.SMS, 1, 2, 100, 100);
+        store.append(0, 1, CommunicationType.SMS, 1, 2, 200, 200);
+        store.append(0, 1, CommunicationType.SMS, 1, 2, 300, 300);
+        List<Long> found = new ArrayList<>();
+        store.forEachOf(0, 150, 300, found::add);
+        assertEquals(found, List.of(1L));
+    }
+
+    @Test
+    public void testMappedSegments() throws Exception {
+        Path dir = Files.createTempDirectory("cdr");
+        CallRecordStore mapped = new CallRecordStore(4, dir);
+        for (int i = 0; i < 50; i++)
+            mapped.append(i % 3, 7, CommunicationType.VOICE, i, 5, i, i + 1);
+        assertEquals(mapped.size(), 50);
+        assertEquals(mapped.size(49), 49);
+        assertEquals(mapped.to(20), 7);
+        assertEquals(Files.list(dir).count(), 4);
+        assertThrows(IllegalArgumentException.class, () -> new CallRecordStore(4, dir));
+    }
+
+    @Test
+    public void testFailedSegmentTakesNoIndex() throws Exception {
+        Path dir = Files.createTempDirectory("cdr");
+        CallRecordStore mapped = new CallRecordStore(4, dir);
+        Files.delete(dir); // the first segment cannot be mapped
+        assertThrows(UncheckedIOException.class,
+                     () -> mapped.append(0, 1, CommunicationType.SMS, 1, 2, 0, 0));
+        Files.createDirectory(dir);
+        assertEquals(mapped.append(0, 1, CommunicationType.SMS, 1, 2, 0, 0), 0);
+        assertEquals(mapped.size(), 1);
+    }
+
+    @Test
+    public void testUnregisteredTerminalDropped() {
+        Terminal outside = new Terminal("X", null);
+        new Client("444", 444, outside);
+        outside.turnOn();
+        assertTrue(t1.sendSMS(outside, "hi")); // delivered, not failed by the store
+        t1.makeVoiceCall(outside);
+        t1.endOngoingCommunication();
+        assertEquals(t1.getMode(), TerminalMode.NORMAL);
+        assertEquals(store.size(), 0);
+        assertEquals(store.dropped(), 2);
+    }
+
+    @Test(timeOut = 60000)
+    public void testConcurrentAppends() throws Exception {
+        int threads = 8, perThread = 5000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int from = t;
+                done.add(pool.submit(() -> {
+                    for (int i = 0; i < perThread; i++)
+                        store.append(from, 10_000 + i % 7, CommunicationType.SMS, 1, 2, i, i);
+                }));
+            }
+            for (Future<?> f : done)
+                f.get();
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(store.size(), threads * perThread);
+        for (int t = 0; t < threads; t++) {
+            int[] count = new int[1];
+            store.forEachOf(t, Long.MIN_VALUE, Long.MAX_VALUE, i -> count[0]++);
+            assertEquals(count[0], perThread);
+        }
+    }
+}
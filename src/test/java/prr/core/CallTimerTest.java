@@ -0,0 +1,185 @@
+package prr.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class CallTimerTest {
+
+    private Network network;
+    private AtomicLong clock; // milliseconds
+    private Terminal a, b;
+
+    @BeforeMethod
+    public void setup() {
+        network = new Network();
+        network.registerClient("1", 1, "A");
+        network.registerClient("2", 2, "B");
+        a = network.findTerminal("A");
+        b = network.findTerminal("B");
+        a.turnOn();
+        b.turnOn();
+        clock = new AtomicLong(1_000_000);
+    }
+
+    private CallTimer install(long tickMillis, long maxCallMillis) {
+        CallTimer timer = new CallTimer(tickMillis, maxCallMillis, () -> clock.get() * 1_000_000, false);
+        network.setCallTimer(timer);
+        return timer;
+    }
+
+    @Test
+    public void testDurationSetAtEnd() {
+        install(100, 0);
+        a.makeVoiceCall(b);
+        Communication c = a.getOngoing();
+        clock.addAndGet(60_500);
+        b.endOngoingCommunication();
+        assertEquals(c.getSize(), 61); // started seconds
+        assertEquals(c.getCost(), 12.0);
+        assertEquals(a.balance(), 12);
+    }
+
+    @Test
+    public void testExplicitDurationKept() {
+        install(100, 0);
+        a.makeVoiceCall(b);
+        Communication c = a.getOngoing();
+        clock.addAndGet(60_000);
+        c.duration(5);
+        a.endOngoingCommunication();
+        assertEquals(c.getSize(), 5);
+    }
+
+    @Test
+    public void testCallEndedAtLimit() {
+        CallTimer timer = install(100, 10_000);
+        a.makeVoiceCall(b);
+        Communication c = a.getOngoing();
+        assertEquals(timer.tracked(), 1);
+        clock.addAndGet(9_900);
+        assertEquals(timer.advance(), 0);
+        assertEquals(a.getMode(), TerminalMode.BUSY);
+        clock.addAndGet(100);
+        assertEquals(timer.advance(), 1);
+        assertEquals(a.getMode(), TerminalMode.NORMAL);
+        assertEquals(b.getMode(), TerminalMode.NORMAL);
+        assertTrue(c.isEnded());
+        assertEquals(c.getSize(), 10);
+        assertEquals(timer.timedOut(), 1);
+        assertEquals(timer.tracked(), 0);
+    }
+
+    @Test
+    public void testEndedCallIsCancelled() {
+        CallTimer timer = install(100, 10_000);
+        a.makeVoiceCall(b);
+        a.endOngoingCommunication();
+        assertEquals(timer.tracked(), 0);
+        clock.addAndGet(20_000);
+        assertEquals(timer.advance(), 0);
+        a.makeVoiceCall(b); // a new call is timed from its own start
+        clock.addAndGet(9_000);
+        assertEquals(timer.advance(), 0);
+        clock.addAndGet(1_000);
+        assertEquals(timer.advance(), 1);
+    }
+
+    @Test
+    public void testLimitsAcrossLevels() {
+        // 64^3 ticks is the span of the three lower levels; 64^4 that of the whole wheel
+        for (long limit : new long[] { 63, 64, 4_095, 4_097, 262_143, 262_145, 16_777_300 }) {
+            setup();
+            CallTimer timer = install(1, limit);
+            clock.addAndGet(12_345); // not aligned on any level
+            timer.advance();
+            a.makeVoiceCall(b);
+            clock.addAndGet(limit - 1);
+            assertEquals(timer.advance(), 0, "limit " + limit);
+            clock.addAndGet(1);
+            assertEquals(timer.advance(), 1, "limit " + limit);
+        }
+    }
+
+    @Test(timeOut = 5000)
+    public void testIdleTicksSkipped() {
+        CallTimer timer = install(1, 1_000);
+        clock.addAndGet(1L << 40); // decades of 1 ms ticks with no call to end
+        assertEquals(timer.advance(), 0);
+        a.makeVoiceCall(b);
+        clock.addAndGet(999);
+        assertEquals(timer.advance(), 0);
+        clock.addAndGet(1);
+        assertEquals(timer.advance(), 1);
+        clock.addAndGet(1L << 40);
+        assertEquals(timer.advance(), 0);
+    }
+
+    @Test
+    public void testStaggeredCalls() {
+        CallTimer timer = install(10, 1_000);
+        Terminal[] callers = new Terminal[50], callees = new Terminal[50];
+        for (int i = 0; i < 50; i++) {
+            network.registerClient(String.valueOf(10 + i), 10 + i, "C" + i);
+            network.registerClient(String.valueOf(100 + i), 100 + i, "D" + i);
+            callers[i] = network.findTerminal("C" + i);
+            callees[i] = network.findTerminal("D" + i);
+            callers[i].turnOn();
+            callees[i].turnOn();
+        }
+        int ended = 0;
+        for (int i = 0; i < 50; i++) { // call i starts at 30 * i ms
+            callers[i].makeVoiceCall(callees[i]);
+            clock.addAndGet(30);
+            ended += timer.advance();
+        }
+        for (int now = 1_510; now <= 3_500; now += 10) {
+            clock.addAndGet(10);
+            ended += timer.advance();
+            for (int i = 0; i < 50; i++)
+                assertEquals(callers[i].getMode() == TerminalMode.BUSY, 30 * i + 1_000 > now, "call " + i + " at " + now);
+        }
+        assertEquals(ended, 50);
+    }
+
+    @Test
+    public void testCallOfRemovedClientEnded() {
+        CallTimer timer = install(100, 0);
+        a.makeVoiceCall(b);
+        Communication c = a.getOngoing();
+        assertTrue(network.removeClient(2));
+        assertEquals(b.getMode(), TerminalMode.BUSY);
+        clock.addAndGet(2_000);
+        assertEquals(timer.advance(), 1);
+        assertEquals(a.getMode(), TerminalMode.NORMAL);
+        assertEquals(b.getMode(), TerminalMode.NORMAL);
+        assertEquals(c.getSize(), 2);
+        assertEquals(timer.orphaned(), 1);
+    }
+
+    @Test
+    public void testReplacedTimer() {
+        CallTimer first = install(100, 1_000);
+        CallTimer second = install(100, 1_000);
+        a.makeVoiceCall(b);
+        assertSame(a.getOngoing().getTimeout().timer, second);
+        network.setCallTimer(null);
+        clock.addAndGet(1_000);
+        assertEquals(first.advance(), 0);
+        assertEquals(second.advance(), 1); // a timer still ends the calls it timed
+        a.makeVoiceCall(b);
+        assertNull(a.getOngoing().getTimeout());
+    }
+
+    @Test
+    public void testThread() throws InterruptedException {
+        CallTimer timer = new CallTimer(5, 50);
+        network.setCallTimer(timer);
+        a.makeVoiceCall(b);
+        for (int i = 0; i < 200 && a.getMode() == TerminalMode.BUSY; i++)
+            Thread.sleep(10);
+        assertEquals(a.getMode(), TerminalMode.NORMAL);
+        timer.close();
+    }
+}
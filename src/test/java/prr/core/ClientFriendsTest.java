@@ -0,0 +1,75 @@
+package prr.core;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import prr.core.exceptions.InvalidOperationException;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class ClientFriendsTest {
+
+    private Network network;
+    private Client alice;
+    private List<Client> others;
+
+    @BeforeMethod
+    public void setup() {
+        network = new Network();
+        alice = network.registerClient("111", 111, "A0");
+        for (int i = 1; i < 9; i++)
+            network.addTerminal(111, "A" + i); // up to 42 friends
+        others = new ArrayList<>();
+        for (int i = 0; i < 60; i++)
+            others.add(network.registerClient(String.valueOf(1000 + i), 1000 + i, "O" + i));
+    }
+
+    @Test
+    public void testAddRemoveMatchesSet() {
+        Set<Client> expected = new HashSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            Client c = others.get(random.nextInt(others.size()));
+            if (random.nextBoolean() && expected.size() < 42) {
+                alice.addFriend(c);
+                expected.add(c);
+            } else {
+                assertEquals(alice.removeFriend(c), expected.remove(c));
+            }
+            assertEquals(alice.numberOfFriends(), expected.size());
+        }
+        for (Client c : others)
+            assertEquals(alice.hasFriend(c), expected.contains(c));
+        assertEquals(new HashSet<>(alice.getFriends()), expected);
+        assertFalse(alice.hasFriend(null));
+        assertFalse(alice.hasFriend(alice));
+    }
+
+    @Test
+    public void testFriendLimit() {
+        for (int i = 0; i < 42; i++)
+            alice.addFriend(others.get(i));
+        assertThrows(InvalidOperationException.class, () -> alice.addFriend(others.get(42)));
+        assertTrue(alice.removeFriend(others.get(7)));
+        alice.addFriend(others.get(42));
+        assertTrue(alice.hasFriend(others.get(42)));
+        assertFalse(alice.hasFriend(others.get(7)));
+    }
+
+    @Test
+    public void testSilentDeliveryUsesFriends() {
+        Terminal from = network.findTerminal("O0"), to = network.findTerminal("A0");
+        from.turnOn();
+        to.turnOn();
+        to.toggleOnMode();
+        assertFalse(from.sendSMS(to, "hi"));
+        alice.addFriend(others.get(0));
+        assertTrue(from.sendSMS(to, "hi"));
+        alice.removeFriend(others.get(0));
+        assertFalse(from.sendSMS(to, "hi"));
+    }
+}
@@ -0,0 +1,87 @@
+package prr.core;
+
+import java.util.List;
+
+import prr.core.CommunicationAggregator.Figures;
+import prr.core.CommunicationAggregator.Granularity;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class CommunicationAggregatorTest {
+    private static final long MINUTE = 60_000, HOUR = 60 * MINUTE;
+
+    private CommunicationAggregator aggregator;
+
+    @BeforeMethod
+    public void setup() {
+        aggregator = new CommunicationAggregator(5, 3, 3);
+    }
+
+    @Test
+    public void testFedByNetwork() {
+        Network network = new Network();
+        network.addListener(aggregator);
+        Client alice = network.registerClient("111", 111, "T1");
+        Terminal t1 = alice.getTerminals().get(0);
+        Terminal t2 = network.registerClient("222", 222, "T2").getTerminals().get(0);
+        t1.turnOn(); t2.turnOn();
+        t1.sendSMS(t2, "x".repeat(500));
+        t1.makeVoiceCall(t2);
+        t1.getOngoing().duration(50);
+        t2.endOngoingCommunication();
+
+        long now = System.currentTimeMillis();
+        Figures f = aggregator.ofTerminal(t1, Granularity.MINUTE, now);
+        if (f.sms() == 0) // the minute just turned
+            f = aggregator.ofTerminal(t1, Granularity.MINUTE, now, 2);
+        assertEquals(f.sms(), 1);
+        assertEquals(f.voice(), 1);
+        assertEquals(f.size(), 55);
+        assertEquals(f.cost(), 14);
+        assertEquals(aggregator.ofClient(alice, Granularity.HOUR, now, 2).voiceSeconds(), 50);
+        assertEquals(aggregator.ofTerminal(t2, Granularity.HOUR, now, 2).sms(), 0);
+    }
+
+    @Test
+    public void testTumblingAndSlidingWindows() {
+        long t0 = 10 * HOUR;
+        for (int m = 0; m < 8; m++)
+            aggregator.add(1, 100, CommunicationType.VOICE, 10, 5, t0 + m * MINUTE + 1000);
+        assertEquals(aggregator.ofTerminal(terminal(1), Granularity.MINUTE, t0 + 7 * MINUTE).voice(), 1);
+        // only the last 5 minutes are kept
+        assertEquals(aggregator.ofTerminal(terminal(1), Granularity.MINUTE, t0 + 7 * MINUTE, 60).voice(), 5);
+        assertEquals(aggregator.ofTerminal(terminal(1), Granularity.MINUTE, t0 + 7 * MINUTE, 2).size(), 20);
+        assertEquals(aggregator.ofTerminal(terminal(1), Granularity.MINUTE, t0).voice(), 0);
+        assertEquals(aggregator.ofTerminal(terminal(1), Granularity.HOUR, t0).voice(), 8);
+
+        aggregator.add(1, 100, CommunicationType.SMS, 1, 1, t0);
+        assertEquals(aggregator.dropped(), 2); // its minute left both rings; the hours still count it
+        assertEquals(aggregator.ofTerminal(terminal(1), Granularity.HOUR, t0).sms(), 1);
+
+        aggregator.add(1, 100, CommunicationType.SMS, 1, 1, t0 + 3 * HOUR);
+        assertEquals(aggregator.ofTerminal(terminal(1), Granularity.HOUR, t0 + 3 * HOUR, 3).voice(), 0);
+    }
+
+    @Test
+    public void testTopTalkers() {
+        long t = 5 * HOUR;
+        for (int c = 0; c < 200; c++)
+            for (int i = 0; i <= c % 50; i++)
+                aggregator.add(c, c, CommunicationType.VOICE, 2, 1, t + i);
+        aggregator.add(7, 7, CommunicationType.SMS, 100, 1, t);
+        List<Figures> top = aggregator.topTalkers(Granularity.MINUTE, t);
+        assertEquals(top.size(), 3);
+        for (Figures f : top) {
+            assertEquals(f.key() % 50, 49);
+            assertEquals(f.voiceSeconds(), 100);
+        }
+        assertTrue(aggregator.topTalkers(Granularity.MINUTE, t + HOUR).isEmpty());
+    }
+
+    private static Terminal terminal(int ordinal) {
+        Terminal t = new Terminal("T" + ordinal, null);
+        t.setOrdinal(ordinal);
+        return t;
+    }
+}
@@ -0,0 +1,110 @@
+package prr.core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class InvoicerTest {
+
+    private Network network;
+    private Path dir;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        network = new Network();
+        for (int i = 1; i <= 50; i++) {
+            network.registerClient(String.valueOf(i), i, "T" + i);
+            network.findTerminal("T" + i).turnOn();
+        }
+        dir = Files.createTempDirectory("invoices");
+    }
+
+    @AfterMethod
+    public void teardown() throws IOException {
+        for (Path p : Files.list(dir).collect(Collectors.toList()))
+            Files.delete(p);
+        Files.delete(dir);
+    }
+
+    // client i makes i calls of 200 s (15 cents each), then pays when it is a multiple of 5
+    private void bill() {
+        Terminal peer = network.findTerminal("T50");
+        for (int i = 1; i < 50; i++) {
+            Terminal t = network.findTerminal("T" + i);
+            for (int k = 0; k < i; k++) {
+                t.makeVoiceCall(peer);
+                t.getOngoing().duration(200);
+                peer.endOngoingCommunication();
+            }
+            if (i % 5 == 0) {
+                t.turnOff();
+                t.pay(15 * i + 100);
+                t.turnOn();
+            }
+        }
+    }
+
+    private static List<String> lines(Path p) throws IOException {
+        return Files.readAllLines(p).stream().filter(l -> !l.startsWith("#")).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testSortsDebtorsAndCreditors() throws IOException {
+        bill();
+        // small runs and fan-in force several merge passes
+        Invoicer.Report r = new Invoicer(network, 3, 2).run(dir);
+
+        assertEquals(r.getClients(), 50);
+        assertEquals(r.getCreditorCount(), 9);
+        assertEquals(r.getDebtorCount(), 49 - 9);
+        assertTrue(r.getRuns() > 2);
+
+        List<String> debtors = lines(r.getDebtors());
+        assertEquals(debtors.size(), 40);
+        assertEquals(debtors.get(0), "49,735,735,0");
+        assertEquals(debtors.get(1), "48,720,720,0");
+        assertEquals(debtors.get(39), "1,15,15,0");
+        long debt = 0, previous = Long.MAX_VALUE;
+        for (String l : debtors) {
+            long b = Long.parseLong(l.split(",")[1]);
+            assertTrue(b <= previous);
+            previous = b;
+            debt += b;
+        }
+        assertEquals(debt, r.getTotalDebt());
+
+        List<String> creditors = lines(r.getCreditors());
+        assertEquals(creditors.size(), 9);
+        for (String l : creditors)
+            assertTrue(l.endsWith(",-100," + l.split(",")[2] + "," + (Long.parseLong(l.split(",")[2]) + 100)));
+        assertEquals(creditors.get(0).split(",")[0], "5"); // equal credits by tax number
+        assertEquals(r.getTotalCredit(), 900);
+        assertEquals(Files.list(dir).count(), 2); // the runs are gone
+    }
+
+    @Test
+    public void testReadsBusyTerminals() throws IOException {
+        bill();
+        Terminal busy = network.findTerminal("T7");
+        busy.makeVoiceCall(network.findTerminal("T8"));
+        assertThrows(prr.core.exceptions.InvalidInvocationException.class, busy::balance);
+
+        Invoicer.Report r = new Invoicer(network).run(dir);
+        assertEquals(r.getRuns(), 2);
+        assertTrue(lines(r.getDebtors()).contains("7,105,105,0"));
+        assertEquals(busy.getMode(), TerminalMode.BUSY);
+    }
+
+    @Test
+    public void testEmptyNetwork() throws IOException {
+        Invoicer.Report r = new Invoicer(new Network()).run(dir);
+        assertEquals(r.getClients(), 0);
+        assertTrue(lines(r.getDebtors()).isEmpty());
+        assertTrue(lines(r.getCreditors()).isEmpty());
+    }
+}
@@ -0,0 +1,169 @@
+package prr.core;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class JournalTest {
+
+    private Path dir;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("journal");
+    }
+
+    @Test
+    public void testRecoverAfterRestart() throws Exception {
+        try (Journal journal = Journal.open(dir)) {
+            Network network = journal.recover();
+            Client alice = network.registerClient("111", 111, "A1");
+            Client bob = network.registerClient("222", 222, "B1");
+            Terminal a1 = network.findTerminal("A1"), b1 = network.findTerminal("B1");
+            Terminal a2 = network.addTerminal(111, "A2");
+            a1.turnOn();
+            b1.turnOn();
+            b1.toggleOnMode();
+            bob.addFriend(alice);
+            alice.updatePoints(30);
+            alice.updateName("Alice");
+            assertTrue(a1.sendSMS(b1, "x".repeat(500))); // 2 cents
+            a2.pay(10);
+            network.addTerminal(222, "B2");
+        }
+
+        try (Journal journal = Journal.open(dir)) {
+            Network network = journal.recover();
+            Client alice = network.findClient(111), bob = network.findClient(222);
+            assertEquals(alice.getName(), "Alice");
+            assertEquals(alice.getPoints(), 50);
+            assertEquals(alice.numberOfTerminals(), 2);
+            assertEquals(bob.numberOfTerminals(), 2);
+            assertTrue(bob.hasFriend(alice));
+            assertFalse(alice.hasFriend(bob));
+            Terminal a1 = network.findTerminal("A1"), a2 = network.findTerminal("A2");
+            assertEquals(a1.getMode(), TerminalMode.NORMAL);
+            assertEquals(network.findTerminal("B1").getMode(), TerminalMode.SILENT);
+            assertEquals(a1.balance(), 2);
+            assertEquals(a2.balance(), -10);
+            assertEquals(alice.balance(), -8);
+            assertEquals(a2.getOrdinal(), 2);
+
+            // the recovered network keeps journaling
+            a1.turnOff();
+            network.removeTerminal("B2");
+        }
+
+        try (Journal journal = Journal.open(dir)) {
+            Network network = journal.recover(1);
+            assertEquals(network.findTerminal("A1").getMode(), TerminalMode.OFF);
+            assertNull(network.findTerminal("B2"));
+            assertEquals(network.numberOfTerminals(), 3);
+        }
+    }
+
+    @Test
+    public void testCheckpointAndSegmentRolls() throws Exception {
+        try (Journal journal = Journal.open(dir, 1 << 13, 5, 0)) { // a few records per segment
+            Network network = journal.recover();
+            for (int i = 0; i < 200; i++)
+                network.registerClient(String.valueOf(1000 + i), 1000 + i, "T" + i);
+            journal.checkpoint();
+            for (int i = 0; i < 200; i++) {
+                Terminal t = network.findTerminal("T" + i);
+                t.turnOn();
+                if (i % 3 == 0)
+                    t.toggleOnMode();
+                network.findClient(1000 + i).updatePoints(i % 50);
+            }
+            network.removeClient(1000);
+            network.registerClient("1000", 1000, "T0b");
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(files.filter(f -> f.toString().endsWith(".bin")).count(), 1);
+        }
+
+        try (Journal journal = Journal.open(dir)) {
+            Network network = journal.recover(4);
+            assertEquals(network.numberOfClients(), 200);
+            assertNull(network.findTerminal("T0"));
+            assertEquals(network.findTerminal("T0b").getMode(), TerminalMode.OFF);
+            assertEquals(network.findClient(1000).getPoints(), 20);
+            for (int i = 1; i < 200; i++) {
+                Terminal t = network.findTerminal("T" + i);
+                assertEquals(t.getMode(), (i % 3 == 0) ? TerminalMode.SILENT : TerminalMode.NORMAL);
+                assertEquals(network.findClient(1000 + i).getPoints(), 20 + i % 50);
+            }
+            journal.checkpoint();
+        }
+        try (Journal journal = Journal.open(dir)) {
+            assertEquals(journal.recover().findClient(1199).getPoints(), 20 + 199 % 50);
+        }
+    }
+
+    @Test
+    public void testRecoveryStopsAtCorruptRecord() throws Exception {
+        try (Journal journal = Journal.open(dir)) {
+            Network network = journal.recover();
+            network.registerClient("111", 111, "A1");
+            network.findClient(111).updateName("Alice");
+            network.findClient(111).updatePoints(5);
+        }
+        Path log;
+        try (Stream<Path> files = Files.list(dir)) {
+            log = files.filter(f -> f.toString().endsWith(".log")).findFirst().get();
+        }
+        byte[] bytes = Files.readAllBytes(log);
+        String text = new String(bytes, java.nio.charset.StandardCharsets.ISO_8859_1);
+        bytes[text.indexOf("Alice")] ^= 1; // a page of the rename that never reached the disk
+        Files.write(log, bytes);
+
+        try (Journal journal = Journal.open(dir)) {
+            Client c = journal.recover().findClient(111);
+            assertEquals(c.getName(), "111");
+            assertEquals(c.getPoints(), 20); // nothing after the corrupt record
+        }
+    }
+
+    @Test(timeOut = 60000)
+    public void testConcurrentWriters() throws Exception {
+        int threads = 8, perThread = 2000;
+        try (Journal journal = Journal.open(dir, 1 << 16, 1, 0)) {
+            Network network = journal.recover();
+            for (int t = 0; t < threads; t++)
+                network.registerClient(String.valueOf(t + 1), t + 1, "T" + t);
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> done = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    Terminal term = network.findTerminal("T" + t);
+                    done.add(pool.submit(() -> {
+                        for (int i = 0; i < perThread; i++) {
+                            term.turnOn();
+                            term.turnOff();
+                            term.pay(5);
+                        }
+                    }));
+                }
+                for (Future<?> f : done)
+                    f.get();
+            } finally {
+                pool.shutdown();
+            }
+            journal.sync();
+        }
+        try (Journal journal = Journal.open(dir)) {
+            Network network = journal.recover();
+            for (int t = 0; t < threads; t++)
+                assertEquals(network.findTerminal("T" + t).balance(), -5 * perThread);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package prr.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class LedgerTest {
+
+    private Client alice, bob;
+    private Terminal t1, t2, t3;
+
+    @BeforeMethod
+    public void setup() {
+        t1 = new Terminal("T1", null);
+        t2 = new Terminal("T2", null);
+        alice = new Client("111", 111, t1);
+        bob = new Client("222", 222, t2);
+        t3 = new Terminal("T3", alice);
+        alice.addTerminal(t3);
+        t1.turnOn(); t2.turnOn(); t3.turnOn();
+    }
+
+    @Test
+    public void testDeliveredSMSIsCharged() {
+        assertTrue(t1.sendSMS(t2, "x".repeat(500))); // size 5, 20 points
+        assertEquals(t1.balance(), 2);
+        assertEquals(t2.balance(), 0);
+        assertEquals(alice.balance(), 2);
+        assertEquals(bob.balance(), 0);
+    }
+
+    @Test
+    public void testUndeliveredSMSIsFree() {
+        t2.turnOff();
+        assertFalse(t1.sendSMS(t2, "x".repeat(500)));
+        assertEquals(alice.balance(), 0);
+    }
+
+    @Test
+    public void testVoiceCallChargedToCaller() {
+        t1.makeVoiceCall(t2);
+        t1.getOngoing().duration(50); // medium size, under 75 points
+        t2.endOngoingCommunication();
+        assertEquals(t1.balance(), 12);
+        assertEquals(alice.balance(), 12);
+        assertEquals(bob.balance(), 0);
+    }
+
+    @Test
+    public void testPaymentCredits() {
+        t3.turnOff();
+        t3.pay(10);
+        assertEquals(t3.balance(), -10);
+        BillingSnapshot s = alice.billingSnapshot();
+        assertEquals(s.getPayments(), 10);
+        assertEquals(s.balance(), -10);
+        assertEquals(s.numberOfTerminals(), 2);
+        assertEquals(s.terminalId(1), "T3");
+        assertEquals(s.terminalBalance(1), -10);
+    }
+
+    @Test(timeOut = 60000)
+    public void testSnapshotsAreConsistentUnderLoad() throws Exception {
+        int threads = 4, perThread = 20_000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Terminal from = (t % 2 == 0) ? t1 : t3;
+                done.add(pool.submit(() -> {
+                    for (int i = 0; i < perThread; i++)
+                        from.sendSMS(t2, "x".repeat(500));
+                }));
+            }
+            long last = 0;
+            while (!done.stream().allMatch(Future::isDone)) {
+                BillingSnapshot s = alice.billingSnapshot();
+                assertEquals(s.terminalBalance(0) + s.terminalBalance(1), s.balance());
+                assertTrue(s.getCharges() >= last);
+                last = s.getCharges();
+            }
+            for (Future<?> f : done)
+                f.get();
+        } finally {
+            pool.shutdown();
+        }
+        BillingSnapshot s = alice.billingSnapshot();
+        assertEquals(s.getCharges(), 2L * threads * perThread);
+        assertEquals(alice.balance(), 2L * threads * perThread);
+        assertEquals(t1.balance() + t3.balance(), 2 * threads * perThread);
+    }
+}
@@ -0,0 +1,121 @@
+package prr.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class LoyaltyJobTest {
+
+    private Network network;
+
+    @BeforeMethod
+    public void setup() {
+        network = new Network();
+        for (int i = 1; i <= 3000; i++)
+            network.registerClient(String.valueOf(i), i, "T" + i);
+    }
+
+    @Test(timeOut = 60000)
+    public void testConcurrentPointsUpdatesStayInBounds() throws Exception {
+        Client c = network.findClient(1);
+        AtomicLong applied = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int delta = (t % 2 == 0) ? 7 : -5;
+                done.add(pool.submit(() -> {
+                    for (int i = 0; i < 20000; i++)
+                        if (c.tryUpdatePoints(delta) == OperationResult.OK)
+                            applied.addAndGet(delta);
+                }));
+            }
+            for (Future<?> f : done)
+                f.get();
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(c.getPoints(), 20 + applied.get());
+        assertTrue(c.getPoints() >= 0 && c.getPoints() <= 200);
+    }
+
+    @Test
+    public void testRecomputesFromChargesAndBalance() {
+        Terminal t1 = network.findTerminal("T1"), t2 = network.findTerminal("T2"), t3 = network.findTerminal("T3");
+        t1.turnOn(); t2.turnOn(); t3.turnOn();
+        for (int i = 0; i < 20; i++) {   // 20 calls of 15 cents: 3 euros
+            t1.makeVoiceCall(t2);
+            t1.getOngoing().duration(200);
+            t2.endOngoingCommunication();
+        }
+        for (int i = 0; i < 50; i++) {   // 7.5 euros owed
+            t3.makeVoiceCall(t2);
+            t3.getOngoing().duration(200);
+            t2.endOngoingCommunication();
+        }
+        AtomicInteger deltas = new AtomicInteger();
+        network.addListener(new NetworkListener() {
+            @Override
+            public void pointsUpdated(Client c, int delta) {
+                deltas.addAndGet(delta);
+            }
+        });
+
+        assertEquals(new LoyaltyJob(network).run(), 2);
+        assertEquals(network.findClient(1).getPoints(), 23);
+        assertEquals(network.findClient(3).getPoints(), 13);
+        assertEquals(network.findClient(2).getPoints(), 20);
+        assertEquals(deltas.get(), 3 - 7);
+        assertEquals(new LoyaltyJob(network).run(), 0);
+    }
+
+    @Test(timeOut = 60000)
+    public void testRunsAlongsideUpdates() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> live = pool.submit(() -> {
+                for (int r = 0; r < 20; r++)
+                    for (int i = 1; i <= 3000; i++)
+                        network.findClient(i).tryUpdatePoints(1);
+            });
+            for (int r = 0; r < 5; r++)
+                new LoyaltyJob(network, c -> c.getPoints() * 2).run();
+            live.get();
+        } finally {
+            pool.shutdown();
+        }
+        for (int i = 1; i <= 3000; i++) {
+            int p = network.findClient(i).getPoints();
+            assertTrue(p >= 0 && p <= 200);
+        }
+    }
+
+    @Test(timeOut = 60000)
+    public void testScheduledRunsSurviveAFailure() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        LoyaltyJob job = new LoyaltyJob(network, c -> {
+            if (calls.getAndIncrement() == 0)
+                throw new IllegalStateException("rule failed");
+            return 100;
+        });
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            job.schedule(executor, 10, TimeUnit.MILLISECONDS);
+            while (network.findClient(1).getPoints() != 100 || network.findClient(3000).getPoints() != 100)
+                Thread.sleep(10);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(job.failures(), 1);
+        assertTrue(job.lastFailure().getMessage().contains("rule failed"));
+    }
+}
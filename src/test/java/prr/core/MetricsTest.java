@@ -0,0 +1,93 @@
+package prr.core;
+
+import java.util.Map;
+
+import prr.core.exceptions.InvalidInvocationException;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class MetricsTest {
+
+    private Network network;
+    private Metrics metrics;
+    private Terminal t1, t2, t3;
+
+    @BeforeMethod
+    public void setup() {
+        network = new Network();
+        metrics = new Metrics();
+        network.addListener(metrics);
+        t1 = network.registerClient("111", 111, "T1").getTerminals().get(0);
+        t2 = network.registerClient("222", 222, "T2").getTerminals().get(0);
+        t3 = network.registerClient("333", 333, "T3").getTerminals().get(0);
+    }
+
+    @Test
+    public void testSmsOutcomes() {
+        assertThrows(InvalidInvocationException.class, () -> t1.sendSMS(t2, "hi"));
+        t1.turnOn();
+        assertFalse(t1.sendSMS(t2, "hi"));
+        t2.turnOn();
+        t2.toggleOnMode();
+        assertFalse(t1.sendSMS(t2, "hi"));
+        t2.toggleOnMode();
+        assertTrue(t1.sendSMS(t2, "hi"));
+        assertTrue(t1.sendSMS(t2, "hi"));
+
+        assertEquals(metrics.sms(SmsOutcome.REJECTED), 1);
+        assertEquals(metrics.sms(SmsOutcome.TARGET_OFF), 1);
+        assertEquals(metrics.sms(SmsOutcome.TARGET_SILENT), 1);
+        assertEquals(metrics.sms(SmsOutcome.DELIVERED), 2);
+        assertEquals(metrics.transitions(TerminalMode.OFF, TerminalMode.NORMAL), 2);
+        assertEquals(metrics.transitions(TerminalMode.NORMAL, TerminalMode.SILENT), 1);
+        assertEquals(metrics.transitions(TerminalMode.SILENT, TerminalMode.NORMAL), 1);
+    }
+
+    @Test
+    public void testCalls() {
+        t1.turnOn(); t2.turnOn();
+        assertThrows(InvalidInvocationException.class, () -> t1.makeVoiceCall(t3));
+        assertThrows(InvalidInvocationException.class, () -> t1.makeVoiceCall(t1));
+        for (int d : new int[] {1, 30, 60, 600}) {
+            t1.makeVoiceCall(t2);
+            t1.getOngoing().duration(d);
+            t2.endOngoingCommunication();
+        }
+        assertEquals(metrics.callsRejected(), 2);
+        assertEquals(metrics.callsStarted(), 4);
+        assertEquals(metrics.callsEnded(), 4);
+        assertEquals(metrics.transitions(TerminalMode.NORMAL, TerminalMode.BUSY), 8);
+        assertEquals(metrics.callSetupNanos().count(), 4);
+        assertTrue(metrics.callSetupNanos().sum() > 0);
+
+        Histogram seconds = metrics.callSeconds();
+        assertEquals(seconds.sum(), 691);
+        assertEquals(seconds.max(), 600);
+        assertEquals(seconds.percentile(0.25), 1);
+        assertEquals(seconds.percentile(0.5), 31);
+        assertEquals(seconds.percentile(1), 600);
+
+        Map<String, Long> snapshot = metrics.snapshot();
+        assertEquals(snapshot.get("call.started"), Long.valueOf(4));
+        assertEquals(snapshot.get("call.seconds.count"), Long.valueOf(4));
+        assertEquals(snapshot.get("mode.BUSY.NORMAL"), Long.valueOf(8));
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        Histogram h = new Histogram();
+        h.record(0);
+        h.record(-5);
+        h.record(1);
+        h.record(1023);
+        h.record(1024);
+        assertEquals(h.count(), 5);
+        assertEquals(h.bucketCount(0), 2);
+        assertEquals(h.bucketCount(1), 1);
+        assertEquals(h.bucketCount(10), 1);
+        assertEquals(h.bucketCount(11), 1);
+        assertEquals(h.percentile(0.4), 0);
+        assertEquals(new Histogram().percentile(0.5), 0);
+    }
+}
@@ -0,0 +1,161 @@
+package prr.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class NetworkSnapshotTest {
+
+    private Network network;
+    private Path file;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        network = new Network();
+        file = Files.createTempDirectory("snapshot").resolve("network.bin");
+        for (int i = 1; i <= 50; i++) {
+            network.registerClient(String.valueOf(1000 + i), i, "T" + i);
+            if (i % 5 == 0)
+                network.addTerminal(i, "U" + i);
+        }
+        for (int i = 1; i <= 50; i++) {
+            Client c = network.findClient(i);
+            c.addFriend(network.findClient(i % 50 + 1));
+            Terminal t = network.findTerminal("T" + i);
+            t.turnOn();
+            if (i % 3 == 0)
+                t.toggleOnMode();
+        }
+        network.findClient(7).updatePoints(100);
+        network.findClient(7).updateName("77");
+        Terminal t1 = network.findTerminal("T1"), t2 = network.findTerminal("T2"), t4 = network.findTerminal("T4");
+        t1.sendSMS(t2, "x".repeat(2000));
+        t1.makeVoiceCall(t2);
+        t1.getOngoing().duration(30);
+        t2.endOngoingCommunication();
+        network.findTerminal("U5").pay(40);
+        t4.makeVoiceCall(network.findTerminal("T5"));
+        t4.getOngoing().duration(12);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        NetworkSnapshot.write(network, file);
+        Network copy = NetworkSnapshot.open(file).toNetwork();
+
+        assertEquals(copy.numberOfClients(), 50);
+        assertEquals(copy.numberOfTerminals(), 60);
+        assertEquals(copy.ordinalLimit(), network.ordinalLimit());
+        for (Client c : network.getClients()) {
+            Client d = copy.findClient(c.getTaxNumber());
+            assertEquals(d.getName(), c.getName());
+            assertEquals(d.getPoints(), c.getPoints());
+            assertEquals(d.balance(), c.balance());
+            assertEquals(d.getCharges(), c.getCharges());
+            assertEquals(d.numberOfTerminals(), c.numberOfTerminals());
+            assertEquals(d.numberOfFriends(), c.numberOfFriends());
+            for (Client f : c.getFriends())
+                assertTrue(d.hasFriend(copy.findClient(f.getTaxNumber())));
+            for (Terminal t : c.getTerminals()) {
+                Terminal u = copy.findTerminal(t.getId());
+                assertEquals(u.getMode(), t.getMode());
+                assertEquals(u.getOrdinal(), t.getOrdinal());
+                assertSame(u.getClient(), d);
+                assertEquals(d.balanceOf(u), c.balanceOf(t));
+            }
+        }
+
+        // the call in progress carries on in the copy
+        Terminal t4 = copy.findTerminal("T4"), t5 = copy.findTerminal("T5");
+        assertEquals(t4.getMode(), TerminalMode.BUSY);
+        assertSame(t5.getOngoing(), t4.getOngoing());
+        t5.endOngoingCommunication();
+        assertEquals(t4.getMode(), TerminalMode.NORMAL);
+        assertEquals(t4.balance(), 12);
+    }
+
+    @Test
+    public void testReadsFieldsInPlace() throws Exception {
+        NetworkSnapshot.write(network, file);
+        NetworkSnapshot s = NetworkSnapshot.open(file);
+        assertEquals(s.numberOfClients(), 50);
+        assertEquals(s.numberOfTerminals(), 60);
+        boolean found = false;
+        for (int i = 0; i < s.numberOfClients(); i++) {
+            if (s.clientTaxNumber(i) == 7) {
+                assertEquals(s.clientName(i), "77");
+                assertEquals(s.clientPoints(i), 120);
+                found = true;
+            }
+        }
+        assertTrue(found);
+        for (int i = 0; i < s.numberOfTerminals(); i++)
+            if (s.terminalId(i).equals("U5"))
+                assertEquals(s.terminalBalance(i), -40);
+    }
+
+    @Test
+    public void testMissingOrdinalKeptMissing() throws Exception {
+        Terminal t3 = network.findTerminal("T3");
+        t3.setOrdinal(-1);
+        Network copy = NetworkSnapshot.wrap(NetworkSnapshot.encode(network)).toNetwork();
+        // a fresh ordinal in the copy, not one of another terminal
+        int o = copy.findTerminal("T3").getOrdinal();
+        assertTrue(o >= network.ordinalLimit(), "ordinal " + o);
+        assertEquals(copy.findTerminal("T1").getOrdinal(), network.findTerminal("T1").getOrdinal());
+    }
+
+    @Test(timeOut = 60000)
+    public void testCallsConsistentWhileInUse() throws Exception {
+        Terminal[] ts = new Terminal[20];
+        for (int i = 0; i < ts.length; i++) {
+            ts[i] = network.findTerminal("T" + (21 + i));
+            if (ts[i].getMode() != TerminalMode.NORMAL)
+                ts[i].toggleOnMode();
+        }
+        Thread[] callers = new Thread[2];
+        AtomicBoolean stop = new AtomicBoolean();
+        for (int k = 0; k < callers.length; k++) {
+            int seed = k;
+            callers[k] = new Thread(() -> {
+                Random random = new Random(seed);
+                while (!stop.get()) {
+                    Terminal a = ts[random.nextInt(ts.length)], b = ts[random.nextInt(ts.length)];
+                    if (a.tryMakeVoiceCall(b) == OperationResult.OK)
+                        b.tryEndOngoingCommunication();
+                }
+            });
+            callers[k].start();
+        }
+        try {
+            for (int n = 0; n < 200; n++) {
+                Network copy = NetworkSnapshot.wrap(NetworkSnapshot.encode(network)).toNetwork();
+                for (Terminal t : ts) {
+                    Terminal u = copy.findTerminal(t.getId());
+                    Communication c = u.getOngoing();
+                    assertEquals(u.getMode() == TerminalMode.BUSY, c != null);
+                    if (c != null)
+                        assertSame(((c.from() == u) ? c.to() : c.from()).getOngoing(), c);
+                }
+            }
+        } finally {
+            stop.set(true);
+            for (Thread t : callers)
+                t.join();
+        }
+    }
+
+    @Test
+    public void testRejectsOtherFiles() throws Exception {
+        ByteBuffer image = NetworkSnapshot.encode(network);
+        image.putInt(4, NetworkSnapshot.VERSION + 1);
+        assertThrows(IOException.class, () -> NetworkSnapshot.wrap(image));
+        assertThrows(IOException.class, () -> NetworkSnapshot.wrap(ByteBuffer.allocate(64)));
+    }
+}
@@ -0,0 +1,114 @@
+package prr.core;
+
+import prr.core.exceptions.InvalidOperationException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class NetworkTest {
+
+    private Network network;
+    private Client alice;
+
+    @BeforeMethod
+    public void setup() {
+        network = new Network();
+        alice = network.registerClient("111", 111, "T1");
+    }
+
+    @Test
+    public void testLookup() {
+        assertSame(network.findClient(111), alice);
+        assertSame(network.findTerminal("T1").getClient(), alice);
+        assertNull(network.findTerminal("T2"));
+        assertNull(network.findClient(222));
+    }
+
+    @Test
+    public void testClientAddTerminalIsIndexed() {
+        Terminal t2 = new Terminal("T2", alice);
+        alice.addTerminal(t2);
+        assertSame(network.findTerminal("T2"), t2);
+        assertEquals(network.numberOfTerminals(), 2);
+    }
+
+    @Test
+    public void testRemoveTerminal() {
+        Terminal t2 = network.addTerminal(111, "T2");
+        assertTrue(network.removeTerminal("T2"));
+        assertNull(network.findTerminal("T2"));
+        assertEquals(alice.numberOfTerminals(), 1);
+        assertFalse(network.removeTerminal("T2"));
+        assertFalse(alice.removeTerminal(t2));
+    }
+
+    @Test
+    public void testRemoveTerminalInCall() {
+        Terminal t1 = network.findTerminal("T1");
+        Terminal t2 = network.addTerminal(111, "T2");
+        t1.turnOn();
+        t2.turnOn();
+        t1.makeVoiceCall(t2);
+        assertFalse(network.removeTerminal("T2")); // refused, not thrown
+        assertFalse(alice.removeTerminal(t1));
+        t1.endOngoingCommunication();
+        assertTrue(network.removeTerminal("T2"));
+    }
+
+    @Test
+    public void testRemoveClient() {
+        network.addTerminal(111, "T2");
+        assertTrue(network.removeClient(111));
+        assertNull(network.findClient(111));
+        assertEquals(network.numberOfTerminals(), 0);
+        alice.addTerminal(new Terminal("T3", alice));
+        assertNull(network.findTerminal("T3"));
+    }
+
+    @Test(expectedExceptions = InvalidOperationException.class)
+    public void testDuplicateTaxNumber() {
+        network.registerClient("222", 111, "T9");
+    }
+
+    @Test
+    public void testDuplicateTerminalId() {
+        assertThrows(InvalidOperationException.class, () -> network.registerClient("222", 222, "T1"));
+        assertNull(network.findClient(222));
+        assertThrows(InvalidOperationException.class, () -> network.addTerminal(111, "T1"));
+        assertEquals(alice.numberOfTerminals(), 1);
+    }
+
+    @Test
+    public void testConcurrentRegisterAndLookup() throws Exception {
+        int threads = 8, perThread = 2000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int base = 1000 + t * perThread;
+                done.add(pool.submit(() -> {
+                    for (int i = base; i < base + perThread; i++) {
+                        network.registerClient(String.valueOf(i), i, "C" + i);
+                        network.addTerminal(i, "D" + i);
+                        assertNotNull(network.findTerminal("D" + i));
+                        if (i % 2 == 0)
+                            assertTrue(network.removeTerminal("C" + i));
+                    }
+                }));
+            }
+            for (Future<?> f : done)
+                f.get();
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(network.numberOfClients(), 1 + threads * perThread);
+        assertEquals(network.numberOfTerminals(), 1 + threads * perThread * 3 / 2);
+        assertSame(network.findTerminal("C1001").getClient(), network.findClient(1001));
+    }
+}
@@ -0,0 +1,200 @@
+package prr.core;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class PartitionNodeTest {
+
+    private List<PartitionNode> nodes;
+    private String a, b, c; // terminals of partitions 0, 1 and 2
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        nodes = PartitionNode.startLocal(3);
+        a = id(0, "A");
+        b = id(1, "B");
+        c = id(2, "C");
+        nodes.get(0).registerClient("1", 1, a);
+        nodes.get(1).registerClient("2", 2, b);
+        nodes.get(2).registerClient("3", 3, c);
+        for (String t : new String[] {a, b, c})
+            terminal(t).turnOn();
+    }
+
+    @AfterMethod
+    public void teardown() throws Exception {
+        for (PartitionNode n : nodes)
+            n.close();
+    }
+
+    // a terminal id of the given partition
+    private static String id(int partition, String prefix) {
+        for (int i = 0; ; i++)
+            if (PartitionNode.partitionOf(prefix + i, 3) == partition)
+                return prefix + i;
+    }
+
+    private PartitionNode node(String id) {
+        return nodes.get(PartitionNode.partitionOf(id, 3));
+    }
+
+    private Terminal terminal(String id) {
+        return node(id).getNetwork().findTerminal(id);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 500 && !condition.getAsBoolean(); i++)
+            Thread.sleep(10);
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    public void testPlacesTerminalsByHash() {
+        assertTrue(nodes.get(0).owns(a));
+        assertFalse(nodes.get(0).owns(b));
+        assertThrows(prr.core.exceptions.InvalidOperationException.class,
+                     () -> nodes.get(0).registerClient("4", 4, b));
+        assertThrows(prr.core.exceptions.InvalidOperationException.class,
+                     () -> nodes.get(0).addTerminal(1, id(1, "X")));
+        assertEquals(nodes.get(1).getNetwork().numberOfTerminals(), 1);
+    }
+
+    @Test
+    public void testSmsAcrossPartitions() throws Exception {
+        Metrics metrics = new Metrics();
+        nodes.get(0).getNetwork().addListener(metrics);
+
+        assertEquals(nodes.get(0).sendSMS(a, b, "hello"), SmsOutcome.DELIVERED);
+        assertEquals(nodes.get(0).getNetwork().findClient(1).balance(), 2); // billed on the sender's node
+
+        terminal(b).toggleOnMode();
+        assertEquals(nodes.get(0).sendSMS(a, b, "silent"), SmsOutcome.TARGET_SILENT);
+        assertEquals(nodes.get(1).addFriend(2, 1), OperationResult.OK); // a friend on another partition
+        assertTrue(nodes.get(1).hasFriend(2, 1));
+        assertFalse(nodes.get(1).hasFriend(2, 3));
+        assertEquals(nodes.get(0).sendSMS(a, b, "friend"), SmsOutcome.DELIVERED);
+
+        terminal(c).turnOff();
+        assertEquals(nodes.get(0).sendSMS(a, c, "off"), SmsOutcome.TARGET_OFF);
+        assertEquals(nodes.get(0).sendSMS(a, id(1, "Nobody"), "x"), SmsOutcome.REJECTED);
+        terminal(a).turnOff();
+        assertEquals(nodes.get(0).sendSMS(a, b, "sender off"), SmsOutcome.REJECTED);
+
+        assertEquals(metrics.sms(SmsOutcome.DELIVERED), 2);
+        assertEquals(metrics.sms(SmsOutcome.TARGET_SILENT), 1);
+    }
+
+    @Test
+    public void testCallEndedByCaller() throws Exception {
+        assertEquals(nodes.get(0).makeVoiceCall(a, b), OperationResult.OK);
+        assertEquals(terminal(a).getMode(), TerminalMode.BUSY);
+        assertEquals(terminal(b).getMode(), TerminalMode.BUSY);
+        assertEquals(nodes.get(2).makeVoiceCall(c, b), OperationResult.TARGET_UNAVAILABLE);
+        assertEquals(terminal(c).getMode(), TerminalMode.NORMAL); // released after the refusal
+
+        terminal(a).getOngoing().duration(200);
+        terminal(a).endOngoingCommunication();
+        assertEquals(terminal(a).getMode(), TerminalMode.NORMAL);
+        await(() -> terminal(b).getMode() == TerminalMode.NORMAL);
+        assertEquals(nodes.get(0).getNetwork().findClient(1).balance(), 15);
+        assertEquals(nodes.get(1).getNetwork().findClient(2).balance(), 0);
+    }
+
+    @Test
+    public void testCallEndedByReceiver() throws Exception {
+        int ordinal = Client.restore("0", 0, 0, 0, 0).getOrdinal();
+        assertEquals(nodes.get(2).makeVoiceCall(c, a), OperationResult.OK);
+        terminal(a).getOngoing().duration(60);
+        assertEquals(terminal(a).tryEndOngoingCommunication(), OperationResult.OK);
+        assertEquals(terminal(a).getMode(), TerminalMode.NORMAL);
+        await(() -> terminal(c).getMode() == TerminalMode.NORMAL);
+        assertEquals(nodes.get(2).getNetwork().findClient(3).balance(), 12); // 60 s under 75 points
+        assertEquals(nodes.get(0).getNetwork().findClient(1).balance(), 0);
+        assertEquals(Client.restore("0", 0, 0, 0, 0).getOrdinal(), ordinal + 1); // no client for the stand-in
+
+        assertEquals(nodes.get(2).makeVoiceCall(c, a), OperationResult.OK); // both free again
+    }
+
+    @Test(timeOut = 20000)
+    public void testClosedPartitionFailsRequests() throws Exception {
+        assertEquals(nodes.get(0).sendSMS(a, b, "x"), SmsOutcome.DELIVERED);
+        nodes.get(1).close();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(nodes.get(0).sendSMS(a, b, "x"), SmsOutcome.UNREACHABLE);
+            assertEquals(nodes.get(0).makeVoiceCall(a, b), OperationResult.UNREACHABLE);
+            assertEquals(terminal(a).getMode(), TerminalMode.NORMAL);
+        }
+        assertEquals(nodes.get(0).sendSMS(a, c, "x"), SmsOutcome.DELIVERED); // other partitions still answer
+        assertEquals(nodes.get(0).getNetwork().findClient(1).balance(), 2 * 2);
+    }
+
+    @Test(timeOut = 20000)
+    public void testSilentPartitionTimesOut() throws Exception {
+        try (ServerSocket silent = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            List<InetSocketAddress> addresses = new ArrayList<>();
+            for (PartitionNode n : nodes)
+                addresses.add(n.getAddress());
+            addresses.set(1, new InetSocketAddress(silent.getInetAddress(), silent.getLocalPort()));
+            nodes.get(0).connect(addresses);
+            nodes.get(0).setRequestTimeout(200);
+            Metrics metrics = new Metrics();
+            nodes.get(0).getNetwork().addListener(metrics);
+
+            assertEquals(nodes.get(0).sendSMS(a, b, "x"), SmsOutcome.UNREACHABLE);
+            assertEquals(nodes.get(0).makeVoiceCall(a, b), OperationResult.UNREACHABLE);
+            assertEquals(terminal(a).getMode(), TerminalMode.NORMAL);
+            assertEquals(nodes.get(0).getNetwork().findClient(1).balance(), 0);
+            assertEquals(metrics.sms(SmsOutcome.UNREACHABLE), 1);
+
+            // the END for the caller's node is queued: ending the call does not wait for it
+            assertEquals(nodes.get(1).makeVoiceCall(b, a), OperationResult.OK);
+            long started = System.nanoTime();
+            terminal(a).endOngoingCommunication();
+            assertTrue(System.nanoTime() - started < 100_000_000L);
+            assertEquals(terminal(a).getMode(), TerminalMode.NORMAL);
+        }
+    }
+
+    @Test
+    public void testRefusedCallsLeaveTheCallerFree() {
+        terminal(b).toggleOnMode();
+        assertEquals(nodes.get(0).makeVoiceCall(a, b), OperationResult.TARGET_UNAVAILABLE);
+        assertEquals(terminal(a).getMode(), TerminalMode.NORMAL);
+        assertEquals(nodes.get(0).makeVoiceCall(a, id(1, "Nobody")), OperationResult.INVALID_ARGUMENT);
+        assertEquals(nodes.get(0).makeVoiceCall(a, a), OperationResult.INVALID_ARGUMENT);
+        terminal(a).turnOff();
+        assertEquals(nodes.get(0).makeVoiceCall(a, c), OperationResult.WRONG_MODE);
+        assertEquals(terminal(c).getMode(), TerminalMode.NORMAL);
+    }
+
+    @Test(timeOut = 60000)
+    public void testPipelinedSmsFromManyThreads() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> done = new ArrayList<>();
+            for (int t = 0; t < 8; t++)
+                done.add(pool.submit(() -> {
+                    int delivered = 0;
+                    for (int i = 0; i < 500; i++)
+                        if (nodes.get(0).sendSMS(a, (i % 2 == 0) ? b : c, "x") == SmsOutcome.DELIVERED)
+                            delivered++;
+                    return delivered;
+                }));
+            for (Future<Integer> f : done)
+                assertEquals(f.get().intValue(), 500);
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(nodes.get(0).getNetwork().findClient(1).balance(), 8 * 500 * 2);
+    }
+}
@@ -0,0 +1,73 @@
+package prr.core;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class SimulatorTest {
+
+    private static Simulator.Config config(long seed) {
+        return new Simulator.Config().seed(seed).clients(200).terminalsPerClient(2)
+            .simulatedMillis(2 * 3_600_000L).smsPerHour(6).callsPerHour(3)
+            .callDurations(Simulator.Durations.EXPONENTIAL, 120);
+    }
+
+    private static void assertSameRun(Simulator.Report a, Simulator.Report b) {
+        assertEquals(a.getEvents(), b.getEvents());
+        assertEquals(a.getCallsStarted(), b.getCallsStarted());
+        assertEquals(a.getCallsRejected(), b.getCallsRejected());
+        for (SmsOutcome o : SmsOutcome.values())
+            assertEquals(a.getSms(o), b.getSms(o));
+        assertEquals(a.getCharges(), b.getCharges());
+        assertEquals(a.getPayments(), b.getPayments());
+    }
+
+    @Test
+    public void testSingleThreadedRunsRepeat() throws Exception {
+        Simulator.Report a = new Simulator(config(7)).run(1);
+        Simulator.Report b = new Simulator(config(7)).run(1);
+        assertSameRun(a, b);
+        assertTrue(a.getCallsStarted() > 0);
+        assertTrue(a.getSms(SmsOutcome.DELIVERED) > 0);
+        assertTrue(a.getCallsRejected() > 0);
+        assertTrue(a.getCharges() > 0);
+        assertEquals(a.getCallsAttempted(), a.getCallsStarted() + a.getCallsRejected());
+        long sms = 0;
+        for (SmsOutcome o : SmsOutcome.values())
+            sms += a.getSms(o);
+        assertEquals(sms, a.getSmsAttempted());
+
+        Simulator.Report other = new Simulator(config(8)).run(1);
+        assertNotEquals(other.getEvents(), a.getEvents());
+    }
+
+    @Test
+    public void testPartitionedRunsRepeat() throws Exception {
+        Simulator s = new Simulator(config(3));
+        Simulator.Report a = s.run(4);
+        Simulator.Report b = new Simulator(config(3)).run(4);
+        assertSameRun(a, b);
+        long charges = 0;
+        for (Client c : s.getNetwork().getClients())
+            charges += c.getCharges();
+        assertEquals(charges, a.getCharges());
+        assertTrue(a.callsPerSecond() > 0);
+    }
+
+    @Test
+    public void testLoneTerminalsOnlyChangeMode() throws Exception {
+        // each partition has one terminal, with no one to send to or call
+        Simulator.Report r = new Simulator(new Simulator.Config().clients(2).terminalsPerClient(1)).run(2);
+        assertTrue(r.getEvents() > 0);
+        assertEquals(r.getSmsAttempted(), 0);
+        assertEquals(r.getCallsAttempted(), 0);
+    }
+
+    @Test
+    public void testFixedDurations() throws Exception {
+        Simulator.Report r = new Simulator(config(1).modeChangesPerHour(0).smsPerHour(0)
+                                           .callDurations(Simulator.Durations.FIXED, 200)).run(1);
+        // every ended call lasted 200 s and cost 15 cents
+        assertTrue(r.getCallsStarted() > 0);
+        assertEquals(r.getCharges() % 15, 0);
+    }
+}
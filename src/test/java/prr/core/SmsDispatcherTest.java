@@ -0,0 +1,152 @@
+package prr.core;
+
+import prr.core.exceptions.InvalidInvocationException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class SmsDispatcherTest {
+
+    private Client alice, bob;
+    private Terminal t1, t2;
+    private SmsDispatcher dispatcher;
+
+    // a terminal that records what it receives
+    private static class Inbox extends Terminal {
+        final List<String> received = new ArrayList<>();
+        Inbox(String id) { super(id, null); }
+        @Override
+        public synchronized void receiveSMS(Terminal from, String msg) { received.add(msg); }
+    }
+
+    @BeforeMethod
+    public void setup() {
+        t1 = new Terminal("T1", null);
+        t2 = new Inbox("T2");
+        alice = new Client("111", 111, t1);
+        bob = new Client("222", 222, t2);
+        t1.turnOn();
+        t2.turnOn();
+        dispatcher = new SmsDispatcher(2, 16, 4);
+    }
+
+    @AfterMethod
+    public void teardown() throws InterruptedException {
+        dispatcher.close();
+    }
+
+    @Test
+    public void testDelivered() throws Exception {
+        assertTrue(t1.sendSMS(t2, "Hello", dispatcher).get(5, TimeUnit.SECONDS));
+        assertEquals(((Inbox) t2).received, List.of("Hello"));
+    }
+
+    @Test
+    public void testSameChecksAsSynchronousSend() throws Exception {
+        t2.toggleOnMode(); // SILENT
+        assertFalse(t1.sendSMS(t2, "Msg", dispatcher).get(5, TimeUnit.SECONDS));
+        bob.addFriend(alice);
+        assertTrue(t1.sendSMS(t2, "Msg", dispatcher).get(5, TimeUnit.SECONDS));
+        t2.toggleOnMode();
+        t2.turnOff();
+        assertFalse(t1.sendSMS(t2, "Msg", dispatcher).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testOutcomes() throws Exception {
+        Network network = new Network();
+        Terminal a = network.registerClient("444", 444, "A").getTerminals().get(0);
+        Terminal b = network.registerClient("555", 555, "B").getTerminals().get(0);
+        a.turnOn();
+        b.turnOn();
+        network.setSmsLimiter(new SmsRateLimiter(0.001, 1, 0, 1));
+        assertEquals(a.trySendSMS(b, "1", dispatcher).get(5, TimeUnit.SECONDS), SmsOutcome.DELIVERED);
+        assertEquals(a.trySendSMS(b, "2", dispatcher).getNow(null), SmsOutcome.RATE_LIMITED);
+        assertFalse(a.sendSMS(b, "3", dispatcher).get(5, TimeUnit.SECONDS));
+        a.turnOff();
+        assertEquals(a.trySendSMS(b, "4", dispatcher).getNow(null), SmsOutcome.REJECTED);
+        assertEquals(b.trySendSMS(a, "5", dispatcher).get(5, TimeUnit.SECONDS), SmsOutcome.TARGET_OFF);
+    }
+
+    @Test
+    public void testSubmitAfterClose() throws Exception {
+        dispatcher.close();
+        dispatcher.close(); // closing again does not block
+        CompletableFuture<Boolean> f = t1.sendSMS(t2, "late", dispatcher);
+        assertTrue(f.isCompletedExceptionally());
+    }
+
+    @Test(expectedExceptions = InvalidInvocationException.class)
+    public void testSenderOff() {
+        t1.turnOff();
+        t1.sendSMS(t2, "Hi", dispatcher);
+    }
+
+    @Test
+    public void testOrderPerReceiver() throws Exception {
+        CompletableFuture<Boolean> last = null;
+        for (int i = 0; i < 200; i++) {
+            while (true) {
+                CompletableFuture<Boolean> f = t1.sendSMS(t2, "m" + i, dispatcher);
+                if (!f.isCompletedExceptionally()) {
+                    last = f;
+                    break;
+                }
+                Thread.sleep(1);
+            }
+        }
+        last.get(5, TimeUnit.SECONDS);
+        List<String> received = ((Inbox) t2).received;
+        assertEquals(received.size(), 200);
+        for (int i = 0; i < 200; i++)
+            assertEquals(received.get(i), "m" + i);
+    }
+
+    @Test
+    public void testBackpressureWhenFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Terminal slow = new Terminal("S1", null) {
+            @Override
+            public void receiveSMS(Terminal from, String msg) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        new Client("333", 333, slow);
+        slow.turnOn();
+
+        SmsDispatcher small = new SmsDispatcher(1, 2, 1);
+        List<CompletableFuture<Boolean>> sent = new ArrayList<>();
+        CompletableFuture<Boolean> rejected = null;
+        for (int i = 0; i < 10 && rejected == null; i++) {
+            CompletableFuture<Boolean> f = t1.sendSMS(slow, "x", small);
+            if (f.isCompletedExceptionally())
+                rejected = f;
+            else
+                sent.add(f);
+        }
+        assertNotNull(rejected);
+        try {
+            rejected.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        release.countDown();
+        small.close();
+        for (CompletableFuture<Boolean> f : sent)
+            assertTrue(f.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,176 @@
+package prr.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class SmsInboxTest {
+
+    private Network network;
+    private AtomicLong clock;
+    private Terminal a, b, c;
+
+    @BeforeMethod
+    public void setup() {
+        network = new Network();
+        network.registerClient("1", 1, "A");
+        network.registerClient("2", 2, "B");
+        network.registerClient("3", 3, "C");
+        a = network.findTerminal("A");
+        b = network.findTerminal("B");
+        c = network.findTerminal("C");
+        a.turnOn();
+        b.turnOn();
+        c.turnOn();
+        clock = new AtomicLong(1_000_000);
+    }
+
+    private static List<String> texts(SmsInbox.Cursor cursor) {
+        List<String> l = new ArrayList<>();
+        while (cursor.next())
+            l.add(cursor.sender() + ":" + cursor.text());
+        return l;
+    }
+
+    @Test
+    public void testDeliveredSmsAreKept() {
+        SmsInbox inbox = new SmsInbox(4096, 4, 0, 10, clock::get);
+        network.setInbox(inbox);
+        assertTrue(a.sendSMS(b, "hello"));
+        assertTrue(c.sendSMS(b, "ol\u00e1"));
+        assertTrue(b.sendSMS(a, "back"));
+        b.toggleOnMode();
+        assertFalse(c.sendSMS(b, "dropped while silent"));
+
+        assertEquals(texts(inbox.read(b)), List.of("A:hello", "C:ol\u00e1"));
+        assertEquals(texts(inbox.read(a)), List.of("B:back"));
+        assertEquals(texts(inbox.read(c)), List.of());
+        assertEquals(inbox.appended(), 3);
+
+        network.setInbox(null);
+        a.sendSMS(c, "not kept");
+        assertEquals(texts(inbox.read(c)), List.of());
+    }
+
+    @Test
+    public void testCursorResumesAfterPosition() {
+        SmsInbox inbox = new SmsInbox(4096, 4, 0, 10, clock::get);
+        inbox.append(b, a, "1");
+        inbox.append(b, a, "2");
+        SmsInbox.Cursor cursor = inbox.read(b);
+        assertTrue(cursor.next());
+        assertEquals(cursor.remaining(), 1);
+        assertTrue(cursor.next());
+        assertEquals(cursor.time(), 1_000_000);
+        long seen = cursor.position();
+        assertFalse(cursor.next());
+
+        inbox.append(b, a, "3");
+        assertEquals(texts(inbox.read(b, seen)), List.of("A:3"));
+    }
+
+    @Test
+    public void testPerTerminalLimit() {
+        SmsInbox inbox = new SmsInbox(4096, 4, 0, 3, clock::get);
+        for (int i = 0; i < 5; i++)
+            inbox.append(b, a, "m" + i);
+        assertEquals(texts(inbox.read(b)), List.of("A:m2", "A:m3", "A:m4"));
+    }
+
+    @Test
+    public void testSegmentsEvictedBySize() {
+        SmsInbox inbox = new SmsInbox(256, 2, 0, 1000, clock::get);
+        String text = "x".repeat(100); // two records per segment
+        for (int i = 0; i < 10; i++)
+            inbox.append((i % 2 == 0) ? b : c, a, text + i);
+        assertEquals(inbox.retainedBytes(), 512);
+        assertEquals(inbox.evicted(), 6);
+        List<String> kept = texts(inbox.read(b));
+        assertEquals(kept, List.of("A:" + text + 6, "A:" + text + 8));
+    }
+
+    @Test
+    public void testSegmentsExpire() {
+        SmsInbox inbox = new SmsInbox(256, 8, 1000, 100, clock::get);
+        String text = "y".repeat(100);
+        inbox.append(b, a, text + 1);
+        inbox.append(b, a, text + 2);
+        inbox.append(b, a, text + 3); // second segment
+        clock.addAndGet(600);
+        inbox.append(b, a, text + 4);
+        clock.addAndGet(600);
+        inbox.expire(); // the first segment is now older than a second
+        assertEquals(texts(inbox.read(b)), List.of("A:" + text + 3, "A:" + text + 4));
+        clock.addAndGet(5000);
+        inbox.expire();
+        assertEquals(texts(inbox.read(b)), List.of());
+        assertEquals(inbox.evicted(), 4);
+        inbox.append(b, a, "new");
+        assertEquals(texts(inbox.read(b)), List.of("A:new"));
+    }
+
+    @Test
+    public void testCursorOutlivesEviction() {
+        SmsInbox inbox = new SmsInbox(256, 1, 0, 10, clock::get);
+        inbox.append(b, a, "z".repeat(200));
+        SmsInbox.Cursor cursor = inbox.read(b);
+        inbox.append(c, a, "z".repeat(200)); // evicts the only segment
+        assertTrue(cursor.next());
+        assertEquals(cursor.text(), "z".repeat(200));
+        assertEquals(texts(inbox.read(b)), List.of());
+    }
+
+    @Test(timeOut = 60000)
+    public void testConcurrentAppends() throws Exception {
+        SmsInbox inbox = new SmsInbox(1024, 1000, 0, 10_000, clock::get);
+        Terminal[] to = {a, b, c};
+        int threads = 8, perThread = 3000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int from = t;
+                done.add(pool.submit(() -> {
+                    for (int i = 0; i < perThread; i++)
+                        inbox.append(to[i % 3], a, from + "-" + i);
+                }));
+            }
+            for (Future<?> f : done)
+                f.get();
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(inbox.appended(), threads * perThread);
+        assertEquals(inbox.evicted(), 0);
+        for (int k = 0; k < to.length; k++) {
+            SmsInbox.Cursor cursor = inbox.read(to[k]);
+            assertEquals(cursor.remaining(), threads * perThread / 3);
+            long last = -1;
+            int[] next = new int[threads]; // each thread's messages arrive in its order
+            while (cursor.next()) {
+                assertTrue(cursor.position() > last);
+                last = cursor.position();
+                String[] m = cursor.text().split("-");
+                int t = Integer.parseInt(m[0]), i = Integer.parseInt(m[1]);
+                assertEquals(i % 3, k);
+                assertTrue(i >= next[t]);
+                next[t] = i + 1;
+            }
+        }
+    }
+
+    @Test
+    public void testDropped() {
+        SmsInbox inbox = new SmsInbox(256, 1, 0, 10, clock::get);
+        assertFalse(inbox.append(b, a, "w".repeat(300)));
+        assertFalse(inbox.append(new Terminal("X", null), a, "no ordinal"));
+        assertEquals(inbox.dropped(), 2);
+        assertThrows(IllegalArgumentException.class, () -> new SmsInbox(16, 1, 0, 1));
+    }
+}
@@ -0,0 +1,124 @@
+package prr.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class SmsRateLimiterTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    private Network network;
+    private AtomicLong clock;
+    private Terminal a1, a2, b;
+
+    @BeforeMethod
+    public void setup() {
+        network = new Network();
+        network.registerClient("1", 1, "A1");
+        a1 = network.findTerminal("A1");
+        a2 = network.addTerminal(1, "A2");
+        network.registerClient("2", 2, "B");
+        b = network.findTerminal("B");
+        a1.turnOn();
+        a2.turnOn();
+        b.turnOn();
+        clock = new AtomicLong(-5 * SECOND); // nanoTime may be negative
+    }
+
+    @Test
+    public void testTerminalBurstThenRate() {
+        SmsRateLimiter limiter = new SmsRateLimiter(2, 3, 0, 1, clock::get);
+        for (int i = 0; i < 3; i++)
+            assertTrue(limiter.tryAcquire(a1));
+        assertFalse(limiter.tryAcquire(a1));
+        assertTrue(limiter.tryAcquire(a2)); // other terminals have their own bucket
+
+        clock.addAndGet(SECOND / 2);         // one token back
+        assertTrue(limiter.tryAcquire(a1));
+        assertFalse(limiter.tryAcquire(a1));
+
+        clock.addAndGet(10 * SECOND);        // refills up to the burst only
+        for (int i = 0; i < 3; i++)
+            assertTrue(limiter.tryAcquire(a1));
+        assertFalse(limiter.tryAcquire(a1));
+        assertEquals(limiter.terminalRejections(), 3);
+        assertEquals(limiter.clientRejections(), 0);
+    }
+
+    @Test
+    public void testClientLimitSpansItsTerminals() {
+        SmsRateLimiter limiter = new SmsRateLimiter(10, 3, 1, 4, clock::get);
+        assertTrue(limiter.tryAcquire(a1));
+        assertTrue(limiter.tryAcquire(a2));
+        assertTrue(limiter.tryAcquire(a1));
+        assertTrue(limiter.tryAcquire(a2));
+        assertFalse(limiter.tryAcquire(a1));
+        assertFalse(limiter.tryAcquire(a2));
+        assertTrue(limiter.tryAcquire(b));
+        assertEquals(limiter.clientRejections(), 2);
+
+        // refused by its client, a1 kept its own tokens: 1 used of 3
+        clock.addAndGet(SECOND);
+        assertTrue(limiter.tryAcquire(a1));
+        clock.addAndGet(SECOND);
+        assertTrue(limiter.tryAcquire(a1));
+        assertEquals(limiter.terminalRejections(), 0);
+    }
+
+    @Test
+    public void testSendingReportsRateLimited() {
+        Metrics metrics = new Metrics();
+        network.addListener(metrics);
+        network.setSmsLimiter(new SmsRateLimiter(1, 2, 0, 1, clock::get));
+
+        assertEquals(a1.trySendSMS(b, "one"), SmsOutcome.DELIVERED);
+        assertTrue(a1.sendSMS(b, "two"));
+        assertEquals(a1.trySendSMS(b, "three"), SmsOutcome.RATE_LIMITED);
+        assertFalse(a1.sendSMS(b, "four"));                  // no exception
+        assertEquals(b.trySendSMS(a1, "back"), SmsOutcome.DELIVERED);
+        assertEquals(metrics.sms(SmsOutcome.RATE_LIMITED), 2);
+        assertEquals(metrics.sms(SmsOutcome.DELIVERED), 3);
+
+        a1.turnOff();                                        // the mode is checked first
+        assertEquals(a1.trySendSMS(b, "off"), SmsOutcome.REJECTED);
+
+        network.setSmsLimiter(null);
+        a1.turnOn();
+        assertEquals(a1.trySendSMS(b, "five"), SmsOutcome.DELIVERED);
+    }
+
+    @Test(timeOut = 60000)
+    public void testConcurrentSendersShareTheBurst() throws Exception {
+        SmsRateLimiter limiter = new SmsRateLimiter(1, 1000, 0, 1, clock::get);
+        AtomicLong admitted = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < 8; t++)
+                done.add(pool.submit(() -> {
+                    for (int i = 0; i < 5000; i++)
+                        if (limiter.tryAcquire(a1))
+                            admitted.incrementAndGet();
+                }));
+            for (Future<?> f : done)
+                f.get();
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(admitted.get(), 1000);
+        assertEquals(limiter.terminalRejections(), 8 * 5000 - 1000);
+    }
+
+    @Test
+    public void testInvalidLimits() {
+        assertThrows(IllegalArgumentException.class, () -> new SmsRateLimiter(-1, 1, 0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new SmsRateLimiter(1, 0, 0, 1));
+    }
+}
@@ -0,0 +1,141 @@
+package prr.core;
+
+import java.util.concurrent.CountDownLatch;
+
+import prr.core.exceptions.InvalidInvocationException;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class TerminalTableTest {
+
+    private TerminalTable table;
+    private Network network;
+    private Client ana;
+
+    @BeforeMethod
+    public void setup() {
+        table = new TerminalTable();
+        network = new Network();
+        ana = network.registerClient("1", 111, "T0");
+    }
+
+    @Test
+    public void testAddAndFind() {
+        assertEquals(table.add("T1", 111), 0);
+        assertEquals(table.add("T2", 222), 1);
+        assertEquals(table.size(), 2);
+        assertEquals(table.find("T2"), 1);
+        assertEquals(table.find("T3"), -1);
+        assertEquals(table.getId(0), "T1");
+        assertEquals(table.getClient(1), 222);
+        assertEquals(table.getMode(0), TerminalMode.OFF);
+        assertEquals(table.getBalance(0), 0);
+    }
+
+    @Test
+    public void testIdsFollowTerminal() {
+        table.add("T1", 111);
+        assertThrows(InvalidInvocationException.class, () -> table.add("T1", 111));
+        assertThrows(InvalidInvocationException.class, () -> table.add("", 111));
+        assertThrows(InvalidInvocationException.class, () -> table.add(null, 111));
+        assertThrows(InvalidInvocationException.class, () -> table.getId(1));
+
+        String wide = "Té中\u0001";
+        String tooLongForAPage = "L".repeat(3 << 19); // ids are as long as Terminal allows
+        assertEquals(table.add(wide, 111), 1);
+        assertEquals(table.add(tooLongForAPage, 111), 2);
+        assertEquals(table.add("T2", 111), 3);
+        assertEquals(table.getId(1), wide);
+        assertEquals(table.find(tooLongForAPage), 2);
+        assertEquals(table.getId(2), tooLongForAPage);
+        assertEquals(table.find("T2"), 3);
+    }
+
+    @Test
+    public void testLoadedTerminalsUseTheNetwork() {
+        Metrics metrics = new Metrics();
+        network.addListener(metrics);
+        int o = table.add("T1", 111);
+        Terminal t = table.load(o, ana);
+        assertSame(network.findTerminal("T1"), t);
+        assertSame(t.getClient(), ana);
+        assertEquals(t.getMode(), TerminalMode.OFF);
+
+        Terminal other = network.findTerminal("T0");
+        t.turnOn();
+        other.turnOn();
+        assertTrue(t.sendSMS(other, "hello"));
+        assertEquals(metrics.sms(SmsOutcome.DELIVERED), 1);
+        t.makeVoiceCall(other);
+        assertThrows(InvalidInvocationException.class, () -> table.save(t)); // not while in a call
+        t.getOngoing().duration(60);
+        t.endOngoingCommunication();
+        t.toggleOnMode();
+
+        assertEquals(table.save(t), o);
+        assertEquals(table.getMode(o), TerminalMode.SILENT);
+        assertEquals(table.getBalance(o), t.balance());
+        assertTrue(table.getBalance(o) > 0);
+    }
+
+    @Test
+    public void testSaveAndLoadKeepState() {
+        Terminal t = network.findTerminal("T0");
+        t.turnOn();
+        t.sendSMS(t, "x");
+        t.turnOff();
+        int o = table.save(t);
+        assertEquals(table.getId(o), "T0");
+        assertEquals(table.getClient(o), 111);
+
+        Network restarted = new Network();
+        Client again = restarted.registerClient("1", 111, "T9");
+        Terminal loaded = table.load(o, again);
+        assertEquals(loaded.getMode(), TerminalMode.OFF);
+        assertEquals(loaded.balance(), t.balance());
+
+        Client bob = restarted.registerClient("2", 222, "B0");
+        assertThrows(InvalidInvocationException.class, () -> table.load(o, bob));
+        table.add("B0", 111);
+        assertThrows(InvalidInvocationException.class, () -> table.save(restarted.findTerminal("B0")));
+    }
+
+    @Test
+    public void testManyTerminals() {
+        int n = 200_000; // several chunks, index growths and id pages
+        for (int i = 0; i < n; i++)
+            assertEquals(table.add("9" + i, i % 1000), i);
+        assertEquals(table.size(), n);
+        for (int i = 0; i < n; i += 7) {
+            assertEquals(table.find("9" + i), i);
+            assertEquals(table.getId(i), "9" + i);
+            assertEquals(table.getClient(i), i % 1000);
+        }
+        assertEquals(table.find("x"), -1);
+    }
+
+    @Test
+    public void testFindWhileAdding() throws InterruptedException {
+        int n = 100_000;
+        CountDownLatch start = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (int i = 0; i < n; i++)
+                table.add("W" + i, 1);
+        });
+        writer.start();
+        start.countDown();
+        while (writer.isAlive()) {
+            int size = table.size();
+            if (size > 0)
+                assertEquals(table.find("W" + (size - 1)), size - 1); // published with its id
+        }
+        writer.join();
+        assertEquals(table.size(), n);
+    }
+}
@@ -0,0 +1,231 @@
+package prr.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import prr.core.TrafficMonitor.Alert;
+import prr.core.TrafficMonitor.HeavyHitter;
+import prr.core.TrafficMonitor.Scope;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class TrafficMonitorTest {
+
+    private Network network;
+    private AtomicLong clock;
+    private List<Alert> alerts;
+    private TrafficMonitor monitor;
+    private Terminal[] terminals;
+
+    @BeforeMethod
+    public void setup() {
+        network = new Network();
+        terminals = new Terminal[1000];
+        for (int i = 0; i < terminals.length; i++) {
+            network.registerClient(String.valueOf(i + 1), i + 1, "T" + i);
+            terminals[i] = network.findTerminal("T" + i);
+            terminals[i].turnOn();
+        }
+        clock = new AtomicLong(1_000_000);
+        alerts = new ArrayList<>();
+        monitor = new TrafficMonitor(1_000, 4096, 8, 20, 4, alerts::add, clock::get);
+        network.addListener(monitor);
+    }
+
+    // every terminal sends n SMS in each of the given windows
+    private void steadyTraffic(int windows, int n) {
+        for (int w = 0; w < windows; w++) {
+            for (Terminal t : terminals)
+                for (int i = 0; i < n; i++)
+                    t.sendSMS(terminals[(t.getOrdinal() + 1) % terminals.length], "hi");
+            clock.addAndGet(1_000);
+        }
+    }
+
+    @Test
+    public void testSmsBurstAlerts() {
+        steadyTraffic(3, 2);
+        assertTrue(alerts.isEmpty());
+        Terminal spammer = terminals[42];
+        for (int i = 0; i < 30; i++)
+            spammer.sendSMS(terminals[i], "buy now");
+        assertEquals(alerts.size(), 2); // once for the terminal, once for its client
+        Alert a = alerts.get(0);
+        assertEquals(a.getScope(), Scope.TERMINAL);
+        assertEquals(a.getTerminal(), spammer);
+        assertEquals(a.getType(), CommunicationType.SMS);
+        assertEquals(a.getCount(), 20);
+        assertTrue(a.getBaseline() <= 3);
+        assertEquals(alerts.get(1).getScope(), Scope.CLIENT);
+        assertEquals(alerts.get(1).getClient().getTaxNumber(), 43);
+        assertEquals(monitor.alertCount(), 2);
+
+        List<HeavyHitter> top = monitor.heavyHitters(Scope.TERMINAL);
+        assertEquals(top.get(0).getTerminal(), spammer);
+        assertTrue(top.get(0).getCount() >= 30);
+        assertEquals(monitor.heavyHitters(Scope.CLIENT).get(0).getClient().getTaxNumber(), 43);
+        assertEquals(monitor.estimate(Scope.TERMINAL, CommunicationType.SMS, spammer.getOrdinal()), 30);
+    }
+
+    @Test
+    public void testSteadyHighRateStopsAlerting() {
+        Terminal busy = terminals[7];
+        for (int w = 0; w < 6; w++) {
+            for (int i = 0; i < 30; i++)
+                busy.sendSMS(terminals[8], "x");
+            clock.addAndGet(1_000);
+        }
+        // new traffic alerts in the first window only: then the baseline follows, and 30 is no jump
+        assertEquals(alerts.stream().filter(a -> a.getScope() == Scope.TERMINAL).count(), 1);
+        alerts.clear();
+        for (int i = 0; i < 200; i++)
+            busy.sendSMS(terminals[8], "x");
+        assertEquals(alerts.size(), 2); // a jump to several times the baseline
+    }
+
+    @Test
+    public void testHeavyHittersFade() {
+        Terminal heavy = terminals[3];
+        for (int i = 0; i < 64; i++)
+            heavy.sendSMS(terminals[4], "x");
+        clock.addAndGet(1_000);
+        assertEquals(monitor.heavyHitters(Scope.TERMINAL).get(0).getCount(), 32);
+        clock.addAndGet(3_000);
+        assertEquals(monitor.heavyHitters(Scope.TERMINAL).get(0).getCount(), 4);
+        clock.addAndGet(100_000);
+        assertTrue(monitor.heavyHitters(Scope.TERMINAL).isEmpty());
+        assertEquals(monitor.estimate(Scope.TERMINAL, CommunicationType.SMS, heavy.getOrdinal()), 0);
+    }
+
+    @Test
+    public void testQuietWindowsDecayTheBaseline() {
+        Terminal t = terminals[12];
+        for (int i = 0; i < 40; i++)
+            t.sendSMS(terminals[13], "x");
+        alerts.clear();
+        clock.addAndGet(3_000); // the baseline goes 20, 10, then 5, applied when t counts again
+        for (int i = 0; i < 20; i++)
+            t.sendSMS(terminals[13], "x");
+        assertEquals(alerts.size(), 2);
+        assertEquals(alerts.get(0).getCount(), 20);
+        assertEquals(alerts.get(0).getBaseline(), 5);
+    }
+
+    @Test
+    public void testHalvingMergesEqualCounts() {
+        int[] sent = {5, 4, 3, 2};
+        for (int i = 0; i < sent.length; i++)
+            for (int n = 0; n < sent[i]; n++)
+                monitor.smsSent(terminals[i], terminals[9], SmsOutcome.DELIVERED);
+        clock.addAndGet(1_000);
+        List<HeavyHitter> top = monitor.heavyHitters(Scope.TERMINAL);
+        long[] counts = top.stream().mapToLong(HeavyHitter::getCount).toArray();
+        assertEquals(counts, new long[] {2, 2, 1, 1});
+        for (int n = 0; n < 2; n++)
+            monitor.smsSent(terminals[3], terminals[9], SmsOutcome.DELIVERED);
+        top = monitor.heavyHitters(Scope.TERMINAL);
+        assertEquals(top.get(0).getTerminal(), terminals[3]);
+        assertEquals(top.get(0).getCount(), 3);
+        for (int n = 0; n < 100; n++) // every counter still moves up through its bucket
+            monitor.smsSent(terminals[n % 4], terminals[9], SmsOutcome.DELIVERED);
+        for (HeavyHitter hh : monitor.heavyHitters(Scope.TERMINAL))
+            assertTrue(hh.getCount() >= 25, hh.toString());
+    }
+
+    @Test
+    public void testTopKUnderManyKeys() {
+        for (int round = 0; round < 3; round++)
+            for (int i = 0; i < terminals.length; i++)
+                monitor.smsSent(terminals[i], terminals[0], SmsOutcome.DELIVERED);
+        for (int h = 0; h < 5; h++)
+            for (int i = 0; i < 100; i++)
+                monitor.smsSent(terminals[500 + h], terminals[0], SmsOutcome.TARGET_OFF);
+        List<HeavyHitter> top = monitor.heavyHitters(Scope.TERMINAL);
+        assertEquals(top.size(), 8);
+        for (int h = 0; h < 5; h++)
+            assertTrue(top.get(h).getTerminal().getOrdinal() >= 500 && top.get(h).getTerminal().getOrdinal() < 505);
+        for (HeavyHitter hh : top)
+            assertTrue(hh.getCount() - hh.getError() <= 103);
+    }
+
+    @Test
+    public void testTopKBounds() {
+        // a skewed stream: the guarantees of space saving hold for every entry
+        java.util.Random random = new java.util.Random(7);
+        int[] exact = new int[terminals.length];
+        int n = 50_000;
+        for (int e = 0; e < n; e++) {
+            int i = (e % 5 == 0) ? 900 : (int) Math.min(terminals.length - 1, Math.abs(random.nextGaussian()) * 40);
+            exact[i]++;
+            monitor.smsSent(terminals[i], terminals[0], SmsOutcome.DELIVERED);
+        }
+        List<HeavyHitter> top = monitor.heavyHitters(Scope.TERMINAL);
+        assertEquals(top.size(), 8);
+        for (HeavyHitter hh : top) {
+            int truth = exact[hh.getTerminal().getOrdinal()];
+            assertTrue(hh.getCount() >= truth && hh.getCount() - hh.getError() <= truth, hh.toString());
+        }
+        for (int i = 0; i < exact.length; i++) {
+            Terminal t = terminals[i];
+            if (exact[i] > n / 8)
+                assertTrue(top.stream().anyMatch(hh -> hh.getTerminal() == t), t.getId());
+        }
+        for (int i = 1; i < top.size(); i++)
+            assertTrue(top.get(i - 1).getCount() >= top.get(i).getCount());
+    }
+
+    @Test
+    public void testConcurrentCountsInStripes() throws InterruptedException {
+        TrafficMonitor striped = new TrafficMonitor(1_000, 4096, 8, 1_000_000, 4, a -> { }, clock::get);
+        Thread[] threads = new Thread[4];
+        for (int w = 0; w < threads.length; w++) {
+            int first = 100 * w;
+            threads[w] = new Thread(() -> {
+                for (int n = 0; n < 2_000; n++)
+                    striped.smsSent(terminals[first + n % 10], terminals[0], SmsOutcome.DELIVERED);
+            });
+            threads[w].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        for (int w = 0; w < threads.length; w++)
+            for (int i = 0; i < 10; i++)
+                assertEquals(striped.estimate(Scope.TERMINAL, CommunicationType.SMS, 100 * w + i), 200);
+        List<HeavyHitter> top = striped.heavyHitters(Scope.TERMINAL); // merged from the stripes
+        assertEquals(top.size(), 8);
+        for (HeavyHitter hh : top)
+            assertEquals(hh.getCount(), 200);
+    }
+
+    @Test
+    public void testVoiceCallsCounted() {
+        Terminal caller = terminals[10];
+        for (int i = 0; i < 25; i++) {
+            caller.makeVoiceCall(terminals[11 + i]);
+            caller.endOngoingCommunication();
+        }
+        assertEquals(monitor.estimate(Scope.TERMINAL, CommunicationType.VOICE, caller.getOrdinal()), 25);
+        assertEquals(monitor.estimate(Scope.TERMINAL, CommunicationType.SMS, caller.getOrdinal()), 0);
+        assertEquals(alerts.size(), 2);
+        assertEquals(alerts.get(0).getType(), CommunicationType.VOICE);
+    }
+
+    @Test
+    public void testRejectedSmsNotCounted() {
+        Terminal off = terminals[5];
+        off.turnOff();
+        for (int i = 0; i < 30; i++)
+            off.trySendSMS(terminals[6], "x");
+        assertEquals(monitor.estimate(Scope.TERMINAL, CommunicationType.SMS, off.getOrdinal()), 0);
+        assertTrue(alerts.isEmpty());
+    }
+
+    @Test
+    public void testInvalidSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new TrafficMonitor(1_000, 1000, 8, 20, 4, a -> { }));
+        assertThrows(IllegalArgumentException.class, () -> new TrafficMonitor(1_000, 1024, 8, 20, 0.5, a -> { }));
+        assertThrows(IllegalArgumentException.class, () -> new TrafficMonitor(1_000, 1024, 8, 20, 4, null));
+    }
+}
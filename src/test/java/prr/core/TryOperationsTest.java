@@ -0,0 +1,108 @@
+package prr.core;
+
+import prr.core.exceptions.InvalidInvocationException;
+import prr.core.exceptions.InvalidOperationException;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+public class TryOperationsTest {
+
+    private Network network;
+    private Metrics metrics;
+    private Client alice, bob;
+    private Terminal t1, t2, t3;
+
+    @BeforeMethod
+    public void setup() {
+        network = new Network();
+        metrics = new Metrics();
+        network.addListener(metrics);
+        alice = network.registerClient("111", 111, "T1");
+        bob = network.registerClient("222", 222, "T2");
+        t1 = network.findTerminal("T1");
+        t2 = network.findTerminal("T2");
+        t3 = network.addTerminal(222, "T3");
+    }
+
+    @Test
+    public void testModes() {
+        assertEquals(t1.tryToggleOnMode(), OperationResult.WRONG_MODE);
+        assertEquals(t1.tryTurnOn(), OperationResult.OK);
+        assertEquals(t1.tryTurnOn(), OperationResult.WRONG_MODE);
+        assertEquals(t1.tryToggleOnMode(), OperationResult.OK);
+        assertEquals(t1.getMode(), TerminalMode.SILENT);
+        assertEquals(t1.tryTurnOff(), OperationResult.OK);
+        assertEquals(t1.getMode(), TerminalMode.OFF);
+        assertThrows(InvalidInvocationException.class, t1::toggleOnMode);
+    }
+
+    @Test
+    public void testPay() {
+        assertEquals(t1.tryPay(4), OperationResult.INVALID_ARGUMENT);
+        assertEquals(t1.tryPay(5), OperationResult.OK);
+        t1.turnOn();
+        assertEquals(t1.tryPay(10), OperationResult.WRONG_MODE);
+        assertThrows(InvalidInvocationException.class, () -> t1.pay(10));
+        assertEquals(t1.balance(), -5);
+    }
+
+    @Test
+    public void testSms() {
+        assertEquals(t1.trySendSMS(t2, "hi"), SmsOutcome.REJECTED);
+        t1.turnOn();
+        assertEquals(t1.trySendSMS(t2, "hi"), SmsOutcome.TARGET_OFF);
+        t2.turnOn();
+        t2.toggleOnMode();
+        assertEquals(t1.trySendSMS(t2, "hi"), SmsOutcome.TARGET_SILENT);
+        t2.toggleOnMode();
+        assertEquals(t1.trySendSMS(t2, "hi"), SmsOutcome.DELIVERED);
+        assertEquals(t1.trySendSMS(null, "hi"), SmsOutcome.REJECTED);
+        assertEquals(metrics.sms(SmsOutcome.REJECTED), 2);
+        assertEquals(metrics.sms(SmsOutcome.DELIVERED), 1);
+    }
+
+    @Test
+    public void testCalls() {
+        assertEquals(t1.tryMakeVoiceCall(null), OperationResult.INVALID_ARGUMENT);
+        assertEquals(t1.tryMakeVoiceCall(t1), OperationResult.INVALID_ARGUMENT);
+        assertEquals(t1.tryMakeVoiceCall(t2), OperationResult.WRONG_MODE);
+        t1.turnOn();
+        assertEquals(t1.tryMakeVoiceCall(t2), OperationResult.TARGET_UNAVAILABLE);
+        t2.turnOn(); t3.turnOn();
+        assertEquals(t1.tryEndOngoingCommunication(), OperationResult.NO_ONGOING_CALL);
+        assertEquals(t1.tryMakeVoiceCall(t2), OperationResult.OK);
+        assertEquals(t3.tryMakeVoiceCall(t2), OperationResult.TARGET_UNAVAILABLE);
+        assertEquals(t1.tryMakeVoiceCall(t3), OperationResult.WRONG_MODE);
+        assertEquals(t1.tryTurnOff(), OperationResult.WRONG_MODE);
+        assertEquals(t2.tryEndOngoingCommunication(), OperationResult.OK);
+        assertEquals(t1.getMode(), TerminalMode.NORMAL);
+        assertEquals(metrics.callsStarted(), 1);
+        assertEquals(metrics.callsRejected(), 6);
+
+        InvalidInvocationException e = expectThrows(InvalidInvocationException.class, () -> t3.makeVoiceCall(null));
+        assertEquals(e.getMessage(), "Invalid call target");
+        t2.turnOff();
+        e = expectThrows(InvalidInvocationException.class, () -> t3.makeVoiceCall(t2));
+        assertEquals(e.getMessage(), "Target unavailable");
+    }
+
+    @Test
+    public void testClient() {
+        assertEquals(alice.tryAddFriend(null), OperationResult.INVALID_ARGUMENT);
+        assertEquals(alice.tryAddFriend(alice), OperationResult.INVALID_ARGUMENT);
+        Client[] others = new Client[3];
+        for (int i = 0; i < 3; i++)
+            others[i] = network.registerClient(String.valueOf(300 + i), 300 + i, "O" + i);
+        assertEquals(alice.tryAddFriend(others[0]), OperationResult.OK);
+        assertEquals(alice.tryAddFriend(others[1]), OperationResult.OK);
+        assertEquals(alice.tryAddFriend(others[2]), OperationResult.LIMIT_REACHED);
+        assertThrows(InvalidOperationException.class, () -> alice.addFriend(others[2]));
+        assertEquals(bob.tryAddFriend(others[2]), OperationResult.OK);
+
+        assertEquals(alice.tryUpdatePoints(-21), OperationResult.INVALID_ARGUMENT);
+        assertEquals(alice.tryUpdatePoints(180), OperationResult.OK);
+        assertEquals(alice.tryUpdatePoints(1), OperationResult.INVALID_ARGUMENT);
+        assertEquals(alice.getPoints(), 200);
+    }
+}
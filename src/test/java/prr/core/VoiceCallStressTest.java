@@ -0,0 +1,169 @@
+package prr.core;
+
+import prr.core.exceptions.InvalidInvocationException;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+// VoiceCallStressTest.java
+public class VoiceCallStressTest {
+
+    private static final int THREADS = 8;
+
+    private Terminal[] terminals;
+    private ExecutorService pool;
+
+    @BeforeMethod
+    public void setup() {
+        terminals = new Terminal[24];
+        for (int i = 0; i < terminals.length; i += 3) {
+            Terminal first = new Terminal("S" + i, null);
+            Client c = new Client(String.valueOf(i), i, first);
+            terminals[i] = first;
+            for (int j = i + 1; j < i + 3; j++) {
+                terminals[j] = new Terminal("S" + j, c);
+                c.addTerminal(terminals[j]);
+            }
+        }
+        for (Terminal t : terminals)
+            t.turnOn();
+        pool = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @AfterMethod
+    public void teardown() {
+        pool.shutdownNow();
+    }
+
+    @Test(timeOut = 120000)
+    public void testRandomCallsKeepPeersConsistent() throws Exception {
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            long seed = t;
+            done.add(pool.submit(() -> {
+                Random rnd = new Random(seed);
+                for (int i = 0; i < 50_000; i++) {
+                    Terminal a = terminals[rnd.nextInt(terminals.length)];
+                    Terminal b = terminals[rnd.nextInt(terminals.length)];
+                    try {
+                        switch (rnd.nextInt(6)) {
+                            case 0: case 1: a.makeVoiceCall(b); break;
+                            case 2: case 3: a.endOngoingCommunication(); break;
+                            case 4: a.toggleOnMode(); break;
+                            default:
+                                a.turnOff();
+                                a.turnOn();
+                        }
+                    } catch (InvalidInvocationException e) {
+                        // rejected operations are expected
+                    }
+                }
+            }));
+        }
+        awaitWithoutDeadlock(done);
+
+        assertCallsConsistent();
+        for (Terminal t : terminals)
+            if (t.getOngoing() != null)
+                t.endOngoingCommunication();
+        for (Terminal t : terminals)
+            assertNotEquals(t.getMode(), TerminalMode.BUSY, t.getId());
+    }
+
+    @Test(timeOut = 60000)
+    public void testOnlyOneCallerReachesTarget() throws Exception {
+        for (int round = 0; round < 200; round++) {
+            Terminal target = terminals[round % terminals.length];
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicInteger connected = new AtomicInteger();
+            List<Future<?>> done = new ArrayList<>();
+            for (Terminal caller : terminals) {
+                if (caller == target)
+                    continue;
+                done.add(pool.submit(() -> {
+                    start.await();
+                    try {
+                        caller.makeVoiceCall(target);
+                        connected.incrementAndGet();
+                    } catch (InvalidInvocationException e) {
+                        // target already taken
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            awaitWithoutDeadlock(done);
+
+            assertEquals(connected.get(), 1);
+            assertCallsConsistent();
+            target.endOngoingCommunication();
+        }
+    }
+
+    @Test(timeOut = 60000)
+    public void testBothPeersEndingConcurrently() throws Exception {
+        for (int round = 0; round < 2000; round++) {
+            Terminal a = terminals[0], b = terminals[1];
+            a.makeVoiceCall(b);
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicInteger ended = new AtomicInteger();
+            List<Future<?>> done = new ArrayList<>();
+            for (Terminal t : new Terminal[] { a, b }) {
+                done.add(pool.submit(() -> {
+                    start.await();
+                    try {
+                        t.endOngoingCommunication();
+                        ended.incrementAndGet();
+                    } catch (InvalidInvocationException e) {
+                        // the peer got there first
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            awaitWithoutDeadlock(done);
+
+            assertEquals(ended.get(), 1);
+            assertEquals(a.getMode(), TerminalMode.NORMAL);
+            assertEquals(b.getMode(), TerminalMode.NORMAL);
+        }
+    }
+
+    private void awaitWithoutDeadlock(List<Future<?>> done) throws Exception {
+        try {
+            for (Future<?> f : done)
+                f.get(30, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            long[] deadlocked = ManagementFactory.getThreadMXBean().findMonitorDeadlockedThreads();
+            fail("workers stuck" + (deadlocked == null ? "" : ", deadlocked threads: " + deadlocked.length));
+        }
+    }
+
+    // every BUSY terminal has a call whose other end is BUSY with the same call, and vice versa
+    private void assertCallsConsistent() {
+        for (Terminal t : terminals) {
+            Communication c = t.getOngoing();
+            if (c == null) {
+                assertNotEquals(t.getMode(), TerminalMode.BUSY, t.getId());
+                continue;
+            }
+            assertEquals(t.getMode(), TerminalMode.BUSY, t.getId());
+            Terminal peer = (c.from() == t) ? c.to() : c.from();
+            assertNotSame(peer, t);
+            assertSame(peer.getOngoing(), c, t.getId());
+            assertEquals(peer.getMode(), TerminalMode.BUSY);
+        }
+    }
+}